@@ -0,0 +1,89 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map.jmh;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// the shapes of key sets which the benchmarks are run against
+public enum Distribution {
+
+  // contiguous keys from zero
+  DENSE {
+    long next(long prev, Random r) {
+      return prev + 1;
+    }
+  },
+
+  // keys roughly a million apart, so that each leaf of an int-set holds a single element
+  SPARSE {
+    long next(long prev, Random r) {
+      return prev + 1 + r.nextInt(2000000);
+    }
+  },
+
+  // runs of up to 256 contiguous keys, separated by gaps of up to a million
+  CLUSTERED {
+    long next(long prev, Random r) {
+      return r.nextInt(64) == 0 ? prev + 1 + r.nextInt(1000000) : prev + 1;
+    }
+  },
+
+  // keys one to three apart, so that about half of each leaf is set and the leaves are stored as bitsets
+  SCATTERED {
+    long next(long prev, Random r) {
+      return prev + 1 + r.nextInt(3);
+    }
+  },
+
+  // keys drawn uniformly from the entire range of longs
+  RANDOM {
+    long next(long prev, Random r) {
+      throw new UnsupportedOperationException();
+    }
+
+    long[] sortedKeys(int n, Random r) {
+      long[] keys = new long[n];
+      for (int i = 0; i < n; i++) {
+        keys[i] = r.nextLong();
+      }
+      Arrays.sort(keys);
+      for (int i = 1; i < n; i++) {
+        if (keys[i] <= keys[i - 1]) {
+          keys[i] = keys[i - 1] + 1;
+        }
+      }
+      return keys;
+    }
+  };
+
+  abstract long next(long prev, Random r);
+
+  // returns `n` distinct keys in ascending order
+  long[] sortedKeys(int n, Random r) {
+    long[] keys = new long[n];
+    long k = -1;
+    for (int i = 0; i < n; i++) {
+      keys[i] = k = next(k, r);
+    }
+    return keys;
+  }
+
+  // returns `keys` in a random order
+  static long[] shuffle(long[] keys, Random r) {
+    long[] shuffled = keys.clone();
+    for (int i = shuffled.length - 1; i > 0; i--) {
+      int j = r.nextInt(i + 1);
+      long tmp = shuffled[i];
+      shuffled[i] = shuffled[j];
+      shuffled[j] = tmp;
+    }
+    return shuffled;
+  }
+}
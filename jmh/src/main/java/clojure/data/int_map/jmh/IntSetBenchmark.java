@@ -0,0 +1,164 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map.jmh;
+
+import clojure.data.int_map.ISet;
+import clojure.data.int_map.IntSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// int-set operations, exercising each of the container types depending on the distribution and leaf size
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntSetBenchmark {
+
+  @Param({"DENSE", "SPARSE", "CLUSTERED", "SCATTERED", "RANDOM"})
+  public Distribution distribution;
+
+  @Param({"100000"})
+  public int size;
+
+  // 128 for int-set, 4096 for dense-int-set
+  @Param({"128", "4096"})
+  public short leafSize;
+
+  private long[] keys, sorted;
+  private ISet set, other;
+  private long min, max, epoch = 0;
+
+  ISet build(long[] keys, long epoch) {
+    ISet set = new IntSet(leafSize);
+    for (long k : keys) {
+      set = set.add(epoch, k);
+    }
+    return set;
+  }
+
+  @Setup
+  public void setup() {
+    Random r = new Random(0);
+    sorted = distribution.sortedKeys(size, r);
+    keys = Distribution.shuffle(sorted, r);
+    set = build(keys, ++epoch);
+
+    // half of the other set's elements are shared with this one
+    long[] otherKeys = Distribution.shuffle(distribution.sortedKeys(size, r), r);
+    System.arraycopy(keys, 0, otherKeys, 0, size / 2);
+    other = build(otherKeys, ++epoch);
+
+    min = sorted[size / 4];
+    max = sorted[(3 * size) / 4];
+  }
+
+  @Benchmark
+  public ISet add() {
+    ISet s = new IntSet(leafSize);
+    for (long k : keys) {
+      s = s.add(++epoch, k);
+    }
+    return s;
+  }
+
+  @Benchmark
+  public ISet addTransient() {
+    return build(keys, ++epoch);
+  }
+
+  @Benchmark
+  public ISet fromSorted() {
+    return IntSet.fromSorted(leafSize, sorted);
+  }
+
+  @Benchmark
+  public ISet removeTransient() {
+    ISet s = set;
+    long e = ++epoch;
+    for (long k : keys) {
+      s = s.remove(e, k);
+    }
+    return s;
+  }
+
+  @Benchmark
+  public int contains() {
+    int n = 0;
+    for (long k : keys) {
+      if (set.contains(k)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @Benchmark
+  public ISet union() {
+    return set.union(++epoch, other);
+  }
+
+  @Benchmark
+  public ISet intersection() {
+    return set.intersection(++epoch, other);
+  }
+
+  @Benchmark
+  public long intersectionCount() {
+    return ((IntSet) set).intersectionCount((IntSet) other);
+  }
+
+  // compares the sets' leaves pairwise like intersectionCount, but stops at the first shared element
+  @Benchmark
+  public boolean intersects() {
+    return ((IntSet) set).intersects((IntSet) other);
+  }
+
+  @Benchmark
+  public ISet difference() {
+    return set.difference(++epoch, other);
+  }
+
+  @Benchmark
+  public ISet xor() {
+    return set.xor(++epoch, other);
+  }
+
+  @Benchmark
+  public ISet range() {
+    return set.range(++epoch, min, max);
+  }
+
+  @Benchmark
+  public long rank() {
+    long n = 0;
+    for (long k : keys) {
+      n += ((IntSet) set).rank(k);
+    }
+    return n;
+  }
+
+  @Benchmark
+  public long select() {
+    IntSet s = (IntSet) set;
+    long n = 0;
+    for (long i = s.count() - 1; i >= 0; i--) {
+      n += s.select(i);
+    }
+    return n;
+  }
+
+  @Benchmark
+  public long count() {
+    return set.count();
+  }
+}
@@ -0,0 +1,108 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map.jmh;
+
+import clojure.data.int_map.INode;
+import clojure.data.int_map.ISet;
+import clojure.data.int_map.IntSet;
+import clojure.data.int_map.Nodes;
+import clojure.lang.AFn;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// full traversals of int-maps and int-sets
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IteratorBenchmark {
+
+  @Param({"DENSE", "SPARSE", "CLUSTERED", "RANDOM"})
+  public Distribution distribution;
+
+  @Param({"100000"})
+  public int size;
+
+  private INode map;
+  private ISet set;
+
+  private static final AFn COUNT = new AFn() {
+    public Object invoke(Object acc, Object k, Object v) {
+      return acc;
+    }
+  };
+
+  @Setup
+  public void setup() {
+    long[] keys = distribution.sortedKeys(size, new Random(0));
+    map = NodesBenchmark.build(Nodes.Empty.EMPTY, keys, 1);
+    set = IntSet.fromSorted((short) 128, keys);
+  }
+
+  @Benchmark
+  public void mapKeys(Blackhole bh) {
+    Iterator it = map.iterator(INode.IterationType.KEYS, false);
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void mapEntries(Blackhole bh) {
+    Iterator it = map.iterator(INode.IterationType.ENTRIES, false);
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void mapEntriesReverse(Blackhole bh) {
+    Iterator it = map.iterator(INode.IterationType.ENTRIES, true);
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void mapCursor(Blackhole bh) {
+    Nodes.Cursor c = new Nodes.Cursor(map, INode.IterationType.ENTRIES, false);
+    while (c.hasNext()) {
+      bh.consume(c.nextKey());
+      bh.consume(c.value());
+    }
+  }
+
+  @Benchmark
+  public Object mapKVReduce() {
+    return map.kvreduce(COUNT, null);
+  }
+
+  @Benchmark
+  public void setElements(Blackhole bh) {
+    PrimitiveIterator.OfLong it = set.elements(0, false);
+    while (it.hasNext()) {
+      bh.consume(it.nextLong());
+    }
+  }
+
+  @Benchmark
+  public void setElementsReverse(Blackhole bh) {
+    PrimitiveIterator.OfLong it = set.elements(0, true);
+    while (it.hasNext()) {
+      bh.consume(it.nextLong());
+    }
+  }
+}
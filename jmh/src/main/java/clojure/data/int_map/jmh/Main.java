@@ -0,0 +1,28 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs the benchmarks like JMH's own entry point, accepting the same arguments, but always reports allocation rates
+public class Main {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams() || cmd.shouldListProfilers()
+            || cmd.shouldListResultFormats()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,125 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map.jmh;
+
+import clojure.data.int_map.INode;
+import clojure.data.int_map.Nodes;
+import clojure.lang.AFn;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// the trie operations underlying int-map, each of which is applied to every key in the map
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodesBenchmark {
+
+  private static final Object VAL = Boolean.TRUE;
+
+  // as in `merge`, the value from the second map wins
+  private static final AFn LAST = new AFn() {
+    public Object invoke(Object a, Object b) {
+      return b;
+    }
+  };
+
+  @Param({"DENSE", "SPARSE", "CLUSTERED", "RANDOM"})
+  public Distribution distribution;
+
+  @Param({"1000", "100000"})
+  public int size;
+
+  @Param({"16", "32", "64"})
+  public int fanOut;
+
+  private long[] keys;
+  private INode empty, map, other;
+  private long min, max, epoch = 0;
+
+  static INode build(INode empty, long[] keys, long epoch) {
+    INode map = empty;
+    for (long k : keys) {
+      map = map.assoc(k, epoch, null, VAL);
+    }
+    return map;
+  }
+
+  @Setup
+  public void setup() {
+    Random r = new Random(0);
+    empty = Nodes.withStride(Nodes.Empty.EMPTY, Integer.numberOfTrailingZeros(fanOut));
+    long[] sorted = distribution.sortedKeys(size, r);
+    keys = Distribution.shuffle(sorted, r);
+    map = build(empty, keys, ++epoch);
+
+    // half of the other map's keys are shared with this one
+    long[] otherKeys = Distribution.shuffle(distribution.sortedKeys(size, r), r);
+    System.arraycopy(keys, 0, otherKeys, 0, size / 2);
+    other = build(empty, otherKeys, ++epoch);
+
+    min = sorted[size / 4];
+    max = sorted[(3 * size) / 4];
+  }
+
+  @Benchmark
+  public INode assoc() {
+    INode m = empty;
+    for (long k : keys) {
+      m = m.assoc(k, ++epoch, null, VAL);
+    }
+    return m;
+  }
+
+  @Benchmark
+  public INode assocTransient() {
+    return build(empty, keys, ++epoch);
+  }
+
+  @Benchmark
+  public INode dissoc() {
+    INode m = map;
+    for (long k : keys) {
+      m = m.dissoc(k, ++epoch);
+    }
+    return m;
+  }
+
+  @Benchmark
+  public void get(Blackhole bh) {
+    for (long k : keys) {
+      bh.consume(map.get(k, null));
+    }
+  }
+
+  @Benchmark
+  public INode merge() {
+    return map.merge(other, ++epoch, LAST);
+  }
+
+  @Benchmark
+  public INode intersection() {
+    return map.intersection(other, ++epoch, null);
+  }
+
+  @Benchmark
+  public INode range() {
+    return map.range(min, max);
+  }
+
+  @Benchmark
+  public long count() {
+    return map.count();
+  }
+}
@@ -18,12 +18,33 @@
     [java.util
      Map
      Map$Entry]
+    [java.io
+     DataInput
+     DataOutput]
+    [java.nio
+     ByteBuffer]
+    [java.nio.channels
+     FileChannel
+     FileChannel$MapMode]
+    [java.nio.file
+     OpenOption
+     StandardOpenOption]
+    [java.util.stream
+     StreamSupport]
     [clojure.data.int_map
+     Ctrie
      INode
+     ISet
      IntSet
+     IntSetAccumulator
+     MappedIntSet
+     Nodes
      Nodes$Empty
+     Nodes$Cursor
+     Nodes$EntrySpliterator
+     Roaring
      INode$IterationType]
-    [clojure.lang Util]))
+    [clojure.lang Murmur3 RT Util]))
 
 (set! *warn-on-reflection* true)
 (set! *unchecked-math* true)
@@ -36,10 +57,24 @@
 (definterface IRange
   (range [^long min ^long max]))
 
+(definterface IRank
+  (^long rank [^long x])
+  (select [^long idx]))
+
+(definterface INearest
+  (floor [^long x])
+  (ceiling [^long x]))
+
 (definterface IRadix
+  (^clojure.data.int_map.INode root [])
   (mergeWith [b f])
   (update [k f]))
 
+(definterface ILongMap
+  (^long getLong [^long k ^long default])
+  (assocLong [^long k ^long v])
+  (updateLong [^long k f]))
+
 (defmacro ^:private compile-if [test then else]
   (if (eval test)
     then
@@ -48,6 +83,64 @@
 (declare ->transient-int-map
          ^:private EMPTY-INT-MAP)
 
+(defn- map-equiv [^Map this x]
+  (cond
+    (not (instance? java.util.Map x))
+    false
+
+    (and (instance? clojure.lang.IPersistentMap x)
+         (not (instance? clojure.lang.MapEquivalence x)))
+    false
+
+    (not= (.size this) (.size ^Map x))
+    false
+
+    ;; both are int-maps, so compare the tries directly
+    (and (instance? IRadix this) (instance? IRadix x))
+    (Nodes/equals (.root ^IRadix this) (.root ^IRadix x) true)
+
+    :else
+    (loop [it (.iterator ^Iterable this)]
+      (if (.hasNext it)
+        (let [^Map$Entry e (.next it)]
+          (if (and (.containsKey ^Map x (.getKey e))
+                (Util/equiv (.getValue e) (.get ^Map x (.getKey e))))
+            (recur it)
+            false))
+        true))))
+
+(defn- map-equals [^Map this x]
+  (cond
+    (identical? this x)
+    true
+
+    (not (instance? java.util.Map x))
+    false
+
+    (not= (.size this) (.size ^Map x))
+    false
+
+    (and (instance? IRadix this) (instance? IRadix x))
+    (Nodes/equals (.root ^IRadix this) (.root ^IRadix x) false)
+
+    :else
+    (loop [it (.iterator ^Iterable this)]
+      (if (.hasNext it)
+        (let [^Map$Entry e (.next it)]
+          (if e
+            (if (and (.containsKey ^Map x (.getKey e))
+                     (Util/equals (.getValue e) (.get ^Map x (.getKey e))))
+              (recur it)
+              false)
+            false))
+        true))))
+
+(defn- map-hash [^INode root]
+  (.hash root false 0))
+
+(defn- map-hasheq [^INode root]
+  (Murmur3/mixCollHash (.hash root true 0) (unchecked-int (.count root))))
+
 (deftype PersistentIntMap
   [^INode root
    ^long epoch
@@ -60,7 +153,31 @@
       epoch
       meta))
 
+  IRank
+  (rank [_ x]
+    (.rank root x))
+  (select [_ idx]
+    (Nodes/nth root idx))
+
+  INearest
+  (floor [_ x]
+    (Nodes/entry (.floor root x)))
+  (ceiling [_ x]
+    (Nodes/entry (.ceiling root x)))
+
+  clojure.lang.Sorted
+  (comparator [_]
+    RT/DEFAULT_COMPARATOR)
+  (entryKey [_ e]
+    (key e))
+  (seq [this ascending?]
+    (if ascending? (seq this) (rseq this)))
+  (seqFrom [_ k ascending?]
+    (iterator-seq (Nodes$Cursor. root INode$IterationType/ENTRIES (not ascending?) (long k))))
+
   IRadix
+  (root [_] root)
+
   (mergeWith [_ b f]
     (let [^PersistentIntMap b b
           epoch' (inc (Math/max (.epoch b) epoch))]
@@ -87,38 +204,7 @@
   clojure.lang.IPersistentCollection
 
   (equiv [this x]
-    (cond
-      (not (instance? java.util.Map x))
-      false
-
-      (and (instance? clojure.lang.IPersistentMap x)
-           (not (instance? clojure.lang.MapEquivalence x)))
-      false
-
-      (not= (count this) (.size ^Map x))
-      false
-
-      (instance? PersistentIntMap x)
-      (loop [it1 (.iterator this)
-             it2 (.iterator ^PersistentIntMap x)]
-        (if (.hasNext it1)
-          (let [^Map$Entry e1 (.next it1)
-                ^Map$Entry e2 (.next it2)]
-            (if (and (Util/equiv (.getKey e1) (.getKey e2))
-                  (Util/equiv (.getValue e1) (.getValue e2)))
-              (recur it1 it2)
-              false))
-          true))
-
-      :else
-      (loop [it (.iterator this)]
-        (if (.hasNext it)
-          (let [^Map$Entry e (.next it)]
-            (if (and (.containsKey ^Map x (.getKey e))
-                  (Util/equiv (.getValue e) (.get ^Map x (.getKey e))))
-              (recur it)
-              false))
-          true))))
+    (map-equiv this x))
 
   (cons [this o]
     (if (map? o)
@@ -136,7 +222,7 @@
   r/CollFold
 
   (coll-fold [this n combinef reducef]
-    (#'r/fjinvoke #(try (.fold root n combinef reducef #'r/fjtask #'r/fjfork #'r/fjjoin) (catch Throwable e (.printStackTrace e)))))
+    (#'r/fjinvoke #(.fold root n combinef reducef #'r/fjtask #'r/fjfork #'r/fjjoin)))
 
   clojure.core.protocols.CollReduce
 
@@ -164,52 +250,14 @@
 
   Object
   (hashCode [this]
-    (reduce
-      (fn [acc [k v]]
-        (unchecked-add acc (bit-xor (.hashCode k) (.hashCode v))))
-      0
-      (seq this)))
+    (map-hash root))
 
   clojure.lang.IHashEq
   (hasheq [this]
-    (compile-if (resolve 'clojure.core/hash-unordered-coll)
-      (hash-unordered-coll this)
-      (.hashCode this)))
+    (map-hasheq root))
 
   (equals [this x]
-    (cond
-      (identical? this x)
-      true
-
-      (not (instance? java.util.Map x))
-      false
-
-      (not= (count this) (.size ^Map x))
-      false
-
-      (instance? PersistentIntMap x)
-      (loop [it1 (.iterator this)
-             it2 (.iterator ^PersistentIntMap x)]
-        (if (and (.hasNext it1) (.hasNext it2))
-          (let [^Map$Entry e1 (.next it1)
-                ^Map$Entry e2 (.next it2)]
-            (if (and (Util/equals (.getKey e1) (.getKey e2))
-                  (Util/equals (.getValue e1) (.getValue e2)))
-              (recur it1 it2)
-              false))
-          true))
-
-      :else
-      (loop [it (.iterator this)]
-        (if (.hasNext it)
-          (let [^Map$Entry e (.next it)]
-            (if e
-              (if (and (.containsKey ^Map x (.getKey e))
-                       (Util/equals (.getValue e) (.get ^Map x (.getKey e))))
-                (recur it)
-                false)
-              false))
-          true))))
+    (map-equals this x))
 
   (toString [this]
     (str (into {} this)))
@@ -240,7 +288,7 @@
         meta)))
 
   (empty [this]
-    (cond-> (PersistentIntMap. Nodes$Empty/EMPTY 0 nil)
+    (cond-> (PersistentIntMap. (Nodes/empty root) 0 nil)
       meta (with-meta meta)))
 
   clojure.lang.IEditableCollection
@@ -303,6 +351,8 @@
    meta]
 
   IRadix
+  (root [_] root)
+
   (mergeWith [this b f]
     (throw (IllegalArgumentException. "Cannot call `merge-with` on transient int-map.")))
 
@@ -314,7 +364,7 @@
 
   clojure.lang.IObj
   (meta [_] meta)
-  (withMeta [_ m] (TransientIntMap. root (inc epoch) meta))
+  (withMeta [_ m] (TransientIntMap. root epoch m))
 
   clojure.lang.Counted
   (count [this]
@@ -399,238 +449,1264 @@
 
 ;;;
 
-(defn int-map
-  "Given alternating keys and values, creates an integer map that can only
-  have integers as keys."
-  ([]
-     EMPTY-INT-MAP)
-  ([a b]
-     (assoc EMPTY-INT-MAP a b))
-  ([a b & rest]
-     (apply assoc EMPTY-INT-MAP a b rest)))
-
-(defn merge-with
-  "Merges together two int-maps, using `f` to resolve value conflicts."
-  ([f]
-     EMPTY-INT-MAP)
-  ([f a b]
-     (let [a' (if (instance? TransientIntMap a)
-                (persistent! a)
-                a)
-           b'  (if (instance? TransientIntMap b)
-                 (persistent! b)
-                 b)]
-       (.mergeWith ^IRadix a' b' f)))
-  ([f a b & rest]
-     (reduce #(merge-with f %1 %2) (list* a b rest))))
+(declare ->transient-int-long-map)
 
-(defn merge
-  "Merges together two int-maps, giving precedence to values from the right-most map."
-  ([]
-     EMPTY-INT-MAP)
-  ([a b]
-     (merge-with (fn [_ b] b) a b))
-  ([a b & rest]
-     (apply merge-with (fn [_ b] b) a b rest)))
+(deftype PersistentIntLongMap
+  [^INode root
+   ^long epoch
+   meta]
 
-(defn update
-  "Updates the value associated with the given key.  If no such key exists, `f` is invoked
-   with `nil`."
-  ([m k f]
-     (.update ^PersistentIntMap m k f))
-  ([m k f & args]
-     (update m k #(apply f % args))))
+  IRange
+  (range [_ min max]
+    (PersistentIntLongMap.
+      (or (.range root min max) Nodes$Empty/EMPTY)
+      epoch
+      meta))
 
-(defn update!
-  "A transient variant of `update`."
-  ([m k f]
-     (.update ^TransientIntMap m k f))
-  ([m k f & args]
-     (update! m k #(apply f % args))))
+  IRank
+  (rank [_ x]
+    (.rank root x))
+  (select [_ idx]
+    (Nodes/nth root idx))
+
+  INearest
+  (floor [_ x]
+    (Nodes/entry (.floor root x)))
+  (ceiling [_ x]
+    (Nodes/entry (.ceiling root x)))
+
+  clojure.lang.Sorted
+  (comparator [_]
+    RT/DEFAULT_COMPARATOR)
+  (entryKey [_ e]
+    (key e))
+  (seq [this ascending?]
+    (if ascending? (seq this) (rseq this)))
+  (seqFrom [_ k ascending?]
+    (iterator-seq (Nodes$Cursor. root INode$IterationType/ENTRIES (not ascending?) (long k))))
 
-(defn range
-  "Returns a map or set representing all elements within [min, max], inclusive."
-  [x ^long min ^long max]
-  (.range ^IRange x min max))
+  IRadix
+  (root [_] root)
 
-;;;
+  (mergeWith [_ b f]
+    (let [^PersistentIntLongMap b b
+          epoch' (inc (Math/max (.epoch b) epoch))]
+      (PersistentIntLongMap.
+        (.merge root (.root b) epoch' f)
+        epoch'
+        meta)))
 
-(declare ->transient-int-set ->persistent-int-set)
+  (update [this k f]
+    (.updateLong this k f))
 
-(deftype PersistentIntSet
-  [^IntSet int-set
-   ^long epoch
-   meta]
+  ILongMap
+  (getLong [_ k default]
+    (.getLong root k default))
 
-  IRange
-  (range [this min max]
+  (assocLong [_ k v]
     (let [epoch' (inc epoch)]
-      (PersistentIntSet. (.range int-set epoch' min max) epoch' meta)))
+      (PersistentIntLongMap.
+        (.assocLong root k epoch' nil v)
+        epoch'
+        meta)))
 
-  clojure.lang.Reversible
-  (rseq [_]
-    (iterator-seq (.elements int-set 0 true)))
+  (updateLong [_ k f]
+    (let [epoch' (inc epoch)]
+      (PersistentIntLongMap.
+        (.updateLong root k epoch' f)
+        epoch'
+        meta)))
 
-  java.lang.Object
-  (hashCode [this]
-    (->> this
-      (map #(bit-xor (long %) (unsigned-bit-shift-right (long %) 32)))
-      (reduce +')))
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [_ m] (PersistentIntLongMap. root epoch m))
 
-  (equals [this x]
-    (.equiv this x))
+  clojure.lang.MapEquivalence
 
-  clojure.lang.IHashEq
-  (hasheq [this]
-    (compile-if (resolve 'clojure.core/hash-unordered-coll)
-      (hash-unordered-coll this)
-      (.hashCode this)))
+  clojure.lang.Counted
+  (count [this]
+    (.count root))
 
-  java.util.Set
-  (size [this] (count this))
-  (isEmpty [this] (zero? (count this)))
-  (iterator [this] (clojure.lang.SeqIterator. (seq this)))
-  (containsAll [this s] (every? #(contains? this %) s))
+  clojure.lang.IPersistentCollection
 
-  clojure.lang.IObj
-  (meta [_] meta)
-  (withMeta [this meta']
-    (PersistentIntSet. int-set epoch meta'))
+  (equiv [this x]
+    (map-equiv this x))
 
-  clojure.lang.IEditableCollection
-  (asTransient [this] (->transient-int-set this))
+  (cons [this o]
+    (if (map? o)
+      (reduce #(apply assoc %1 %2) this o)
+      (.assoc this (nth o 0) (nth o 1))))
 
   clojure.lang.Seqable
-  (seq [_]
-    (iterator-seq (.elements int-set 0 false)))
+  (seq [this]
+    (iterator-seq (.iterator this)))
 
-  clojure.lang.IFn
-  (invoke [this idx]
-    (when (.contains this idx)
-      idx))
+  clojure.lang.Reversible
+  (rseq [_]
+    (iterator-seq (.iterator root INode$IterationType/ENTRIES true)))
 
-  clojure.lang.IPersistentSet
-  (equiv [this x]
-    (and
-      (instance? java.util.Set x)
-      (= (count this) (count x))
-      (every?
-        #(contains? x %)
-        (seq this))))
-  (count [_]
-    (.count int-set))
-  (empty [_]
-    (cond-> (PersistentIntSet. (IntSet. (.leafSize int-set)) 0 nil)
-      meta (with-meta meta)))
-  (contains [_ n]
-    (try
-      (.contains int-set n)
-      (catch ClassCastException _ false)))
-  (get [this n]
-    (when (.contains this n) n))
-  (disjoin [this n]
-    (let [epoch' (inc epoch)
-          int-set' (.remove int-set epoch' n)]
-      (if (identical? int-set int-set')
-        this
-        (PersistentIntSet. int-set' epoch' meta))))
-  (cons [this n]
-    (let [epoch' (inc epoch)
-          int-set' (.add int-set epoch' n)]
-      (if (identical? int-set int-set')
-        this
-        (PersistentIntSet. int-set' epoch' meta)))))
+  r/CollFold
 
-(deftype TransientIntSet
-  [^IntSet int-set
-   ^int epoch
-   meta]
+  (coll-fold [this n combinef reducef]
+    (#'r/fjinvoke #(.fold root n combinef reducef #'r/fjtask #'r/fjfork #'r/fjjoin)))
 
-  clojure.lang.IObj
-  (meta [_] meta)
-  (withMeta [this meta']
-    (TransientIntSet. int-set epoch meta'))
+  clojure.core.protocols.CollReduce
 
-  clojure.lang.IFn
-  (invoke [this idx]
-    (when (.contains this idx)
-      idx))
+  (coll-reduce
+    [this f]
+    (let [x (.reduce root f (f))]
+      (if (reduced? x)
+        @x
+        x)))
 
-  clojure.lang.ITransientSet
-  (count [_]
-    (.count int-set))
-  (persistent [this] (->persistent-int-set this))
-  (contains [_ n]
-    (.contains int-set n))
-  (disjoin [this n]
-    (let [int-set' (.remove int-set epoch n)]
-      (if (identical? int-set int-set')
-        this
-        (TransientIntSet. int-set' epoch meta))))
-  (conj [this n]
-    (let [int-set' (.add int-set epoch n)]
-      (if (identical? int-set int-set')
-        this
-        (TransientIntSet. int-set' epoch meta)))))
+  (coll-reduce
+    [this f val]
+    (let [x (.reduce root f val)]
+      (if (reduced? x)
+        @x
+        x)))
 
-(defn- ->persistent-int-set [^TransientIntSet set]
-  (PersistentIntSet.
-    (.int-set set)
-    (.epoch set)
-    (.meta set)))
+  clojure.core.protocols.IKVReduce
+  (kv-reduce
+    [this f val]
+    (let [x (.kvreduce root f val)]
+      (if (reduced? x)
+        @x
+        x)))
 
-(defn- ->transient-int-set [^PersistentIntSet set]
-  (TransientIntSet.
-    (.int-set set)
-    (inc (.epoch set))
-    (.meta set)))
+  Object
+  (hashCode [this]
+    (map-hash root))
 
-;;;
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (map-hasheq root))
 
-(def ^:private ^PersistentIntSet EMPTY-INT-SET (PersistentIntSet. (IntSet. 128) 0 nil))
-(def ^:private ^PersistentIntSet EMPTY-DENSE-INT-SET (PersistentIntSet. (IntSet. 4096) 0 nil))
+  (equals [this x]
+    (map-equals this x))
 
-(defn int-set
-  "Given a collection, creates an immutable set which can only store integral values.
-  This should be used unless elements are densely clustered (each element has multiple
-  elements within +/- 1000)."
-  ([]
-     EMPTY-INT-SET)
-  ([s]
-     (into EMPTY-INT-SET s)))
+  (toString [this]
+    (str (into {} this)))
 
-(defn dense-int-set
-  "Given a collection, creates an immutable set which can only store integral values.
-  This should be used only if elements are densely clustered (each element has multiple
-  elements within +/- 1000)."
-  ([]
-     EMPTY-DENSE-INT-SET)
-  ([s]
+  clojure.lang.ILookup
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k default]
+    (try
+      (.get root (long k) default)
+      (catch ClassCastException _ default)))
+
+  clojure.lang.Associative
+  (containsKey [this k]
+    (not (identical? ::not-found (.valAt this k ::not-found))))
+
+  (entryAt [this k]
+    (let [v (.valAt this k ::not-found)]
+      (when (not= v ::not-found)
+        (clojure.lang.MapEntry. k v))))
+
+  (assoc [this k v]
+    (.assocLong this (long k) (long v)))
+
+  (empty [this]
+    (cond-> (PersistentIntLongMap. (Nodes/empty root) 0 nil)
+      meta (with-meta meta)))
+
+  clojure.lang.IEditableCollection
+  (asTransient [this]
+    (->transient-int-long-map root (inc epoch) meta))
+
+  java.util.Map
+  (get [this k]
+    (.valAt this k))
+  (isEmpty [this]
+    (empty? (seq this)))
+  (size [this]
+    (count this))
+  (keySet [this]
+    (->> this
+      seq
+      (map key)
+      set))
+  (put [_ _ _]
+    (throw (UnsupportedOperationException.)))
+  (putAll [_ _]
+    (throw (UnsupportedOperationException.)))
+  (clear [_]
+    (throw (UnsupportedOperationException.)))
+  (remove [_ _]
+    (throw (UnsupportedOperationException.)))
+  (values [this]
+    (->> this seq (map second)))
+  (entrySet [this]
+    (->> this seq set))
+  (iterator [this]
+    (.iterator root INode$IterationType/ENTRIES false))
+
+  clojure.lang.IPersistentMap
+  (assocEx [this k v]
+    (if (contains? this k)
+      (throw (Exception. "Key or value already present"))
+      (assoc this k v)))
+  (without [this k]
+    (let [k (long k)
+          epoch' (inc epoch)]
+      (PersistentIntLongMap.
+        (or (.dissoc root k epoch') Nodes$Empty/EMPTY)
+        epoch'
+        meta)))
+
+  clojure.lang.IFn
+
+  (invoke [this k]
+    (.valAt this k))
+
+  (invoke [this k default]
+    (.valAt this k default)))
+
+(def ^:private ^PersistentIntLongMap EMPTY-INT-LONG-MAP (PersistentIntLongMap. Nodes$Empty/EMPTY 0 nil))
+
+(deftype TransientIntLongMap
+  [^INode root
+   ^long epoch
+   meta]
+
+  IRadix
+  (root [_] root)
+
+  (mergeWith [this b f]
+    (throw (IllegalArgumentException. "Cannot call `merge-with` on transient int-map.")))
+
+  (update [this k f]
+    (.updateLong this k f))
+
+  ILongMap
+  (getLong [_ k default]
+    (.getLong root k default))
+
+  (assocLong [this k v]
+    (let [root' (.assocLong root k epoch nil v)]
+      (if (identical? root' root)
+        this
+        (TransientIntLongMap. root' epoch meta))))
+
+  (updateLong [this k f]
+    (let [root' (.updateLong root k epoch f)]
+      (if (identical? root root')
+        this
+        (TransientIntLongMap. root' epoch meta))))
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [_ m] (TransientIntLongMap. root epoch m))
+
+  clojure.lang.Counted
+  (count [this]
+    (.count root))
+
+  clojure.lang.MapEquivalence
+
+  (equiv [this x]
+    (and (map? x) (= x (into {} this))))
+
+  clojure.lang.Seqable
+  (seq [this]
+    (iterator-seq (.iterator root INode$IterationType/ENTRIES false)))
+
+  Object
+  (hashCode [this]
+    (reduce
+      (fn [acc [k v]]
+        (unchecked-add acc (bit-xor (hash k) (hash v))))
+      0
+      (seq this)))
+
+  (equals [this x]
+    (or (identical? this x)
+      (and
+        (map? x)
+        (= x (into {} this)))))
+
+  (toString [this]
+    (str (into {} this)))
+
+  clojure.lang.ILookup
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k default]
+    (try
+      (.get root k default)
+      (catch ClassCastException _ default)))
+
+  clojure.lang.Associative
+  (containsKey [this k]
+    (not (identical? ::not-found (.valAt this k ::not-found))))
+
+  (entryAt [this k]
+    (let [v (.valAt this k ::not-found)]
+      (when (not= v ::not-found)
+        (clojure.lang.MapEntry. k v))))
+
+  clojure.lang.ITransientMap
+
+  (assoc [this k v]
+    (.assocLong this (long k) (long v)))
+
+  (conj [this o]
+    (if (map? o)
+      (reduce #(apply assoc! %1 %2) this o)
+      (.assoc this (nth o 0) (nth o 1))))
+
+  (persistent [_]
+    (PersistentIntLongMap. root (inc epoch) meta))
+
+  (without [this k]
+    (let [root' (or (.dissoc root (long k) epoch) Nodes$Empty/EMPTY)]
+      (if (identical? root' root)
+        this
+        (TransientIntLongMap. root' epoch meta))))
+
+  clojure.lang.IFn
+
+  (invoke [this k]
+    (.valAt this k))
+
+  (invoke [this k default]
+    (.valAt this k default)))
+
+(defn- ->transient-int-long-map [root ^long epoch meta]
+  (TransientIntLongMap. root epoch meta))
+
+;;;
+
+(defn int-map
+  "Given alternating keys and values, creates an integer map that can only
+  have integers as keys."
+  ([]
+     EMPTY-INT-MAP)
+  ([a b]
+     (assoc EMPTY-INT-MAP a b))
+  ([a b & rest]
+     (apply assoc EMPTY-INT-MAP a b rest)))
+
+(defn int-long-map
+  "Given alternating keys and values, creates an integer map whose values are stored as
+  unboxed longs.  Values are coerced to longs on insertion."
+  ([]
+     EMPTY-INT-LONG-MAP)
+  ([a b]
+     (assoc EMPTY-INT-LONG-MAP a b))
+  ([a b & rest]
+     (apply assoc EMPTY-INT-LONG-MAP a b rest)))
+
+(defn int-map-from-sorted
+  "Given an array of sorted, distinct longs and an array of values of the same length,
+  creates an integer map in a single pass, which is much faster than successive `assoc`
+  calls."
+  [^longs ks ^objects vs]
+  (PersistentIntMap. (Nodes/fromSorted ks vs) 0 nil))
+
+(defn int-long-map-from-sorted
+  "Given an array of sorted, distinct longs and an array of long values of the same length,
+  creates an unboxed integer map in a single pass."
+  [^longs ks ^longs vs]
+  (PersistentIntLongMap. (Nodes/fromSorted ks vs) 0 nil))
+
+(defn with-fan-out
+  "Returns an int-map or int-long-map with the same entries as `m`, whose branches each
+  have up to `fan-out` children, which must be 16, 32, or 64.  Wider branches make for
+  shallower trees and fewer indirections per lookup, at the cost of copying more of each
+  branch on every update.  The fan-out is preserved by every operation on the map."
+  [fan-out m]
+  (let [bits (case (long fan-out)
+               16 4
+               32 5
+               64 6
+               (throw (IllegalArgumentException. "Fan-out must be 16, 32, or 64.")))]
+    (condp instance? m
+      PersistentIntMap
+      (let [^PersistentIntMap m m]
+        (PersistentIntMap. (Nodes/withStride (.root m) bits) (.epoch m) (.meta m)))
+
+      PersistentIntLongMap
+      (let [^PersistentIntLongMap m m]
+        (PersistentIntLongMap. (Nodes/withStride (.root m) bits) (.epoch m) (.meta m)))
+
+      (throw (IllegalArgumentException. "Expected an int-map or int-long-map.")))))
+
+(defn merge-with
+  "Merges together two int-maps, using `f` to resolve value conflicts."
+  ([f]
+     EMPTY-INT-MAP)
+  ([f a b]
+     (let [a' (if (instance? clojure.lang.ITransientCollection a)
+                (persistent! a)
+                a)
+           b'  (if (instance? clojure.lang.ITransientCollection b)
+                 (persistent! b)
+                 b)]
+       (.mergeWith ^IRadix a' b' f)))
+  ([f a b & rest]
+     (reduce #(merge-with f %1 %2) (list* a b rest))))
+
+(defn merge
+  "Merges together two int-maps, giving precedence to values from the right-most map."
+  ([]
+     EMPTY-INT-MAP)
+  ([a b]
+     (merge-with (fn [_ b] b) a b))
+  ([a b & rest]
+     (apply merge-with (fn [_ b] b) a b rest)))
+
+(defn update
+  "Updates the value associated with the given key.  If no such key exists, `f` is invoked
+   with `nil`."
+  ([m k f]
+     (.update ^IRadix m k f))
+  ([m k f & args]
+     (update m k #(apply f % args))))
+
+(defn update!
+  "A transient variant of `update`."
+  ([m k f]
+     (.update ^IRadix m k f))
+  ([m k f & args]
+     (update! m k #(apply f % args))))
+
+(defn get-long
+  "Returns the value associated with the given key in an int-long-map as a primitive long,
+   or `default` if no such key exists."
+  ^long [^ILongMap m ^long k ^long default]
+  (.getLong m k default))
+
+(defn update-long
+  "Updates the value associated with the given key in an int-long-map.  If no such key exists,
+   `f` is invoked with 0.  If `f` is type-hinted to take and return a long, no boxing occurs."
+  [m k f]
+  (.updateLong ^ILongMap m k f))
+
+(defn update-long!
+  "A transient variant of `update-long`."
+  [m k f]
+  (.updateLong ^ILongMap m k f))
+
+(defn range
+  "Returns a map or set representing all elements within [min, max], inclusive."
+  [x ^long min ^long max]
+  (.range ^IRange x min max))
+
+(defn rank
+  "Returns the number of keys or elements less than `x` in an int-map, int-long-map, or
+  int-set, in time logarithmic in its size."
+  ^long [coll ^long x]
+  (.rank ^IRank coll x))
+
+(defn select
+  "Returns the entry or element at index `idx` of an int-map, int-long-map, or int-set, in
+  ascending order, in time logarithmic in its size.  Throws an IndexOutOfBoundsException if
+  there is none."
+  [coll ^long idx]
+  (.select ^IRank coll idx))
+
+(defn floor
+  "Returns the entry with the greatest key at or below `x` in an int-map or int-long-map,
+  or the greatest element at or below `x` in an int-set, or nil if there is none."
+  [coll ^long x]
+  (.floor ^INearest coll x))
+
+(defn ceiling
+  "Returns the entry with the least key at or above `x` in an int-map or int-long-map, or
+  the least element at or above `x` in an int-set, or nil if there is none."
+  [coll ^long x]
+  (.ceiling ^INearest coll x))
+
+(defn lower
+  "Like `floor`, but only considers keys or elements strictly below `x`."
+  [coll ^long x]
+  (when-not (== x Long/MIN_VALUE)
+    (.floor ^INearest coll (dec x))))
+
+(defn higher
+  "Like `ceiling`, but only considers keys or elements strictly above `x`."
+  [coll ^long x]
+  (when-not (== x Long/MAX_VALUE)
+    (.ceiling ^INearest coll (inc x))))
+
+(defn reduce-diff
+  "Reduces over the keys whose entries differ between two versions of an int-map or
+  int-long-map, in ascending order, calling `(f acc k old new)`.  A key missing from one
+  of the maps has `not-found`, or nil, in place of its value.  Subtrees which the maps
+  share are skipped without being visited, so the cost is proportional to what changed
+  between them rather than to their size."
+  ([f init a b]
+   (reduce-diff f init a b nil))
+  ([f init a b not-found]
+   (Nodes/diff (.root ^IRadix a) (.root ^IRadix b) f init not-found)))
+
+(defn diff
+  "Returns a vector of `[k old new]` for each key whose entry differs between two
+  versions of an int-map or int-long-map, in ascending order, where a missing entry's
+  value is nil.  See `reduce-diff`."
+  [a b]
+  (persistent!
+    (reduce-diff
+      (fn [acc k old new] (conj! acc [k old new]))
+      (transient [])
+      a
+      b)))
+
+;;;
+
+(deftype ConcurrentIntMap
+  [^Ctrie ctrie
+   meta]
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [_ m] (ConcurrentIntMap. ctrie m))
+
+  clojure.lang.Counted
+  (count [this]
+    (.count ctrie))
+
+  clojure.lang.Seqable
+  (seq [this]
+    (seq (persistent! this)))
+
+  clojure.lang.IKVReduce
+  (kvreduce [this f init]
+    (.kvreduce ctrie f init))
+
+  Object
+  (toString [this]
+    (str (persistent! this)))
+
+  clojure.lang.ILookup
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k default]
+    (try
+      (.get ctrie k default)
+      (catch ClassCastException _ default)))
+
+  clojure.lang.Associative
+  (containsKey [this k]
+    (not (identical? ::not-found (.valAt this k ::not-found))))
+
+  (entryAt [this k]
+    (let [v (.valAt this k ::not-found)]
+      (when (not= v ::not-found)
+        (clojure.lang.MapEntry. k v))))
+
+  clojure.lang.ITransientMap
+
+  (assoc [this k v]
+    (.put ctrie (long k) v)
+    this)
+
+  (conj [this o]
+    (if (map? o)
+      (reduce #(apply assoc! %1 %2) this o)
+      (.assoc this (nth o 0) (nth o 1))))
+
+  (persistent [_]
+    (PersistentIntMap. (.toNode ctrie) 0 meta))
+
+  (without [this k]
+    (.remove ctrie (long k))
+    this)
+
+  clojure.lang.IFn
+
+  (invoke [this k]
+    (.valAt this k))
+
+  (invoke [this k default]
+    (.valAt this k default)))
+
+(defn concurrent-int-map
+  "Returns a mutable int-map which any number of threads may update at once, without
+  locking.  It's updated with `assoc!` and `dissoc!`, which return the same map, and read
+  with `get`.  Writers only contend when they update neighboring keys, and a consistent
+  snapshot can be taken in constant time with `snapshot`.
+
+  `persistent!` returns an int-map with the entries of a consistent snapshot, but leaves
+  the concurrent map usable.  It and `seq` take constant time once any writes already in
+  progress have finished, since the concurrent map's branches become the int-map's.
+  `count` is kept as the map is updated, and `reduce-kv` visits the entries in order
+  without taking a snapshot, so it may or may not see updates made while it runs."
+  ([]
+   (ConcurrentIntMap. (Ctrie.) nil))
+  ([m]
+   (conj! (concurrent-int-map) m)))
+
+(defn compute-if-absent!
+  "Returns the value for `k` in a concurrent int-map, first adding `(f k)` if there is
+  none.  If threads race to add the same key `f` may be called by each of them, but only
+  one of the values is kept and returned to all of them."
+  [^ConcurrentIntMap m ^long k f]
+  (.computeIfAbsent ^Ctrie (.ctrie m) k f))
+
+(defn snapshot
+  "Returns an independent copy of a concurrent int-map, in constant time.  Later updates
+  to either map aren't visible in the other."
+  [^ConcurrentIntMap m]
+  (ConcurrentIntMap. (.snapshot ^Ctrie (.ctrie m)) (.meta m)))
+
+(defn entry-stream
+  "Returns a `java.util.stream.Stream` of the entries of an int-map or int-long-map, in
+  ascending order of their keys.  If `parallel?` is true, the stream is split across the
+  branches of the map."
+  ([m]
+   (entry-stream m false))
+  ([m parallel?]
+   (StreamSupport/stream (Nodes$EntrySpliterator. (.root ^IRadix m)) (boolean parallel?))))
+
+;;;
+
+(declare ->transient-int-set ->persistent-int-set)
+
+(deftype PersistentIntSet
+  [^IntSet int-set
+   ^long epoch
+   meta]
+
+  IRange
+  (range [this min max]
+    (let [epoch' (inc epoch)]
+      (PersistentIntSet. (.range int-set epoch' min max) epoch' meta)))
+
+  IRank
+  (rank [_ x]
+    (.rank int-set x))
+  (select [_ idx]
+    (.select int-set idx))
+
+  INearest
+  (floor [_ x]
+    (.floor int-set x))
+  (ceiling [_ x]
+    (.ceiling int-set x))
+
+  clojure.lang.Sorted
+  (comparator [_]
+    RT/DEFAULT_COMPARATOR)
+  (entryKey [_ x]
+    x)
+  (seq [this ascending?]
+    (if ascending? (seq this) (rseq this)))
+  (seqFrom [_ x ascending?]
+    (iterator-seq (.elementsFrom int-set (long x) (not ascending?))))
+
+  clojure.lang.Reversible
+  (rseq [_]
+    (iterator-seq (.elements int-set 0 true)))
+
+  r/CollFold
+
+  (coll-fold [this n combinef reducef]
+    (#'r/fjinvoke #(.fold int-set n combinef reducef #'r/fjtask #'r/fjfork #'r/fjjoin)))
+
+  java.lang.Object
+  (hashCode [this]
+    (.hash int-set false))
+
+  (equals [this x]
+    (.equiv this x))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (Murmur3/mixCollHash (.hash int-set true) (unchecked-int (.count int-set))))
+
+  java.util.Set
+  (size [this] (count this))
+  (isEmpty [this] (zero? (count this)))
+  (iterator [this] (.elements int-set 0 false))
+  (spliterator [this] (.spliterator int-set))
+  (containsAll [this s] (every? #(contains? this %) s))
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [this meta']
+    (PersistentIntSet. int-set epoch meta'))
+
+  clojure.lang.IEditableCollection
+  (asTransient [this] (->transient-int-set this))
+
+  clojure.lang.Seqable
+  (seq [_]
+    (iterator-seq (.elements int-set 0 false)))
+
+  clojure.lang.IFn
+  (invoke [this idx]
+    (when (.contains this idx)
+      idx))
+
+  clojure.lang.IPersistentSet
+  (equiv [this x]
+    (if (instance? PersistentIntSet x)
+      (.equiv int-set ^IntSet (.int-set ^PersistentIntSet x))
+      (and
+        (instance? java.util.Set x)
+        (= (count this) (count x))
+        (every?
+          #(contains? x %)
+          (seq this)))))
+  (count [_]
+    (.count int-set))
+  (empty [_]
+    (cond-> (PersistentIntSet. (IntSet. (.leafSize int-set)) 0 nil)
+      meta (with-meta meta)))
+  (contains [_ n]
+    (try
+      (.contains int-set n)
+      (catch ClassCastException _ false)))
+  (get [this n]
+    (when (.contains this n) n))
+  (disjoin [this n]
+    (let [epoch' (inc epoch)
+          int-set' (.remove int-set epoch' n)]
+      (if (identical? int-set int-set')
+        this
+        (PersistentIntSet. int-set' epoch' meta))))
+  (cons [this n]
+    (let [epoch' (inc epoch)
+          int-set' (.add int-set epoch' n)]
+      (if (identical? int-set int-set')
+        this
+        (PersistentIntSet. int-set' epoch' meta)))))
+
+(deftype TransientIntSet
+  [^IntSet int-set
+   ^int epoch
+   meta]
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [this meta']
+    (TransientIntSet. int-set epoch meta'))
+
+  clojure.lang.IFn
+  (invoke [this idx]
+    (when (.contains this idx)
+      idx))
+
+  clojure.lang.ITransientSet
+  (count [_]
+    (.count int-set))
+  (persistent [this] (->persistent-int-set this))
+  (contains [_ n]
+    (.contains int-set n))
+  (disjoin [this n]
+    (let [int-set' (.remove int-set epoch n)]
+      (if (identical? int-set int-set')
+        this
+        (TransientIntSet. int-set' epoch meta))))
+  (conj [this n]
+    (let [int-set' (.add int-set epoch n)]
+      (if (identical? int-set int-set')
+        this
+        (TransientIntSet. int-set' epoch meta)))))
+
+(defn- ->persistent-int-set [^TransientIntSet set]
+  (PersistentIntSet.
+    (.int-set set)
+    (.epoch set)
+    (.meta set)))
+
+(defn- ->transient-int-set [^PersistentIntSet set]
+  (TransientIntSet.
+    (.int-set set)
+    (inc (.epoch set))
+    (.meta set)))
+
+;;;
+
+(def ^:private ^PersistentIntSet EMPTY-INT-SET (PersistentIntSet. (IntSet. 128) 0 nil))
+(def ^:private ^PersistentIntSet EMPTY-DENSE-INT-SET (PersistentIntSet. (IntSet. 4096) 0 nil))
+
+(defn int-set
+  "Given a collection, creates an immutable set which can only store integral values.
+  This should be used unless elements are densely clustered (each element has multiple
+  elements within +/- 1000)."
+  ([]
+     EMPTY-INT-SET)
+  ([s]
+     (into EMPTY-INT-SET s)))
+
+(defn dense-int-set
+  "Given a collection, creates an immutable set which can only store integral values.
+  This should be used only if elements are densely clustered (each element has multiple
+  elements within +/- 1000)."
+  ([]
+     EMPTY-DENSE-INT-SET)
+  ([s]
      (into EMPTY-DENSE-INT-SET s)))
 
+(defn int-set-from-sorted
+  "Given an array of sorted longs, creates an `int-set` in a single pass, which is much
+  faster than successive `conj` calls."
+  [^longs xs]
+  (PersistentIntSet. (IntSet/fromSorted 128 xs) 0 nil))
+
+(defn dense-int-set-from-sorted
+  "Given an array of sorted longs, creates a `dense-int-set` in a single pass."
+  [^longs xs]
+  (PersistentIntSet. (IntSet/fromSorted 4096 xs) 0 nil))
+
+;;;
+
+(deftype ConcurrentIntSet
+  [^IntSetAccumulator acc
+   meta]
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [_ m] (ConcurrentIntSet. acc m))
+
+  clojure.lang.Seqable
+  (seq [this]
+    (seq (persistent! this)))
+
+  Object
+  (toString [this]
+    (str (persistent! this)))
+
+  clojure.lang.IFn
+  (invoke [this n]
+    (when (.contains this n)
+      n))
+
+  clojure.lang.ITransientSet
+  (count [_]
+    (.count acc))
+  (persistent [_]
+    (PersistentIntSet. (.snapshot acc) 0 meta))
+  (contains [_ n]
+    (and (integer? n) (.contains acc (long n))))
+  (get [this n]
+    (when (.contains this n)
+      n))
+  (disjoin [this n]
+    (.remove acc (long n))
+    this)
+  (conj [this n]
+    (.add acc (long n))
+    this))
+
+(defn concurrent-int-set
+  "Returns a mutable set of integers which any number of threads may add to at once, without
+  locking.  It's updated with `conj!` and `disj!`, which return the same set, and threads
+  only contend when they add elements within 64 of each other.
+
+  `persistent!` returns an int-set of the elements, but leaves the concurrent set usable, so
+  threads can share one set instead of each building their own and taking the `union`.  It
+  takes time proportional to the size of the set, as do `seq` and `count`, and only includes
+  the elements added before it was called; elements added at the same time may or may not
+  be included."
+  ([]
+   (ConcurrentIntSet. (IntSetAccumulator. 128) nil))
+  ([s]
+   (reduce conj! (concurrent-int-set) s)))
+
+(defn concurrent-dense-int-set
+  "Returns a concurrent set like `concurrent-int-set`, whose `persistent!` returns a
+  `dense-int-set`."
+  ([]
+   (ConcurrentIntSet. (IntSetAccumulator. 4096) nil))
+  ([s]
+   (reduce conj! (concurrent-dense-int-set) s)))
+
+(deftype ReadOnlyIntSet
+  [^MappedIntSet mapped-set
+   meta]
+
+  IRange
+  (range [this min max]
+    (PersistentIntSet. (.range mapped-set 0 min max) 0 nil))
+
+  clojure.lang.Reversible
+  (rseq [_]
+    (iterator-seq (.elements mapped-set 0 true)))
+
+  java.lang.Object
+  (hashCode [this]
+    (reduce #(unchecked-add-int %1 (Long/hashCode (long %2))) (int 0) this))
+
+  (equals [this x]
+    (.equiv this x))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (compile-if (resolve 'clojure.core/hash-unordered-coll)
+      (hash-unordered-coll this)
+      (.hashCode this)))
+
+  java.util.Set
+  (size [this] (count this))
+  (isEmpty [this] (zero? (count this)))
+  (iterator [this] (.elements mapped-set 0 false))
+  (spliterator [this] (.spliterator mapped-set))
+  (containsAll [this s] (every? #(contains? this %) s))
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [this meta']
+    (ReadOnlyIntSet. mapped-set meta'))
+
+  clojure.lang.Seqable
+  (seq [_]
+    (iterator-seq (.elements mapped-set 0 false)))
+
+  clojure.lang.IFn
+  (invoke [this idx]
+    (when (.contains this idx)
+      idx))
+
+  clojure.lang.IPersistentSet
+  (equiv [this x]
+    (and
+      (instance? java.util.Set x)
+      (= (count this) (count x))
+      (every?
+        #(contains? x %)
+        (seq this))))
+  (count [_]
+    (.count mapped-set))
+  (empty [_]
+    (cond-> EMPTY-INT-SET
+      meta (with-meta meta)))
+  (contains [_ n]
+    (try
+      (.contains mapped-set n)
+      (catch ClassCastException _ false)))
+  (get [this n]
+    (when (.contains this n) n))
+  (disjoin [this n]
+    (throw (UnsupportedOperationException. "A mapped int-set cannot be modified.")))
+  (cons [this n]
+    (throw (UnsupportedOperationException. "A mapped int-set cannot be modified."))))
+
+(declare view->int-set)
+
+;; the elements of an int-set within [min, max], which are read through the underlying set
+;; rather than copied out of it
+(deftype IntSetView
+  [^PersistentIntSet s
+   ^long min
+   ^long max
+   meta]
+
+  IRange
+  (range [this min' max']
+    (IntSetView. s (Math/max min min') (Math/min max max') meta))
+
+  clojure.lang.Reversible
+  (rseq [_]
+    (iterator-seq (.elementsWithin ^IntSet (.int-set s) min max true)))
+
+  clojure.core.protocols.CollReduce
+
+  (coll-reduce
+    [this f]
+    (let [x (.ceiling ^IntSet (.int-set s) min)]
+      (cond
+        (or (nil? x) (< max (long x))) (f)
+        (== max (long x)) x
+        :else (let [y (.reduce ^IntSet (.int-set s) f x (inc (long x)) max)]
+                (if (reduced? y)
+                  @y
+                  y)))))
+
+  (coll-reduce
+    [this f val]
+    (let [x (.reduce ^IntSet (.int-set s) f val min max)]
+      (if (reduced? x)
+        @x
+        x)))
+
+  java.lang.Object
+  (hashCode [this]
+    (.hash ^IntSet (.int-set s) false min max))
+
+  (equals [this x]
+    (.equiv this x))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (Murmur3/mixCollHash (.hash ^IntSet (.int-set s) true min max) (unchecked-int (count this))))
+
+  java.util.Set
+  (size [this] (count this))
+  (isEmpty [this] (zero? (count this)))
+  (iterator [this] (.elementsWithin ^IntSet (.int-set s) min max false))
+  (spliterator [this] (.spliteratorWithin ^IntSet (.int-set s) min max))
+  (containsAll [this s] (every? #(contains? this %) s))
+
+  clojure.lang.IObj
+  (meta [_] meta)
+  (withMeta [this meta']
+    (IntSetView. s min max meta'))
+
+  clojure.lang.Seqable
+  (seq [_]
+    (iterator-seq (.elementsWithin ^IntSet (.int-set s) min max false)))
+
+  clojure.lang.Sorted
+  (comparator [_]
+    RT/DEFAULT_COMPARATOR)
+  (entryKey [_ x]
+    x)
+  (seq [this ascending?]
+    (if ascending? (seq this) (rseq this)))
+  (seqFrom [_ x ascending?]
+    (let [x (long x)]
+      (iterator-seq
+        (if ascending?
+          (.elementsWithin ^IntSet (.int-set s) (Math/max min x) max false)
+          (.elementsWithin ^IntSet (.int-set s) min (Math/min max x) true)))))
+
+  clojure.lang.IFn
+  (invoke [this idx]
+    (when (.contains this idx)
+      idx))
+
+  clojure.lang.IPersistentSet
+  (equiv [this x]
+    (and
+      (instance? java.util.Set x)
+      (= (count this) (count x))
+      (every?
+        #(contains? x %)
+        (seq this))))
+  (count [_]
+    (.count ^IntSet (.int-set s) min max))
+  (empty [_]
+    (with-meta (empty s) meta))
+  (contains [_ n]
+    (and (integer? n)
+      (<= min (long n) max)
+      (.contains s n)))
+  (get [this n]
+    (when (.contains this n) n))
+  (disjoin [this n]
+    (disj (PersistentIntSet. (view->int-set this) (inc (.epoch s)) meta) n))
+  (cons [this n]
+    (conj (PersistentIntSet. (view->int-set this) (inc (.epoch s)) meta) n)))
+
+;; slices the trie, which shares every subtree within the bounds and only copies the branches
+;; and leaves at either end
+(defn- view->int-set ^IntSet [^IntSetView v]
+  (let [^PersistentIntSet s (.s v)]
+    (.range ^IntSet (.int-set s) (inc (.epoch s)) (.min v) (.max v))))
+
+(defn- ->int-set ^ISet [s]
+  (condp instance? s
+    ReadOnlyIntSet (.mapped-set ^ReadOnlyIntSet s)
+    IntSetView (view->int-set s)
+    (.int-set ^PersistentIntSet s)))
+
+(defn- ->bounded-set
+  "Returns the set underlying a view, which is read within the view's bounds rather than
+  copied out of it."
+  ^ISet [s]
+  (if (instance? IntSetView s)
+    (.int-set ^PersistentIntSet (.s ^IntSetView s))
+    (->int-set s)))
+
+(defn- lower-bound ^long [s]
+  (if (instance? IntSetView s) (.min ^IntSetView s) Long/MIN_VALUE))
+
+(defn- upper-bound ^long [s]
+  (if (instance? IntSetView s) (.max ^IntSetView s) Long/MAX_VALUE))
+
+(defn- ->epoch ^long [s]
+  (condp instance? s
+    ReadOnlyIntSet 0
+    IntSetView (inc (.epoch ^PersistentIntSet (.s ^IntSetView s)))
+    (.epoch ^PersistentIntSet s)))
+
+(defn range-view
+  "Returns a read-only view of the elements of an int-set within [min, max], inclusive.
+  Unlike `range`, nothing is copied: the bounds are applied as the view is iterated,
+  reduced, counted, or searched.  Modifying the view, or passing it to `union`,
+  `intersection`, or `difference`, returns an ordinary int-set which shares everything
+  but the ends of the range with the underlying set.  `intersection-count` and
+  `intersects?` only walk the range, and copy nothing."
+  [s ^long min ^long max]
+  (if (instance? IntSetView s)
+    (.range ^IRange s min max)
+    (IntSetView. s min max nil)))
+
+(defn- ->int-sets
+  "Returns the underlying sets as an array, or nil if any of them is memory-mapped."
+  [sets]
+  (let [xs (map ->int-set sets)]
+    (when (every? #(instance? IntSet %) xs)
+      (into-array IntSet xs))))
+
 (defn union
-  "Returns the union of two bitsets."
-  [^PersistentIntSet a ^PersistentIntSet b]
-  (let [epoch (inc (long (Math/max (.epoch a) (.epoch b))))]
-    (PersistentIntSet.
-      (.union ^IntSet (.int-set a) epoch (.int-set b))
-      epoch
-      nil)))
+  "Returns the union of the bitsets.  Given more than two, every set is walked once,
+  rather than building an intermediate set for each pair."
+  ([a b]
+   (let [epoch (inc (Math/max (->epoch a) (->epoch b)))]
+     (PersistentIntSet.
+       (.union (->int-set a) epoch (->int-set b))
+       epoch
+       nil)))
+  ([a b & sets]
+   (let [sets (list* a b sets)]
+     (if-let [xs (->int-sets sets)]
+       (let [epoch (inc (long (reduce max (map ->epoch sets))))]
+         (PersistentIntSet. (IntSet/unionAll epoch xs) epoch nil))
+       (reduce union sets)))))
 
 (defn intersection
-  "Returns the intersection of two bitsets."
-  [^PersistentIntSet a ^PersistentIntSet b]
-  (let [epoch (inc (long (Math/max (.epoch a) (.epoch b))))]
+  "Returns the intersection of the bitsets.  Given more than two, only the leaves of the
+  smallest set are visited, and each is looked up in the rest."
+  ([a b]
+   (let [epoch (inc (Math/max (->epoch a) (->epoch b)))]
+     (PersistentIntSet.
+       (.intersection (->int-set a) epoch (->int-set b))
+       epoch
+       nil)))
+  ([a b & sets]
+   (let [sets (list* a b sets)]
+     (if-let [xs (->int-sets sets)]
+       (let [epoch (inc (long (reduce max (map ->epoch sets))))]
+         (PersistentIntSet. (IntSet/intersectionAll epoch xs) epoch nil))
+       (reduce intersection sets)))))
+
+(defn difference
+  "Returns the difference between two bitsets."
+  [a b]
+  (let [epoch (inc (Math/max (->epoch a) (->epoch b)))]
     (PersistentIntSet.
-      (.intersection ^IntSet (.int-set a) epoch (.int-set b))
+      (.difference (->int-set a) epoch (->int-set b))
       epoch
       nil)))
 
-(defn difference
-  "Returns the difference between two bitsets."
-  [^PersistentIntSet a ^PersistentIntSet b]
-  (let [epoch (inc (long (Math/max (.epoch a) (.epoch b))))]
+(defn xor
+  "Returns the symmetric difference of two bitsets, the elements in only one of them.
+  Subtrees which the sets share cancel out without being visited, so comparing two
+  versions of a set takes time proportional to what's changed between them."
+  [a b]
+  (let [epoch (inc (Math/max (->epoch a) (->epoch b)))]
     (PersistentIntSet.
-      (.difference ^IntSet (.int-set a) epoch (.int-set b))
+      (.xor (->int-set a) epoch (->int-set b))
       epoch
       nil)))
+
+(defn intersection-count
+  "Returns the number of elements in both bitsets, without building their intersection."
+  ^long [a b]
+  (let [x (->bounded-set a), y (->bounded-set b)]
+    (if (and (instance? IntSet x) (instance? IntSet y))
+      (.intersectionCount ^IntSet x ^IntSet y
+        (Math/max (lower-bound a) (lower-bound b))
+        (Math/min (upper-bound a) (upper-bound b)))
+      (.count (.intersection (->int-set a) (inc (Math/max (->epoch a) (->epoch b))) (->int-set b))))))
+
+(defn union-count
+  "Returns the number of elements in any of the bitsets, without building their union."
+  (^long [a b]
+   (- (+ (count a) (count b)) (intersection-count a b)))
+  ([a b & sets]
+   (let [sets (list* a b sets)]
+     (if-let [xs (->int-sets sets)]
+       (IntSet/unionCount xs)
+       (count (apply union sets))))))
+
+(defn difference-count
+  "Returns the number of elements in `a` but not `b`, without building their difference."
+  ^long [a b]
+  (- (count a) (intersection-count a b)))
+
+(defn intersects?
+  "Returns true if the bitsets share any element, stopping at the first one found."
+  [a b]
+  (let [x (->bounded-set a), y (->bounded-set b)]
+    (if (and (instance? IntSet x) (instance? IntSet y))
+      (.intersects ^IntSet x ^IntSet y
+        (Math/max (lower-bound a) (lower-bound b))
+        (Math/min (upper-bound a) (upper-bound b)))
+      (pos? (.count (.intersection (->int-set a) (inc (Math/max (->epoch a) (->epoch b))) (->int-set b)))))))
+
+(defn long-stream
+  "Returns a `java.util.stream.LongStream` of the elements of a set, in ascending order.
+  If `parallel?` is true, the stream is split across the branches of the set."
+  ([s]
+   (long-stream s false))
+  ([s parallel?]
+   (let [^java.util.Spliterator$OfLong spliterator (.spliterator ^java.util.Set s)]
+     (StreamSupport/longStream spliterator (boolean parallel?)))))
+;;;
+
+(defn write-int-set
+  "Writes an int-set or dense-int-set to `out`, which may be a `java.io.DataOutput` or a
+  `java.nio.ByteBuffer`, in the portable format used by 64-bit Roaring bitmaps."
+  [^PersistentIntSet s out]
+  (if (instance? ByteBuffer out)
+    (Roaring/write ^IntSet (.int-set s) ^ByteBuffer out)
+    (Roaring/write ^IntSet (.int-set s) ^DataOutput out)))
+
+(defn- read-set [^long leaf-size in]
+  (PersistentIntSet.
+    (if (instance? ByteBuffer in)
+      (Roaring/readSet (short leaf-size) ^ByteBuffer in)
+      (Roaring/readSet (short leaf-size) ^DataInput in))
+    0
+    nil))
+
+(defn read-int-set
+  "Reads a set written by `write-int-set`, or by any other implementation of the portable
+  64-bit Roaring format, from a `java.io.DataInput` or `java.nio.ByteBuffer`."
+  [in]
+  (read-set 128 in))
+
+(defn read-dense-int-set
+  "Like `read-int-set`, but returns a `dense-int-set`."
+  [in]
+  (read-set 4096 in))
+
+(defn write-int-long-map
+  "Writes an int-long-map to `out`, which may be a `java.io.DataOutput` or a
+  `java.nio.ByteBuffer`, as a portable 64-bit Roaring bitmap of its keys followed by
+  its values as little-endian longs, in the same order."
+  [^PersistentIntLongMap m out]
+  (if (instance? ByteBuffer out)
+    (Roaring/writeLongMap ^INode (.root m) ^ByteBuffer out)
+    (Roaring/writeLongMap ^INode (.root m) ^DataOutput out)))
+
+(defn read-int-long-map
+  "Reads a map written by `write-int-long-map` from a `java.io.DataInput` or
+  `java.nio.ByteBuffer`."
+  [in]
+  (PersistentIntLongMap.
+    (if (instance? ByteBuffer in)
+      (Roaring/readLongMap ^ByteBuffer in)
+      (Roaring/readLongMap ^DataInput in))
+    0
+    nil))
+
+(defn serialized-size
+  "Returns the number of bytes which `write-int-set` or `write-int-long-map` will write
+  for `x`."
+  ^long [x]
+  (if (instance? PersistentIntLongMap x)
+    (Roaring/serializedSize ^INode (.root ^PersistentIntLongMap x))
+    (Roaring/serializedSize ^IntSet (.int-set ^PersistentIntSet x))))
+
+(defn mapped-int-set
+  "Returns a read-only set over a set written by `write-int-set`, without copying it onto the
+  heap.  `x` may be a `java.nio.ByteBuffer`, or a `java.io.File` or path to be memory-mapped,
+  which must be smaller than 2GB.  It can be used with `range`, `union`, `intersection`, and
+  `difference`, which return ordinary int-sets."
+  [x]
+  (let [buf (if (instance? ByteBuffer x)
+              x
+              (with-open [ch (FileChannel/open
+                               (.toPath (if (instance? java.io.File x) ^java.io.File x (java.io.File. (str x))))
+                               ^"[Ljava.nio.file.OpenOption;" (into-array OpenOption [StandardOpenOption/READ]))]
+                (.map ch FileChannel$MapMode/READ_ONLY 0 (.size ch))))]
+    (ReadOnlyIntSet. (MappedIntSet. buf 128) nil)))
@@ -0,0 +1,675 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+// a concurrent, lock-free map of long keys, after Prokopec et al's "Concurrent Tries with Efficient Non-Blocking
+// Snapshots".  Each branch is replaced with a CAS on the indirection node above it, so writers only contend when they
+// touch the same branch.  A snapshot installs a new generation at the root in constant time, after which each branch
+// from an older generation is copied the first time it's written beneath.
+//
+// The indirection nodes are themselves `Nodes.Branch`es, which split on the bits of the key exactly as in an int-map,
+// and each copies its branch's bitmap and children into its own fields once the CAS installing them has committed.
+// Once every write begun in a generation has finished, its tree is an ordinary trie, so `toNode` can hand its root
+// to a `PersistentIntMap` without copying anything.
+public class Ctrie {
+
+  private static final Object NOT_FOUND = new Object();
+  private static final Object RESTART = new Object();
+
+  // the root covers every key, and each branch beneath it consumes four bits of the key as in `Nodes`
+  private static final int ROOT_OFFSET = 60, BITS = 4;
+
+  // the epoch of every branch in the trie, which no persistent or transient int-map ever uses, so they always copy
+  // our branches rather than editing them in place
+  private static final long EPOCH = -1;
+
+  private static final INode[] NO_CHILDREN = new INode[0];
+
+  // generations
+
+  // a generation of the trie, compared by identity, which tracks the writes in progress and how many entries they've
+  // added, so that a snapshot can wait for the former and keep the latter without walking the trie
+  static final class Gen {
+    private static final int STRIPES = Math.min(32, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2);
+    // each stripe's counter gets its own cache line
+    private static final int PAD = 8;
+
+    // a thread always uses the same stripe, so each counter is exactly the number of writes in progress on it
+    private final AtomicLongArray writers = new AtomicLongArray(STRIPES * PAD);
+    private final LongAdder delta = new LongAdder();
+    // the count of the generation we were taken from, which is only known once its writes have finished
+    private volatile Gen parent;
+    private volatile long base;
+
+    Gen(Gen parent) {
+      this.parent = parent;
+    }
+
+    int enter() {
+      int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+      writers.getAndIncrement(stripe);
+      return stripe;
+    }
+
+    void exit(int stripe) {
+      writers.getAndDecrement(stripe);
+    }
+
+    // waits until every write which registered before we were replaced at the root has finished
+    void quiesce() {
+      for (int i = 0; i < STRIPES * PAD; i += PAD) {
+        while (writers.get(i) != 0) {
+          Thread.yield();
+        }
+      }
+    }
+
+    void added(long n) {
+      delta.add(n);
+    }
+
+    long count() {
+      Gen p = parent;
+      if (p != null) {
+        p.quiesce();
+        base = p.count();
+        parent = null;
+      }
+      return base + delta.sum();
+    }
+  }
+
+  // main nodes
+
+  // the node beneath an indirection, whose `prev` is set until a GCAS installing it has been committed or rolled back
+  static abstract class MainNode {
+    private static final AtomicReferenceFieldUpdater<MainNode, MainNode> PREV =
+            AtomicReferenceFieldUpdater.newUpdater(MainNode.class, MainNode.class, "prev");
+
+    volatile MainNode prev;
+
+    boolean casPrev(MainNode oldVal, MainNode newVal) {
+      return PREV.compareAndSet(this, oldVal, newVal);
+    }
+  }
+
+  // a branch's children, which are either `Nodes.Leaf`s or `CBranch`es, laid out as in `Nodes.Branch`
+  static class CNode extends MainNode {
+    final long bitmap;
+    final INode[] children;
+    final Gen gen;
+
+    CNode(long bitmap, INode[] children, Gen gen) {
+      this.bitmap = bitmap;
+      this.children = children;
+      this.gen = gen;
+    }
+
+    CNode updatedAt(int pos, INode n, Gen gen) {
+      INode[] children = this.children.clone();
+      children[pos] = n;
+      return new CNode(bitmap, children, gen);
+    }
+
+    CNode insertedAt(int pos, long bit, INode n, Gen gen) {
+      INode[] children = new INode[this.children.length + 1];
+      System.arraycopy(this.children, 0, children, 0, pos);
+      children[pos] = n;
+      System.arraycopy(this.children, pos, children, pos + 1, this.children.length - pos);
+      return new CNode(bitmap | bit, children, gen);
+    }
+
+    CNode removedAt(int pos, long bit, Gen gen) {
+      INode[] children = new INode[this.children.length - 1];
+      System.arraycopy(this.children, 0, children, 0, pos);
+      System.arraycopy(this.children, pos + 1, children, pos, children.length - pos);
+      return new CNode(bitmap ^ bit, children, gen);
+    }
+  }
+
+  // a tombstone for a branch left with a single child, which is pulled up into its parent
+  static final class TNode extends CNode {
+    TNode(CNode cn) {
+      super(cn.bitmap, cn.children, cn.gen);
+    }
+  }
+
+  // marks a GCAS which must be rolled back to `prev`
+  static final class FailedNode extends MainNode {
+    FailedNode(MainNode p) {
+      prev = p;
+    }
+  }
+
+  // an indirection node, whose `bitmap` and `children` trail its main node and are only read once its generation
+  // has been frozen
+  static final class CBranch extends Nodes.Branch {
+    private static final AtomicReferenceFieldUpdater<CBranch, MainNode> MAIN =
+            AtomicReferenceFieldUpdater.newUpdater(CBranch.class, MainNode.class, "main");
+
+    volatile MainNode main;
+    final Gen gen;
+
+    // the number of entries beneath us, or -1 if it hasn't been computed
+    private volatile long size = -1;
+
+    CBranch(long prefix, int offset, Gen gen, CNode main) {
+      super(prefix, offset, BITS, EPOCH, -1, main.bitmap, main.children);
+      this.gen = gen;
+      this.main = main;
+    }
+
+    boolean casMain(MainNode oldVal, MainNode newVal) {
+      return MAIN.compareAndSet(this, oldVal, newVal);
+    }
+
+    // only called once we're frozen, so it's computed once and kept
+    @Override
+    public long count() {
+      long n = size;
+      if (n < 0) {
+        n = 0;
+        for (INode c : children) {
+          n += c.count();
+        }
+        size = n;
+      }
+      return n;
+    }
+  }
+
+  // a pending swap of the root, which only commits if the old root's main node is still `expected`
+  static final class Descriptor {
+    final CBranch old, next;
+    final MainNode expected;
+    volatile boolean committed;
+
+    Descriptor(CBranch old, MainNode expected, CBranch next) {
+      this.old = old;
+      this.expected = expected;
+      this.next = next;
+    }
+  }
+
+  private static final AtomicReferenceFieldUpdater<Ctrie, Object> ROOT =
+          AtomicReferenceFieldUpdater.newUpdater(Ctrie.class, Object.class, "root");
+
+  // a CBranch, or a Descriptor while a snapshot is being taken
+  private volatile Object root;
+
+  public Ctrie() {
+    Gen gen = new Gen(null);
+    this.root = new CBranch(0, ROOT_OFFSET, gen, new CNode(0, NO_CHILDREN, gen));
+  }
+
+  private Ctrie(CBranch root) {
+    this.root = root;
+  }
+
+  // GCAS, which only commits a new main node if the root's generation hasn't changed in the meantime
+
+  private MainNode read(CBranch in) {
+    MainNode m = in.main;
+    return m.prev == null ? m : complete(in, m);
+  }
+
+  private MainNode complete(CBranch in, MainNode m) {
+    while (true) {
+      if (m == null) {
+        return null;
+      }
+
+      MainNode prev = m.prev;
+      CBranch root = readRoot(true);
+      if (prev == null) {
+        return m;
+      }
+
+      if (prev instanceof FailedNode) {
+        if (in.casMain(m, prev.prev)) {
+          return prev.prev;
+        }
+        m = in.main;
+      } else if (root.gen == in.gen) {
+        if (m.casPrev(prev, null)) {
+          return m;
+        }
+      } else {
+        m.casPrev(prev, new FailedNode(prev));
+        m = in.main;
+      }
+    }
+  }
+
+  // only called by a write registered with `in.gen`, which publishes the new main node before it finishes
+  private boolean gcas(CBranch in, MainNode oldVal, CNode newVal) {
+    newVal.prev = oldVal;
+    if (in.casMain(oldVal, newVal)) {
+      complete(in, newVal);
+      if (newVal.prev == null) {
+        publish(in);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // copies the committed main node into the branch's fields, until no other write has committed another in the
+  // meantime, so whichever write publishes last leaves them current
+  private void publish(CBranch in) {
+    while (true) {
+      CNode cn = (CNode) read(in);
+      in.bitmap = cn.bitmap;
+      in.children = cn.children;
+      if (in.main == cn) {
+        return;
+      }
+    }
+  }
+
+  // RDCSS, which swaps the root only if its main node hasn't changed in the meantime
+
+  private CBranch readRoot(boolean abort) {
+    Object r = root;
+    return r instanceof CBranch ? (CBranch) r : completeRoot(abort);
+  }
+
+  private CBranch completeRoot(boolean abort) {
+    while (true) {
+      Object r = root;
+      if (r instanceof CBranch) {
+        return (CBranch) r;
+      }
+
+      Descriptor d = (Descriptor) r;
+      if (abort) {
+        if (ROOT.compareAndSet(this, d, d.old)) {
+          return d.old;
+        }
+      } else if (read(d.old) == d.expected) {
+        if (ROOT.compareAndSet(this, d, d.next)) {
+          d.committed = true;
+          return d.next;
+        }
+      } else if (ROOT.compareAndSet(this, d, d.old)) {
+        return d.old;
+      }
+    }
+  }
+
+  private boolean swapRoot(CBranch old, MainNode expected, CBranch next) {
+    Descriptor d = new Descriptor(old, expected, next);
+    if (ROOT.compareAndSet(this, old, d)) {
+      completeRoot(false);
+      return d.committed;
+    }
+    return false;
+  }
+
+  private CBranch copyToGen(CBranch in, Gen gen) {
+    return new CBranch(in.prefix, in.offset, gen, (CNode) read(in));
+  }
+
+  private CNode renewed(CNode cn, Gen gen) {
+    INode[] children = cn.children.clone();
+    for (int i = 0; i < children.length; i++) {
+      if (children[i] instanceof CBranch) {
+        children[i] = copyToGen((CBranch) children[i], gen);
+      }
+    }
+    return new CNode(cn.bitmap, children, gen);
+  }
+
+  // compaction
+
+  // every branch but the root sits beneath a slot of its parent, so is below the root's offset
+  private static CNode contracted(CBranch in, CNode cn) {
+    return in.offset < ROOT_OFFSET && cn.children.length == 1 ? new TNode(cn) : cn;
+  }
+
+  // pulls up any child left alone beneath a tombstone
+  private CNode compressed(CBranch in, CNode cn, Gen gen) {
+    INode[] children = cn.children.clone();
+    for (int i = 0; i < children.length; i++) {
+      if (children[i] instanceof CBranch) {
+        MainNode m = read((CBranch) children[i]);
+        if (m instanceof TNode) {
+          children[i] = ((TNode) m).children[0];
+        }
+      }
+    }
+    return contracted(in, new CNode(cn.bitmap, children, gen));
+  }
+
+  private void clean(CBranch in, Gen gen) {
+    MainNode m = read(in);
+    if (!(m instanceof TNode)) {
+      gcas(in, m, compressed(in, (CNode) m, gen));
+    }
+  }
+
+  private void cleanParent(CBranch in, TNode tn, CBranch parent, long k, Gen startGen) {
+    while (true) {
+      MainNode m = read(parent);
+      if (m instanceof TNode) {
+        return;
+      }
+
+      CNode cn = (CNode) m;
+      long bit = 1L << parent.indexOf(k);
+      if ((cn.bitmap & bit) == 0) {
+        return;
+      }
+      int pos = Long.bitCount(cn.bitmap & (bit - 1));
+      if (cn.children[pos] != in
+              || gcas(parent, cn, contracted(parent, cn.updatedAt(pos, tn.children[0], in.gen)))
+              || readRoot(false).gen != startGen) {
+        return;
+      }
+    }
+  }
+
+  // a branch above `n` and the new leaf `leaf`, whose keys differ above the bits `n` shares
+  private static CBranch join(INode n, long prefix, Nodes.Leaf leaf, Gen gen) {
+    int offset = Nodes.offset(leaf.key, prefix, BITS);
+    long a = 1L << ((prefix >>> offset) & ((1 << BITS) - 1)), b = 1L << ((leaf.key >>> offset) & ((1 << BITS) - 1));
+    return new CBranch(leaf.key, offset, gen, new CNode(a | b, a < b ? new INode[] {n, leaf} : new INode[] {leaf, n}, gen));
+  }
+
+  // operations, each of which returns RESTART if it must be retried from the root
+
+  // returns the previous value, or NOT_FOUND if there wasn't one
+  private Object insert(CBranch in, long k, Object v, boolean onlyIfAbsent, CBranch parent, Gen startGen) {
+    while (true) {
+      MainNode m = read(in);
+      if (m instanceof TNode) {
+        clean(parent, in.gen);
+        return RESTART;
+      }
+
+      CNode cn = (CNode) m;
+      long bit = 1L << in.indexOf(k);
+      int pos = Long.bitCount(cn.bitmap & (bit - 1));
+      if ((cn.bitmap & bit) == 0) {
+        CNode rn = cn.gen == in.gen ? cn : renewed(cn, in.gen);
+        return gcas(in, cn, rn.insertedAt(pos, bit, new Nodes.Leaf(k, v), in.gen)) ? NOT_FOUND : RESTART;
+      }
+
+      INode sub = cn.children[pos];
+      if (sub instanceof Nodes.Leaf) {
+        Nodes.Leaf leaf = (Nodes.Leaf) sub;
+        if (leaf.key == k) {
+          return onlyIfAbsent
+                  ? leaf.value
+                  : gcas(in, cn, cn.updatedAt(pos, new Nodes.Leaf(k, v), in.gen)) ? leaf.value : RESTART;
+        }
+
+        // a different key in the same slot, so put both beneath a new branch
+        CNode rn = cn.gen == in.gen ? cn : renewed(cn, in.gen);
+        CBranch child = join(leaf, leaf.key, new Nodes.Leaf(k, v), in.gen);
+        return gcas(in, cn, rn.updatedAt(pos, child, in.gen)) ? NOT_FOUND : RESTART;
+      }
+
+      CBranch child = (CBranch) sub;
+      if (!child.covers(k)) {
+        // the branch in our slot doesn't reach `k`, so put it and the new entry beneath a branch above it
+        CNode rn = cn.gen == in.gen ? cn : renewed(cn, in.gen);
+        CBranch joined = join(child, child.prefix, new Nodes.Leaf(k, v), in.gen);
+        return gcas(in, cn, rn.updatedAt(pos, joined, in.gen)) ? NOT_FOUND : RESTART;
+      } else if (child.gen == startGen) {
+        parent = in;
+        in = child;
+      } else if (!gcas(in, cn, renewed(cn, startGen))) {
+        return RESTART;
+      }
+    }
+  }
+
+  // returns the removed value, or NOT_FOUND if there wasn't one
+  private Object remove(CBranch in, long k, CBranch parent, Gen startGen) {
+    while (true) {
+      MainNode m = read(in);
+      if (m instanceof TNode) {
+        clean(parent, in.gen);
+        return RESTART;
+      }
+
+      CNode cn = (CNode) m;
+      long bit = 1L << in.indexOf(k);
+      if ((cn.bitmap & bit) == 0) {
+        return NOT_FOUND;
+      }
+
+      int pos = Long.bitCount(cn.bitmap & (bit - 1));
+      INode sub = cn.children[pos];
+      Object result;
+      if (sub instanceof Nodes.Leaf) {
+        Nodes.Leaf leaf = (Nodes.Leaf) sub;
+        if (leaf.key != k) {
+          return NOT_FOUND;
+        }
+        result = gcas(in, cn, contracted(in, cn.removedAt(pos, bit, in.gen))) ? leaf.value : RESTART;
+      } else {
+        CBranch child = (CBranch) sub;
+        if (!child.covers(k)) {
+          return NOT_FOUND;
+        } else if (child.gen != startGen) {
+          if (gcas(in, cn, renewed(cn, startGen))) {
+            continue;
+          }
+          return RESTART;
+        }
+        result = remove(child, k, in, startGen);
+      }
+
+      // if we've been left with a single child, pull it up into our parent
+      if (result != NOT_FOUND && result != RESTART && parent != null) {
+        MainNode n = read(in);
+        if (n instanceof TNode) {
+          cleanParent(in, (TNode) n, parent, k, startGen);
+        }
+      }
+      return result;
+    }
+  }
+
+  // public API
+
+  // never writes, so it neither registers with a generation nor copies the branches it passes through.  A tombstone
+  // still holds its branch's only child, and a branch from an older generation holds what it did when it was last
+  // reached from the root.
+  public Object get(long k, Object notFound) {
+    CBranch in = readRoot(false);
+    while (true) {
+      CNode cn = (CNode) read(in);
+      long bit = 1L << in.indexOf(k);
+      if ((cn.bitmap & bit) == 0) {
+        return notFound;
+      }
+
+      INode sub = cn.children[Long.bitCount(cn.bitmap & (bit - 1))];
+      if (sub instanceof Nodes.Leaf) {
+        Nodes.Leaf leaf = (Nodes.Leaf) sub;
+        return leaf.key == k ? leaf.value : notFound;
+      }
+
+      in = (CBranch) sub;
+      if (!in.covers(k)) {
+        return notFound;
+      }
+    }
+  }
+
+  private Object insert(long k, Object v, boolean onlyIfAbsent) {
+    while (true) {
+      CBranch r = readRoot(false);
+      Gen gen = r.gen;
+      int stripe = gen.enter();
+      try {
+        // a snapshot may have replaced the root before we registered, in which case it won't wait for us
+        if (readRoot(false) == r) {
+          Object prev = insert(r, k, v, onlyIfAbsent, null, gen);
+          if (prev != RESTART) {
+            if (prev == NOT_FOUND) {
+              gen.added(1);
+            }
+            return prev;
+          }
+        }
+      } finally {
+        gen.exit(stripe);
+      }
+    }
+  }
+
+  // returns the previous value, or null if there wasn't one
+  public Object put(long k, Object v) {
+    Object prev = insert(k, v, false);
+    return prev == NOT_FOUND ? null : prev;
+  }
+
+  // returns the current value if there is one, and otherwise adds `v` and returns null
+  public Object putIfAbsent(long k, Object v) {
+    Object prev = insert(k, v, true);
+    return prev == NOT_FOUND ? null : prev;
+  }
+
+  // returns the value for `k`, first adding the result of `(f k)` if there is none.  If threads race to add the same
+  // key, `f` may be called by each of them, but only one value is kept and returned to all of them.
+  public Object computeIfAbsent(long k, IFn f) {
+    Object v = get(k, NOT_FOUND);
+    if (v != NOT_FOUND) {
+      return v;
+    }
+    v = f.invoke(k);
+    Object prev = insert(k, v, true);
+    return prev == NOT_FOUND ? v : prev;
+  }
+
+  // returns the removed value, or null if there wasn't one
+  public Object remove(long k) {
+    while (true) {
+      CBranch r = readRoot(false);
+      Gen gen = r.gen;
+      int stripe = gen.enter();
+      try {
+        if (readRoot(false) == r) {
+          Object v = remove(r, k, null, gen);
+          if (v != RESTART) {
+            if (v == NOT_FOUND) {
+              return null;
+            }
+            gen.added(-1);
+            return v;
+          }
+        }
+      } finally {
+        gen.exit(stripe);
+      }
+    }
+  }
+
+  // the number of entries, which is kept by each generation rather than counted.  Like any read it may or may not
+  // reflect writes still in progress.
+  public long count() {
+    return readRoot(false).gen.count();
+  }
+
+  // reduces over the entries in ascending order of their keys, calling `f` with the accumulator, key, and value.
+  // This doesn't take a snapshot, so entries added or removed during the reduction may or may not be seen.
+  public Object kvreduce(IFn f, Object init) {
+    Object acc = reduce(readRoot(false), f, init, true);
+    return RT.isReduced(acc) ? ((IDeref) acc).deref() : acc;
+  }
+
+  private Object reduce(CBranch in, IFn f, Object acc, boolean root) {
+    CNode cn = (CNode) read(in);
+    INode[] children = cn.children;
+
+    // the root's slots for negative keys come after those for positive keys, but are visited first
+    int n = children.length, start = root && n > 0 ? Long.bitCount(cn.bitmap & 0xFFL) % n : 0;
+    for (int i = 0; i < n; i++) {
+      INode sub = children[(start + i) % n];
+      if (sub instanceof Nodes.Leaf) {
+        acc = f.invoke(acc, ((Nodes.Leaf) sub).key, ((Nodes.Leaf) sub).value);
+      } else {
+        acc = reduce((CBranch) sub, f, acc, false);
+      }
+      if (RT.isReduced(acc)) {
+        break;
+      }
+    }
+    return acc;
+  }
+
+  // snapshots
+
+  // installs a new generation at the root, and returns the old root once every write begun in its generation has
+  // finished, at which point its branches' fields are final
+  private CBranch freeze(Ctrie[] copy) {
+    while (true) {
+      CBranch r = readRoot(false);
+      MainNode expected = read(r);
+      CBranch next = copyToGen(r, new Gen(r.gen));
+      if (swapRoot(r, expected, next)) {
+        CBranch other = copy == null ? null : copyToGen(r, new Gen(r.gen));
+        r.gen.quiesce();
+
+        // settle the new generations' counts, so they don't keep the old one around
+        next.gen.count();
+        if (other != null) {
+          other.gen.count();
+          copy[0] = new Ctrie(other);
+        }
+        return r;
+      }
+    }
+  }
+
+  // an independent copy of the map which can be modified, in constant time, once any writes in progress have
+  // finished
+  public Ctrie snapshot() {
+    Ctrie[] copy = new Ctrie[1];
+    freeze(copy);
+    return copy[0];
+  }
+
+  // a consistent snapshot of the entries as a persistent trie, in constant time once any writes in progress have
+  // finished.  Our root holds both positive and negative keys, so is split in two as in `Nodes.fromSorted`.
+  public INode toNode() {
+    CBranch r = freeze(null);
+    int split = Long.bitCount(r.bitmap & 0xFFL);
+    INode pos = frozen(0, r.bitmap & 0xFFL, Arrays.copyOfRange(r.children, 0, split), r.gen);
+    INode neg = frozen(-1, r.bitmap & ~0xFFL, Arrays.copyOfRange(r.children, split, r.children.length), r.gen);
+    return pos == null && neg == null ? Nodes.Empty.EMPTY
+            : pos == null ? neg
+            : neg == null ? pos
+            : new Nodes.BinaryBranch(neg, pos);
+  }
+
+  private static INode frozen(long prefix, long bitmap, INode[] children, Gen gen) {
+    switch (children.length) {
+      case 0:
+        return null;
+      case 1:
+        return children[0];
+      default:
+        return new CBranch(prefix, ROOT_OFFSET, gen, new CNode(bitmap, children, gen));
+    }
+  }
+}
@@ -20,15 +20,44 @@ public interface INode {
     }
 
     long count();
+
+    // the number of entries whose keys are less than `k`, and the leaf holding the entry at `idx` in ascending order
+    // of the keys (or null if there is none), where a leaf holding an ISet container counts as many entries as the
+    // container.  Both descend through the counts of each branch.
+    long rank(long k);
+    INode select(long idx);
+
+    // the leaf with the greatest key at or below `k`, or the least key at or above it, or null if there is none
+    INode floor(long k);
+    INode ceiling(long k);
     Iterator iterator(IterationType type, boolean reverse);
     INode range(long min, long max);
 
     INode merge(INode node, long epoch, IFn f);
+
+    // keys present in both (or only this) node, where `f` combines the values of shared keys and may return null to
+    // drop them.  Identical subtrees are assumed to intersect to themselves, and to have an empty difference.
+    INode intersection(INode node, long epoch, IFn f);
+    INode difference(INode node, long epoch, IFn f);
     INode assoc(long k, long epoch, IFn f, Object v);
     INode dissoc(long k, long epoch);
     INode update(long k, long epoch, IFn f);
     Object get(long k, Object defaultVal);
 
+    // unboxed variants, which store values in LongLeaf nodes
+    INode assocLong(long k, long epoch, IFn f, long v);
+    INode updateLong(long k, long epoch, IFn f);
+    long getLong(long k, long defaultVal);
+
+    // set operations, where each leaf holds an ISet container and `val` is the offset within that container
+    INode addElement(long k, long epoch, short val);
+    INode removeElement(long k, long epoch, short val);
+
+    // the sum of the hashes of every entry, per `hasheq` if `equiv` and per `hashCode` otherwise, where a leaf holding
+    // an ISet container hashes each element offset by its key shifted left by `shift`.  Branches cache this, so a given
+    // tree should always be hashed with the same `shift`.
+    int hash(boolean equiv, int shift);
+
     Object kvreduce(IFn f, Object init);
     Object reduce(IFn f, Object init);
     Object fold(long n, IFn combiner, IFn reducer, IFn fjtask, IFn fjfork, IFn fjjoin);
@@ -9,7 +9,7 @@
 package clojure.data.int_map;
 
 import java.util.BitSet;
-import java.util.Iterator;
+import java.util.PrimitiveIterator;
 
 public interface ISet {
   ISet add(long epoch, long val);
@@ -17,7 +17,7 @@ public interface ISet {
   boolean contains(long val);
 
   ISet range(long epoch, long min, long max);
-  Iterator elements(long offset, boolean reverse);
+  PrimitiveIterator.OfLong elements(long offset, boolean reverse);
   long count();
 
   BitSet toBitSet();
@@ -25,4 +25,5 @@ public interface ISet {
   ISet intersection(long epoch, ISet sv);
   ISet union(long epoch, ISet sv);
   ISet difference(long epoch, ISet sv);
+  ISet xor(long epoch, ISet sv);
 }
@@ -9,100 +9,1290 @@
 package clojure.data.int_map;
 
 import clojure.lang.AFn;
+import clojure.lang.IFn;
 import clojure.lang.MapEntry;
+import clojure.lang.Murmur3;
+import clojure.lang.RT;
 
 import java.util.*;
+import java.util.function.LongConsumer;
 
 public class IntSet implements ISet {
 
-  public class BitSetContainer implements ISet {
+  // a RunContainer costs 4 bytes per run, and a BitSetContainer 8 bytes per word up to its highest element
+  static int maxRuns(int maxVal) {
+    return ((maxVal >> 6) + 1) << 1;
+  }
+
+  // an ArrayContainer costs 2 bytes per element, and a BitSetContainer 8 bytes per word up to its highest element
+  // plus roughly 24 bytes for the container and its array
+  static int maxArraySize(int maxVal) {
+    return 12 + (((maxVal >> 6) + 1) << 2);
+  }
+
+  // returns the most compact container holding the elements in `words`, which must not be shared, and are kept as-is
+  // if they're the most compact encoding.  Runs are counted a word at a time, as the elements which don't follow
+  // another.
+  static ISet compact(long epoch, long[] words) {
+    int cardinality = 0, numRuns = 0, length = 0;
+    long carry = 0;
+    for (int i = 0; i < words.length; i++) {
+      long w = words[i];
+      if (w != 0) {
+        cardinality += Long.bitCount(w);
+        numRuns += Long.bitCount(w & ~((w << 1) | carry));
+        length = (i << 6) + 64 - Long.numberOfLeadingZeros(w);
+      }
+      carry = w >>> 63;
+    }
+
+    if (cardinality == 0) {
+      return null;
+    } else if (cardinality == 1) {
+      return new SingleContainer((short) (length - 1));
+    }
+
+    // runs are only worthwhile if they're smaller than both the array and bitset encodings
+    if (numRuns <= Math.min(maxRuns(length - 1), cardinality >> 1)) {
+      short[] runs = new short[numRuns << 1];
+      int start = 0, end = 1;
+      carry = 0;
+      for (int i = 0; i < words.length; i++) {
+        long w = words[i];
+        long next = i + 1 < words.length ? words[i + 1] : 0;
+        for (long s = w & ~((w << 1) | carry); s != 0; s &= s - 1, start += 2) {
+          runs[start] = (short) ((i << 6) + Long.numberOfTrailingZeros(s));
+        }
+        for (long e = w & ~((w >>> 1) | (next << 63)); e != 0; e &= e - 1, end += 2) {
+          runs[end] = (short) ((i << 6) + Long.numberOfTrailingZeros(e));
+        }
+        carry = w >>> 63;
+      }
+      return new RunContainer(epoch, runs, numRuns);
+    } else if (cardinality <= maxArraySize(length - 1)) {
+      short[] vals = new short[cardinality];
+      int idx = 0;
+      for (int i = 0; i < words.length; i++) {
+        for (long w = words[i]; w != 0; w &= w - 1) {
+          vals[idx++] = (short) ((i << 6) + Long.numberOfTrailingZeros(w));
+        }
+      }
+      return new ArrayContainer(epoch, vals, cardinality);
+    }
+
+    int numWords = (length + 63) >> 6;
+    return new BitSetContainer(epoch, numWords == words.length ? words : Arrays.copyOf(words, numWords), cardinality);
+  }
+
+  static ISet compact(long epoch, BitSet bitSet) {
+    return compact(epoch, bitSet.toLongArray());
+  }
+
+  // operations on the words of a bitset, where any word past the end of the array is empty
+
+  // a container's words, which are shared if it's a bitset and must not be modified
+  static long[] wordsOf(ISet c) {
+    return c instanceof BitSetContainer ? ((BitSetContainer) c).words : ((Container) c).toWords();
+  }
+
+  static boolean isEmpty(long[] words) {
+    for (long w : words) {
+      if (w != 0) return false;
+    }
+    return true;
+  }
+
+  static int nextSetBit(long[] words, int from) {
+    int i = from >> 6;
+    if (i >= words.length) {
+      return -1;
+    }
+    for (long w = words[i] & (-1L << from); ; w = words[i]) {
+      if (w != 0) {
+        return (i << 6) + Long.numberOfTrailingZeros(w);
+      } else if (++i == words.length) {
+        return -1;
+      }
+    }
+  }
+
+  static int previousSetBit(long[] words, int from) {
+    if (from < 0) {
+      return -1;
+    }
+    int i = from >> 6;
+    long w;
+    if (i >= words.length) {
+      i = words.length - 1;
+      w = i < 0 ? 0 : words[i];
+    } else {
+      w = words[i] & (-1L >>> (63 - (from & 63)));
+    }
+    while (true) {
+      if (w != 0) {
+        return (i << 6) + 63 - Long.numberOfLeadingZeros(w);
+      } else if (--i < 0) {
+        return -1;
+      }
+      w = words[i];
+    }
+  }
+
+  // the number of elements in [from, to)
+  static int cardinality(long[] words, int from, int to) {
+    to = Math.min(to, words.length << 6);
+    if (from >= to) {
+      return 0;
+    }
+    int i = from >> 6, j = (to - 1) >> 6;
+    long first = -1L << from, last = -1L >>> -to;
+    if (i == j) {
+      return Long.bitCount(words[i] & first & last);
+    }
+    int n = Long.bitCount(words[i] & first) + Long.bitCount(words[j] & last);
+    for (int k = i + 1; k < j; k++) {
+      n += Long.bitCount(words[k]);
+    }
+    return n;
+  }
+
+  // clears the bits in [from, to)
+  static void clearRange(long[] words, int from, int to) {
+    to = Math.min(to, words.length << 6);
+    if (from >= to) {
+      return;
+    }
+    int i = from >> 6, j = (to - 1) >> 6;
+    long first = -1L << from, last = -1L >>> -to;
+    if (i == j) {
+      words[i] &= ~(first & last);
+      return;
+    }
+    words[i] &= ~first;
+    for (int k = i + 1; k < j; k++) {
+      words[k] = 0;
+    }
+    words[j] &= ~last;
+  }
+
+  // the elements within a single leaf of the trie, which the trie weighs by their count so that the number of
+  // elements beneath any branch is known
+  public static abstract class Container implements ISet {
+
+    // the sum of the hashes of our elements, each offset by `base`, per `hasheq` if `equiv` and `hashCode` otherwise
+    abstract int hash(long base, boolean equiv);
+
+    // reduces over our elements, each offset by `base`, stopping early if `f` returns a reduced value
+    abstract Object reduce(IFn f, Object init, long base);
+
+    // the number of our elements less than `val`, and our element at `idx` in ascending order
+    abstract int rank(int val);
+    abstract int select(int idx);
+
+    // our greatest element at or below `val`, or our least at or above it, or -1 if there is none
+    abstract int floor(int val);
+    abstract int ceiling(int val);
+
+    // our greatest element
+    abstract int max();
+
+    // adds our elements to `words`, which must be long enough to hold them, or removes those of its elements we don't
+    // contain
+    abstract void or(long[] words);
+
+    void and(long[] words) {
+      for (int i = 0; i < words.length; i++) {
+        for (long w = words[i]; w != 0; w &= w - 1) {
+          if (!contains((i << 6) + Long.numberOfTrailingZeros(w))) words[i] &= ~(w & -w);
+        }
+      }
+    }
+
+    // our elements as the words of a bitset, which aren't shared
+    long[] toWords() {
+      long[] words = new long[(max() >> 6) + 1];
+      or(words);
+      return words;
+    }
+
+    // the number of elements we share with `c`, which is found without building the intersection
+    abstract int intersectionCount(Container c);
+
+    boolean intersects(Container c) {
+      return intersectionCount(c) > 0;
+    }
+
+    public ISet xor(long epoch, ISet sv) {
+      if (sv instanceof BitSetContainer || sv instanceof SingleContainer) {
+        return sv.xor(epoch, this);
+      }
+      long[] y = ((Container) sv).toWords();
+      long[] words = Arrays.copyOf(toWords(), Math.max((max() >> 6) + 1, y.length));
+      for (int i = 0; i < y.length; i++) {
+        words[i] ^= y[i];
+      }
+      return compact(epoch, words);
+    }
+
+    boolean equiv(Container c) {
+      if (c == this) {
+        return true;
+      } else if (c.count() != count()) {
+        return false;
+      }
+
+      PrimitiveIterator.OfLong i = elements(0, false);
+      PrimitiveIterator.OfLong j = c.elements(0, false);
+      while (i.hasNext()) {
+        if (i.nextLong() != j.nextLong()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  static int hashElement(long n, boolean equiv) {
+    return equiv ? Murmur3.hashLong(n) : Long.hashCode(n);
+  }
+
+  static Object invokeElement(IFn f, Object init, long n) {
+    return f instanceof IFn.OLO
+            ? ((IFn.OLO) f).invokePrim(init, n)
+            : f.invoke(init, n);
+  }
+
+  public static class BitSetContainer extends Container {
     public final long epoch;
-    public final BitSet bitSet;
+
+    // the words of a bitset, which may end with empty words once elements are removed
+    long[] words;
+    int cardinality;
 
     public BitSetContainer(long epoch, BitSet bitSet) {
+      this(epoch, bitSet.toLongArray(), bitSet.cardinality());
+    }
+
+    BitSetContainer(long epoch, long[] words, int cardinality) {
       this.epoch = epoch;
-      this.bitSet = bitSet;
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    // returns a container for `epoch` with room for at least `numWords` words
+    private BitSetContainer editable(long epoch, int numWords) {
+      if (epoch != this.epoch) {
+        return new BitSetContainer(epoch, Arrays.copyOf(words, Math.max(words.length, numWords)), cardinality);
+      } else if (words.length < numWords) {
+        words = Arrays.copyOf(words, numWords);
+      }
+      return this;
+    }
+
+    int min() {
+      return nextSetBit(words, 0);
+    }
+
+    int max() {
+      return previousSetBit(words, Integer.MAX_VALUE);
     }
 
     public ISet add(long epoch, long val) {
+      if (contains(val)) {
+        return this;
+      }
+
+      int i = (short) val;
+      BitSetContainer c = editable(epoch, (i >> 6) + 1);
+      c.words[i >> 6] |= 1L << i;
+      c.cardinality++;
+
+      // once the elements are contiguous, a single run is far more compact.  Finding our bounds scans the words, so
+      // we only do it if the word we've just set could be part of a single run
+      if (c.isBlock(i >> 6)) {
+        int first = c.min();
+        int last = c.max();
+        if (c.cardinality == last - first + 1) {
+          return new RunContainer(epoch, new short[] {(short) first, (short) last}, 1);
+        }
+      }
+      return c;
+    }
+
+    // whether the `j`th word holds a single block of bits, which the words on either side either continue or leave
+    // empty
+    private boolean isBlock(int j) {
+      long w = words[j];
+      long block = w >>> Long.numberOfTrailingZeros(w);
+      if ((block & (block + 1)) != 0) {
+        return false;
+      }
+
+      long prev = j > 0 ? words[j - 1] : 0;
+      long next = j + 1 < words.length ? words[j + 1] : 0;
+      return (prev == 0 || ((w & 1) != 0 && prev < 0))
+              && (next == 0 || (w < 0 && (next & 1) != 0));
+    }
+
+    public ISet remove(long epoch, long val) {
+      if (!contains(val)) {
+        return this;
+      } else if (cardinality == 1) {
+        return null;
+      }
+
+      int i = (short) val;
+      BitSetContainer c = editable(epoch, 0);
+      c.words[i >> 6] &= ~(1L << i);
+      c.cardinality--;
+
+      // only demote well below the threshold, so alternating adds and removes don't convert back and forth
+      if (c.cardinality <= maxArraySize(c.max()) >> 1) {
+        short[] vals = new short[c.cardinality];
+        int idx = 0;
+        for (int j = 0; j < c.words.length; j++) {
+          for (long w = c.words[j]; w != 0; w &= w - 1) {
+            vals[idx++] = (short) ((j << 6) + Long.numberOfTrailingZeros(w));
+          }
+        }
+        return new ArrayContainer(epoch, vals, c.cardinality);
+      }
+      return c;
+    }
+
+    public boolean contains(long val) {
+      int i = (short) val;
+      return (i >> 6) < words.length && (words[i >> 6] & (1L << i)) != 0;
+    }
+
+    // copies only the words up to `max`, and nothing at all if every element is within the range
+    public ISet range(long epoch, long min, long max) {
+      int first = min(), last = max();
+      if (min <= first && max >= last) {
+        return this;
+      } else if (max < first || min > last) {
+        return null;
+      }
+
+      int end = (int) Math.min(max, last) + 1;
+      long[] words = Arrays.copyOf(this.words, ((end - 1) >> 6) + 1);
+      clearRange(words, end, words.length << 6);
+      clearRange(words, 0, (int) Math.max(0, min));
+      return compact(epoch, words);
+    }
+
+    public PrimitiveIterator.OfLong elements(final long offset, final boolean reverse) {
+      return new PrimitiveIterator.OfLong() {
+
+        private int next = reverse ? max() : min();
+
+        public boolean hasNext() {
+          return next >= 0;
+        }
+
+        public long nextLong() {
+          if (next < 0) throw new NoSuchElementException();
+          long val = offset + next;
+          next = reverse ? previousSetBit(words, next - 1) : nextSetBit(words, next + 1);
+          return val;
+        }
+      };
+    }
+
+    public long count() {
+      return cardinality;
+    }
+
+    // counts the bits a word at a time, rather than visiting each one
+    int rank(int val) {
+      return cardinality(words, 0, val);
+    }
+
+    int select(int idx) {
+      for (int i = 0; i < words.length; i++) {
+        long word = words[i];
+        int c = Long.bitCount(word);
+        if (idx < c) {
+          for (; idx > 0; idx--) {
+            word &= word - 1;
+          }
+          return (i << 6) + Long.numberOfTrailingZeros(word);
+        }
+        idx -= c;
+      }
+      throw new IndexOutOfBoundsException();
+    }
+
+    int floor(int val) {
+      return previousSetBit(words, val);
+    }
+
+    int ceiling(int val) {
+      return nextSetBit(words, val);
+    }
+
+    // popcounts the AND of both sets' words
+    int intersectionCount(Container c) {
+      if (!(c instanceof BitSetContainer)) {
+        return c.intersectionCount(this);
+      }
+
+      long[] x = words, y = ((BitSetContainer) c).words;
+      int n = 0;
+      for (int i = Math.min(x.length, y.length) - 1; i >= 0; i--) {
+        n += Long.bitCount(x[i] & y[i]);
+      }
+      return n;
+    }
+
+    boolean intersects(Container c) {
+      if (!(c instanceof BitSetContainer)) {
+        return c.intersects(this);
+      }
+
+      long[] x = words, y = ((BitSetContainer) c).words;
+      for (int i = Math.min(x.length, y.length) - 1; i >= 0; i--) {
+        if ((x[i] & y[i]) != 0) return true;
+      }
+      return false;
+    }
+
+    Object reduce(IFn f, Object init, long base) {
+      for (int i = 0; i < words.length; i++) {
+        for (long w = words[i]; w != 0; w &= w - 1) {
+          init = invokeElement(f, init, base + (i << 6) + Long.numberOfTrailingZeros(w));
+          if (RT.isReduced(init)) return init;
+        }
+      }
+      return init;
+    }
+
+    int hash(long base, boolean equiv) {
+      int hash = 0;
+      for (int i = 0; i < words.length; i++) {
+        for (long w = words[i]; w != 0; w &= w - 1) {
+          hash += hashElement(base + (i << 6) + Long.numberOfTrailingZeros(w), equiv);
+        }
+      }
+      return hash;
+    }
+
+    // with equal counts, any words past the shorter array must be empty if the rest are equal
+    boolean equiv(Container c) {
+      if (!(c instanceof BitSetContainer)) {
+        return super.equiv(c);
+      } else if (c.count() != cardinality) {
+        return false;
+      }
+
+      long[] x = words, y = ((BitSetContainer) c).words;
+      for (int i = Math.min(x.length, y.length) - 1; i >= 0; i--) {
+        if (x[i] != y[i]) return false;
+      }
+      return true;
+    }
+
+    public BitSet toBitSet() {
+      return BitSet.valueOf(words);
+    }
+
+    long[] toWords() {
+      return words.clone();
+    }
+
+    void or(long[] words) {
+      for (int i = Math.min(words.length, this.words.length) - 1; i >= 0; i--) {
+        words[i] |= this.words[i];
+      }
+    }
+
+    void and(long[] words) {
+      for (int i = 0; i < words.length; i++) {
+        words[i] &= i < this.words.length ? this.words[i] : 0;
+      }
+    }
+
+    public ISet xor(long epoch, ISet val) {
+      if (val instanceof SingleContainer) {
+        return val.xor(epoch, this);
+      }
+
+      long[] y = wordsOf(val);
+      long[] words = Arrays.copyOf(this.words, Math.max(this.words.length, y.length));
+      for (int i = 0; i < y.length; i++) {
+        words[i] ^= y[i];
+      }
+      return compact(epoch, words);
+    }
+
+    public ISet intersection(long epoch, ISet val) {
+      if (val instanceof SingleContainer || val instanceof ArrayContainer) {
+        return val.intersection(epoch, this);
+      }
+
+      long[] words = this.words.clone();
+      ((Container) val).and(words);
+      return compact(epoch, words);
+    }
+
+    public ISet union(long epoch, ISet val) {
+      if (val instanceof SingleContainer) {
+        return val.union(epoch, this);
+      }
+
+      Container c = (Container) val;
+      long[] words = Arrays.copyOf(this.words, Math.max(this.words.length, (c.max() >> 6) + 1));
+      c.or(words);
+      return compact(epoch, words);
+    }
+
+    public ISet difference(long epoch, ISet val) {
+      if (val instanceof SingleContainer) {
+        return remove(epoch, ((SingleContainer) val).val);
+      }
+
+      long[] words = this.words.clone();
+      if (val instanceof RunContainer) {
+        RunContainer r = (RunContainer) val;
+        for (int i = 0; i < r.numRuns; i++) {
+          clearRange(words, r.start(i), r.end(i) + 1);
+        }
+      } else if (val instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) val;
+        for (int i = 0; i < a.size; i++) {
+          int v = a.vals[i];
+          if ((v >> 6) < words.length) words[v >> 6] &= ~(1L << v);
+        }
+      } else {
+        long[] y = wordsOf(val);
+        for (int i = Math.min(words.length, y.length) - 1; i >= 0; i--) {
+          words[i] &= ~y[i];
+        }
+      }
+      return compact(epoch, words);
+    }
+  }
+
+  // run-length encoded container, for clustered elements
+  public static class RunContainer extends Container {
+    public final long epoch;
+
+    // inclusive [start, end] pairs, which are sorted and never adjacent
+    short[] runs;
+    int numRuns, cardinality;
+
+    // the number of elements before each run, which is built by the first rank or select and dropped by any edit
+    private volatile int[] ranks;
+
+    public RunContainer(long epoch, short[] runs, int numRuns) {
+      this.epoch = epoch;
+      this.runs = runs;
+      this.numRuns = numRuns;
+      for (int i = 0; i < numRuns; i++) {
+        cardinality += end(i) - start(i) + 1;
+      }
+    }
+
+    int start(int i) {
+      return runs[i << 1];
+    }
+
+    int end(int i) {
+      return runs[(i << 1) + 1];
+    }
+
+    int max() {
+      return end(numRuns - 1);
+    }
+
+    // returns the index of the last run which starts at or before `val`, or -1 if there is none
+    int floorRun(int val) {
+      int lo = 0, hi = numRuns - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (start(mid) <= val) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return hi;
+    }
+
+    private RunContainer editable(long epoch, int extraRuns) {
+      int length = (numRuns + extraRuns) << 1;
+      if (epoch == this.epoch) {
+        ranks = null;
+      }
+      if (epoch == this.epoch && runs.length >= length) {
+        return this;
+      }
+
+      short[] runs = new short[epoch == this.epoch ? length + numRuns : length];
+      System.arraycopy(this.runs, 0, runs, 0, numRuns << 1);
       if (epoch == this.epoch) {
-        bitSet.set((short) val);
+        this.runs = runs;
+        return this;
+      }
+
+      RunContainer c = new RunContainer(epoch, runs, 0);
+      c.numRuns = numRuns;
+      c.cardinality = cardinality;
+      return c;
+    }
+
+    private void insertRun(int i, int start, int end) {
+      System.arraycopy(runs, i << 1, runs, (i + 1) << 1, (numRuns - i) << 1);
+      runs[i << 1] = (short) start;
+      runs[(i << 1) + 1] = (short) end;
+      numRuns++;
+    }
+
+    private void removeRun(int i) {
+      System.arraycopy(runs, (i + 1) << 1, runs, i << 1, (numRuns - i - 1) << 1);
+      numRuns--;
+    }
+
+    // converts to a different container if the runs are no longer the smallest encoding
+    private ISet checkSize(long epoch) {
+      if (cardinality == 1) {
+        return new SingleContainer((short) start(0));
+      } else if (numRuns <= maxRuns(max()) && (numRuns << 1) <= cardinality) {
+        return this;
+      } else if (cardinality > maxArraySize(max())) {
+        return new BitSetContainer(epoch, toWords(), cardinality);
+      }
+
+      short[] vals = new short[cardinality];
+      int idx = 0;
+      for (int i = 0; i < numRuns; i++) {
+        for (int val = start(i); val <= end(i); val++) {
+          vals[idx++] = (short) val;
+        }
+      }
+      return new ArrayContainer(epoch, vals, cardinality);
+    }
+
+    public ISet add(long epoch, long val) {
+      int v = (short) val;
+      int i = floorRun(v);
+      if (i >= 0 && v <= end(i)) {
         return this;
+      }
+
+      boolean joinsLeft = i >= 0 && end(i) + 1 == v;
+      boolean joinsRight = i + 1 < numRuns && start(i + 1) - 1 == v;
+
+      RunContainer c = editable(epoch, joinsLeft || joinsRight ? 0 : 1);
+      if (joinsLeft && joinsRight) {
+        c.runs[(i << 1) + 1] = c.runs[((i + 1) << 1) + 1];
+        c.removeRun(i + 1);
+      } else if (joinsLeft) {
+        c.runs[(i << 1) + 1] = (short) v;
+      } else if (joinsRight) {
+        c.runs[(i + 1) << 1] = (short) v;
       } else {
-        BitSet bitSet = (BitSet) this.bitSet.clone();
-        bitSet.set((short) val);
-        return new BitSetContainer(epoch, bitSet);
+        c.insertRun(i + 1, v, v);
       }
+      c.cardinality++;
+      return c.checkSize(epoch);
     }
 
     public ISet remove(long epoch, long val) {
+      int v = (short) val;
+      int i = floorRun(v);
+      if (i < 0 || v > end(i)) {
+        return this;
+      } else if (cardinality == 1) {
+        return null;
+      }
+
+      int start = start(i);
+      int end = end(i);
+      RunContainer c = editable(epoch, start < v && v < end ? 1 : 0);
+      if (start == end) {
+        c.removeRun(i);
+      } else if (v == start) {
+        c.runs[i << 1] = (short) (v + 1);
+      } else if (v == end) {
+        c.runs[(i << 1) + 1] = (short) (v - 1);
+      } else {
+        c.insertRun(i + 1, v + 1, end);
+        c.runs[(i << 1) + 1] = (short) (v - 1);
+      }
+      c.cardinality--;
+      return c.checkSize(epoch);
+    }
+
+    public boolean contains(long val) {
+      int i = floorRun((int) val);
+      return i >= 0 && val <= end(i);
+    }
+
+    public ISet range(long epoch, long min, long max) {
+      if (min <= start(0) && max() <= max) {
+        return this;
+      }
+
+      short[] runs = new short[numRuns << 1];
+      int n = 0;
+      for (int i = 0; i < numRuns; i++) {
+        int start = (int) Math.max(min, start(i));
+        int end = (int) Math.min(max, end(i));
+        if (start <= end) {
+          runs[n << 1] = (short) start;
+          runs[(n << 1) + 1] = (short) end;
+          n++;
+        }
+      }
+      return runs(epoch, runs, n);
+    }
+
+    public PrimitiveIterator.OfLong elements(final long offset, final boolean reverse) {
+      return new PrimitiveIterator.OfLong() {
+
+        private int run = reverse ? numRuns - 1 : 0;
+        private int next = reverse ? max() : start(0);
+
+        public boolean hasNext() {
+          return reverse ? run >= 0 : run < numRuns;
+        }
+
+        public long nextLong() {
+          if (!hasNext()) throw new NoSuchElementException();
+          long val = offset + next;
+          if (reverse) {
+            if (next > start(run)) {
+              next--;
+            } else if (--run >= 0) {
+              next = end(run);
+            }
+          } else {
+            if (next < end(run)) {
+              next++;
+            } else if (++run < numRuns) {
+              next = start(run);
+            }
+          }
+          return val;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long count() {
+      return cardinality;
+    }
+
+    private int[] ranks() {
+      int[] ranks = this.ranks;
+      if (ranks == null) {
+        ranks = new int[numRuns];
+        for (int i = 1; i < numRuns; i++) {
+          ranks[i] = ranks[i - 1] + end(i - 1) - start(i - 1) + 1;
+        }
+        this.ranks = ranks;
+      }
+      return ranks;
+    }
+
+    // every run before the last one starting below `val` lies entirely below it
+    int rank(int val) {
+      int i = floorRun(val - 1);
+      return i < 0 ? 0 : ranks()[i] + Math.min(end(i), val - 1) - start(i) + 1;
+    }
+
+    // binary-searches for the last run with at most `idx` elements before it
+    int select(int idx) {
+      if (idx < 0 || idx >= cardinality) {
+        throw new IndexOutOfBoundsException();
+      }
+
+      int[] ranks = ranks();
+      int lo = 0, hi = numRuns - 1;
+      while (lo < hi) {
+        int mid = (lo + hi + 1) >>> 1;
+        if (ranks[mid] <= idx) {
+          lo = mid;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return start(lo) + idx - ranks[lo];
+    }
+
+    int floor(int val) {
+      int i = floorRun(val);
+      return i < 0 ? -1 : Math.min(val, end(i));
+    }
+
+    int ceiling(int val) {
+      int i = floorRun(val);
+      return i >= 0 && val <= end(i) ? val : i + 1 < numRuns ? start(i + 1) : -1;
+    }
+
+    // sums the overlaps of our runs with another set of runs, or counts the bits within each run
+    int intersectionCount(Container c) {
+      int n = 0;
+      if (c instanceof RunContainer) {
+        RunContainer r = (RunContainer) c;
+        int i = 0, j = 0;
+        while (i < numRuns && j < r.numRuns) {
+          int lo = Math.max(start(i), r.start(j));
+          int hi = Math.min(end(i), r.end(j));
+          if (lo <= hi) n += hi - lo + 1;
+          if (end(i) < r.end(j)) {
+            i++;
+          } else {
+            j++;
+          }
+        }
+      } else if (c instanceof BitSetContainer) {
+        long[] words = ((BitSetContainer) c).words;
+        for (int i = 0; i < numRuns; i++) {
+          n += cardinality(words, start(i), end(i) + 1);
+        }
+      } else {
+        n = c.intersectionCount(this);
+      }
+      return n;
+    }
+
+    Object reduce(IFn f, Object init, long base) {
+      for (int i = 0; i < numRuns; i++) {
+        for (int n = start(i); n <= end(i); n++) {
+          init = invokeElement(f, init, base + n);
+          if (RT.isReduced(init)) return init;
+        }
+      }
+      return init;
+    }
+
+    int hash(long base, boolean equiv) {
+      int hash = 0;
+      for (int i = 0; i < numRuns; i++) {
+        for (int n = start(i); n <= end(i); n++) {
+          hash += hashElement(base + n, equiv);
+        }
+      }
+      return hash;
+    }
+
+    public BitSet toBitSet() {
+      BitSet bitSet = new BitSet(max() + 1);
+      for (int i = 0; i < numRuns; i++) {
+        bitSet.set(start(i), end(i) + 1);
+      }
+      return bitSet;
+    }
+
+    void or(long[] words) {
+      for (int i = 0; i < numRuns; i++) {
+        Roaring.setRange(words, start(i), end(i));
+      }
+    }
+
+    // clears the gaps between runs
+    void and(long[] words) {
+      int start = 0;
+      for (int i = 0; i < numRuns; i++) {
+        clearRange(words, start, start(i));
+        start = end(i) + 1;
+      }
+      clearRange(words, start, words.length << 6);
+    }
+
+    // returns the most compact container for the first `numRuns` runs in `runs`
+    private static ISet runs(long epoch, short[] runs, int numRuns) {
+      if (numRuns == 0) {
+        return null;
+      } else if (numRuns == 1 && runs[0] == runs[1]) {
+        return new SingleContainer(runs[0]);
+      }
+      return new RunContainer(epoch, runs, numRuns).checkSize(epoch);
+    }
+
+    public ISet intersection(long epoch, ISet sv) {
+      if (!(sv instanceof RunContainer)) {
+        return sv.intersection(epoch, this);
+      }
+
+      RunContainer r = (RunContainer) sv;
+      short[] runs = new short[(numRuns + r.numRuns) << 1];
+      int n = 0, i = 0, j = 0;
+      while (i < numRuns && j < r.numRuns) {
+        int start = Math.max(start(i), r.start(j));
+        int end = Math.min(end(i), r.end(j));
+        if (start <= end) {
+          runs[n << 1] = (short) start;
+          runs[(n << 1) + 1] = (short) end;
+          n++;
+        }
+        if (end(i) < r.end(j)) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      return runs(epoch, runs, n);
+    }
+
+    public ISet union(long epoch, ISet sv) {
+      if (!(sv instanceof RunContainer)) {
+        return sv.union(epoch, this);
+      }
+
+      RunContainer r = (RunContainer) sv;
+      short[] runs = new short[(numRuns + r.numRuns) << 1];
+      int n = 0, i = 0, j = 0;
+      while (i < numRuns || j < r.numRuns) {
+        int start, end;
+        if (j >= r.numRuns || (i < numRuns && start(i) <= r.start(j))) {
+          start = start(i);
+          end = end(i++);
+        } else {
+          start = r.start(j);
+          end = r.end(j++);
+        }
+
+        // coalesce overlapping or adjacent runs
+        if (n > 0 && start <= runs[(n << 1) - 1] + 1) {
+          runs[(n << 1) - 1] = (short) Math.max(runs[(n << 1) - 1], end);
+        } else {
+          runs[n << 1] = (short) start;
+          runs[(n << 1) + 1] = (short) end;
+          n++;
+        }
+      }
+      return runs(epoch, runs, n);
+    }
+
+    public ISet difference(long epoch, ISet sv) {
+      if (sv instanceof SingleContainer) {
+        return remove(epoch, ((SingleContainer) sv).val);
+      } else if (!(sv instanceof RunContainer)) {
+        long[] words = toWords();
+        long[] y = wordsOf(sv);
+        for (int i = Math.min(words.length, y.length) - 1; i >= 0; i--) {
+          words[i] &= ~y[i];
+        }
+        return compact(epoch, words);
+      }
+
+      RunContainer r = (RunContainer) sv;
+      short[] runs = new short[(numRuns + r.numRuns) << 1];
+      int n = 0, j = 0;
+      for (int i = 0; i < numRuns; i++) {
+        int start = start(i);
+        int end = end(i);
+        while (j < r.numRuns && r.end(j) < start) {
+          j++;
+        }
+        for (int k = j; start <= end && k < r.numRuns && r.start(k) <= end; k++) {
+          if (r.start(k) > start) {
+            runs[n << 1] = (short) start;
+            runs[(n << 1) + 1] = (short) (r.start(k) - 1);
+            n++;
+          }
+          start = Math.max(start, r.end(k) + 1);
+        }
+        if (start <= end) {
+          runs[n << 1] = (short) start;
+          runs[(n << 1) + 1] = (short) end;
+          n++;
+        }
+      }
+      return runs(epoch, runs, n);
+    }
+  }
+
+  // sorted array container, for sparse elements
+  public static class ArrayContainer extends Container {
+    public final long epoch;
+    short[] vals;
+    int size;
+
+    public ArrayContainer(long epoch, short[] vals, int size) {
+      this.epoch = epoch;
+      this.vals = vals;
+      this.size = size;
+    }
+
+    int max() {
+      return vals[size - 1];
+    }
+
+    int indexOf(long val) {
+      return Arrays.binarySearch(vals, 0, size, (short) val);
+    }
+
+    private ArrayContainer editable(long epoch, int extra) {
+      if (epoch == this.epoch && vals.length >= size + extra) {
+        return this;
+      }
+
+      short[] vals = Arrays.copyOf(this.vals, epoch == this.epoch ? (size + extra) + (size >> 1) : size + extra);
       if (epoch == this.epoch) {
-        bitSet.set((short) val, false);
+        this.vals = vals;
         return this;
+      }
+      return new ArrayContainer(epoch, vals, size);
+    }
+
+    private BitSetContainer toBitSetContainer(long epoch) {
+      return new BitSetContainer(epoch, toWords(), size);
+    }
+
+    public ISet add(long epoch, long val) {
+      int idx = indexOf(val);
+      if (idx >= 0) {
+        return this;
+      }
+
+      idx = -idx - 1;
+      ArrayContainer c = editable(epoch, 1);
+      System.arraycopy(c.vals, idx, c.vals, idx + 1, c.size - idx);
+      c.vals[idx] = (short) val;
+      c.size++;
+
+      if (c.max() - c.vals[0] + 1 == c.size) {
+        return new RunContainer(epoch, new short[] {c.vals[0], (short) c.max()}, 1);
+      } else if (c.size > maxArraySize(c.max())) {
+        return c.toBitSetContainer(epoch);
+      }
+      return c;
+    }
+
+    public ISet remove(long epoch, long val) {
+      int idx = indexOf(val);
+      if (idx < 0) {
+        return this;
+      } else if (size == 2) {
+        return new SingleContainer(vals[1 - idx]);
+      }
+
+      ArrayContainer c = editable(epoch, 0);
+      System.arraycopy(c.vals, idx + 1, c.vals, idx, c.size - idx - 1);
+      c.size--;
+      return c;
+    }
+
+    public boolean contains(long val) {
+      return indexOf(val) >= 0;
+    }
+
+    public ISet range(long epoch, long min, long max) {
+      int lo = 0;
+      while (lo < size && vals[lo] < min) {
+        lo++;
+      }
+      int hi = size;
+      while (hi > lo && vals[hi - 1] > max) {
+        hi--;
+      }
+
+      if (lo == 0 && hi == size) {
+        return this;
+      } else if (lo == hi) {
+        return null;
+      } else if (hi - lo == 1) {
+        return new SingleContainer(vals[lo]);
+      }
+      return new ArrayContainer(epoch, Arrays.copyOfRange(vals, lo, hi), hi - lo);
+    }
+
+    public PrimitiveIterator.OfLong elements(final long offset, final boolean reverse) {
+      return new PrimitiveIterator.OfLong() {
+
+        private int idx = reverse ? size - 1 : 0;
+
+        public boolean hasNext() {
+          return reverse ? idx >= 0 : idx < size;
+        }
+
+        public long nextLong() {
+          if (!hasNext()) throw new NoSuchElementException();
+          return offset + vals[reverse ? idx-- : idx++];
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long count() {
+      return size;
+    }
+
+    int rank(int val) {
+      int idx = Arrays.binarySearch(vals, 0, size, (short) val);
+      return idx >= 0 ? idx : -(idx + 1);
+    }
+
+    int select(int idx) {
+      return vals[idx];
+    }
+
+    int floor(int val) {
+      int idx = Arrays.binarySearch(vals, 0, size, (short) val);
+      idx = idx >= 0 ? idx : -(idx + 1) - 1;
+      return idx < 0 ? -1 : vals[idx];
+    }
+
+    int ceiling(int val) {
+      int idx = Arrays.binarySearch(vals, 0, size, (short) val);
+      idx = idx >= 0 ? idx : -(idx + 1);
+      return idx == size ? -1 : vals[idx];
+    }
+
+    // merges against another array, and otherwise probes `c` with each of our elements
+    int intersectionCount(Container c) {
+      int n = 0;
+      if (c instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) c;
+        int i = 0, j = 0;
+        while (i < size && j < a.size) {
+          if (vals[i] < a.vals[j]) {
+            i++;
+          } else if (vals[i] > a.vals[j]) {
+            j++;
+          } else {
+            n++;
+            i++;
+            j++;
+          }
+        }
+      } else if (c instanceof SingleContainer) {
+        n = c.intersectionCount(this);
       } else {
-        BitSet bitSet = (BitSet) this.bitSet.clone();
-        bitSet.set((short) val, false);
-        return new BitSetContainer(epoch, bitSet);
+        for (int i = 0; i < size; i++) {
+          if (c.contains(vals[i])) n++;
+        }
+      }
+      return n;
+    }
+
+    Object reduce(IFn f, Object init, long base) {
+      for (int i = 0; i < size; i++) {
+        init = invokeElement(f, init, base + vals[i]);
+        if (RT.isReduced(init)) break;
+      }
+      return init;
+    }
+
+    int hash(long base, boolean equiv) {
+      int hash = 0;
+      for (int i = 0; i < size; i++) {
+        hash += hashElement(base + vals[i], equiv);
+      }
+      return hash;
+    }
+
+    public BitSet toBitSet() {
+      BitSet bitSet = new BitSet(max() + 1);
+      for (int i = 0; i < size; i++) {
+        bitSet.set(vals[i]);
       }
+      return bitSet;
     }
 
-    public boolean contains(long val) {
-      return bitSet.get((short) val);
+    void or(long[] words) {
+      for (int i = 0; i < size; i++) {
+        words[vals[i] >> 6] |= 1L << vals[i];
+      }
     }
 
-    public ISet range(long epoch, long min, long max) {
-      BitSet bitSet = (BitSet) this.bitSet.clone();
-
-      int size = bitSet.size();
-      bitSet.set(0, Math.max((short)min, 0), false);
-      if (max < size) {
-        bitSet.set(Math.min((short)max+1, size), size, false);
+    // returns the most compact container for the first `size` elements of `vals`
+    private static ISet vals(long epoch, short[] vals, int size) {
+      if (size == 0) {
+        return null;
+      } else if (size == 1) {
+        return new SingleContainer(vals[0]);
       }
-      return new BitSetContainer(epoch, bitSet);
+      return new ArrayContainer(epoch, vals, size);
     }
 
-    public Iterator elements(long offset, boolean reverse) {
-      List<Long> ns = new ArrayList<Long>(bitSet.cardinality());
-      int idx = 0;
-      while (idx < bitSet.length()) {
-        idx = bitSet.nextSetBit(idx);
-        ns.add(offset + idx);
-        idx++;
+    // finds the first index at or after `idx` whose value is >= `val`, by doubling the stride and then bisecting
+    private static int gallop(short[] vals, int idx, int size, int val) {
+      int stride = 1;
+      int hi = idx;
+      while (hi < size && vals[hi] < val) {
+        idx = hi + 1;
+        hi += stride;
+        stride <<= 1;
       }
-      if (reverse) {
-        Collections.reverse(ns);
+      hi = Math.min(hi, size);
+      while (idx < hi) {
+        int mid = (idx + hi) >>> 1;
+        if (vals[mid] < val) {
+          idx = mid + 1;
+        } else {
+          hi = mid;
+        }
       }
-      return ns.iterator();
+      return idx;
     }
 
-    public long count() {
-      return bitSet.cardinality();
-    }
+    public ISet intersection(long epoch, ISet sv) {
+      if (sv instanceof SingleContainer) {
+        return sv.intersection(epoch, this);
+      }
 
-    public BitSet toBitSet() {
-      return bitSet;
+      short[] vals = new short[size];
+      int n = 0;
+      if (sv instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) sv;
+        ArrayContainer small = a.size < size ? a : this;
+        ArrayContainer large = a.size < size ? this : a;
+        int j = 0;
+        for (int i = 0; i < small.size && j < large.size; i++) {
+          short val = small.vals[i];
+          j = gallop(large.vals, j, large.size, val);
+          if (j < large.size && large.vals[j] == val) {
+            vals[n++] = val;
+          }
+        }
+      } else {
+        for (int i = 0; i < size; i++) {
+          if (sv.contains(this.vals[i])) {
+            vals[n++] = this.vals[i];
+          }
+        }
+      }
+      return vals(epoch, vals, n);
     }
 
-    public ISet intersection(long epoch, ISet val) {
-      BitSet bitSet = (BitSet) this.bitSet.clone();
-      bitSet.and(val.toBitSet());
-      return new BitSetContainer(epoch, bitSet);
-    }
+    public ISet union(long epoch, ISet sv) {
+      if (sv instanceof SingleContainer) {
+        return sv.union(epoch, this);
+      } else if (sv instanceof BitSetContainer) {
+        return sv.union(epoch, this);
+      }
 
-    public ISet union(long epoch, ISet val) {
-      BitSet bitSet = (BitSet) this.bitSet.clone();
-      bitSet.or(val.toBitSet());
-      return new BitSetContainer(epoch, bitSet);
+      Container c = (Container) sv;
+      long[] words = new long[(Math.max(max(), c.max()) >> 6) + 1];
+      c.or(words);
+      or(words);
+      return compact(epoch, words);
     }
 
-    public ISet difference(long epoch, ISet val) {
-      BitSet bitSet = (BitSet) this.bitSet.clone();
-      bitSet.andNot(val.toBitSet());
-      return new BitSetContainer(epoch, bitSet);
+    public ISet difference(long epoch, ISet sv) {
+      short[] vals = new short[size];
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (!sv.contains(this.vals[i])) {
+          vals[n++] = this.vals[i];
+        }
+      }
+      return n == size ? this : vals(epoch, vals, n);
     }
   }
 
-  public class SingleContainer implements ISet {
+  public static class SingleContainer extends Container {
     public final short val;
 
     public SingleContainer(short val) {
@@ -112,11 +1302,14 @@ public class IntSet implements ISet {
     public ISet add(long epoch, long val) {
       if (val == this.val) {
         return this;
+      } else if (val == this.val + 1) {
+        return new RunContainer(epoch, new short[] {this.val, (short) val}, 1);
+      } else if (val == this.val - 1) {
+        return new RunContainer(epoch, new short[] {(short) val, this.val}, 1);
       } else {
-        BitSet bitSet = new BitSet(Math.max((short) val, this.val));
-        bitSet.set((short) val);
-        bitSet.set(this.val);
-        return new BitSetContainer(epoch, bitSet);
+        return val < this.val
+                ? new ArrayContainer(epoch, new short[] {(short) val, this.val}, 2)
+                : new ArrayContainer(epoch, new short[] {this.val, (short) val}, 2);
       }
     }
 
@@ -136,9 +1329,37 @@ public class IntSet implements ISet {
       return 1;
     }
 
-    public Iterator elements(long offset, boolean reverse) {
+    int rank(int val) {
+      return this.val < val ? 1 : 0;
+    }
+
+    int select(int idx) {
+      return val;
+    }
+
+    int floor(int val) {
+      return this.val <= val ? this.val : -1;
+    }
+
+    int ceiling(int val) {
+      return this.val >= val ? this.val : -1;
+    }
+
+    int intersectionCount(Container c) {
+      return c.contains(val) ? 1 : 0;
+    }
+
+    int hash(long base, boolean equiv) {
+      return hashElement(base + val, equiv);
+    }
+
+    Object reduce(IFn f, Object init, long base) {
+      return invokeElement(f, init, base + val);
+    }
+
+    public PrimitiveIterator.OfLong elements(long offset, boolean reverse) {
       final long val = this.val + offset;
-      return new Iterator() {
+      return new PrimitiveIterator.OfLong() {
 
         private boolean isDone = false;
 
@@ -146,7 +1367,7 @@ public class IntSet implements ISet {
           return !isDone;
         }
 
-        public Object next() {
+        public long nextLong() {
           if (isDone) throw new NoSuchElementException();
           isDone = true;
           return val;
@@ -164,6 +1385,18 @@ public class IntSet implements ISet {
       return bitSet;
     }
 
+    int max() {
+      return val;
+    }
+
+    void or(long[] words) {
+      words[val >> 6] |= 1L << val;
+    }
+
+    public ISet xor(long epoch, ISet sv) {
+      return sv.contains(val) ? sv.remove(epoch, val) : sv.add(epoch, val);
+    }
+
     public ISet intersection(long epoch, ISet sv) {
       return sv == null
           ? null
@@ -192,7 +1425,6 @@ public class IntSet implements ISet {
 
   public final INode map;
   public final short leafSize, log2LeafSize;
-  public volatile int count = -1;
 
   public IntSet(short leafSize) {
     this.leafSize = leafSize;
@@ -206,6 +1438,46 @@ public class IntSet implements ISet {
     this.map = map;
   }
 
+  // builds a set from sorted elements, filling each leaf's words directly and building the trie in a single pass
+  public static IntSet fromSorted(short leafSize, long[] vals) {
+    Nodes.checkSorted(vals, false);
+    int log2LeafSize = Nodes.bitLog2(leafSize);
+
+    int numLeaves = 0;
+    for (int i = 0; i < vals.length; i++) {
+      if (i == 0 || (vals[i - 1] >> log2LeafSize) != (vals[i] >> log2LeafSize)) {
+        numLeaves++;
+      }
+    }
+
+    long[] keys = new long[numLeaves];
+    Object[] containers = new Object[numLeaves];
+    int leaf = 0;
+    for (int i = 0; i < vals.length; ) {
+      long key = vals[i] >> log2LeafSize;
+      int end = i + 1;
+      while (end < vals.length && (vals[end] >> log2LeafSize) == key) {
+        end++;
+      }
+
+      int lastOffset = (int) (vals[end - 1] & (leafSize - 1));
+      if (vals[i] == vals[end - 1]) {
+        containers[leaf] = new SingleContainer((short) lastOffset);
+      } else {
+        long[] words = new long[(lastOffset >> 6) + 1];
+        for (int j = i; j < end; j++) {
+          int offset = (int) (vals[j] & (leafSize - 1));
+          words[offset >> 6] |= 1L << offset;
+        }
+        containers[leaf] = compact(0, words);
+      }
+      keys[leaf++] = key;
+      i = end;
+    }
+
+    return new IntSet(leafSize, (short) log2LeafSize, Nodes.fromSorted(keys, containers));
+  }
+
   public int leafSize() {
     return this.leafSize;
   }
@@ -218,35 +1490,21 @@ public class IntSet implements ISet {
     return (short) (val & (leafSize - 1));
   }
 
-  public ISet add(final long epoch, final long val) {
-    INode mapPrime = map.update(mapKey(val), epoch,
-            new AFn() {
-              public Object invoke(Object v) {
-                ISet s = (ISet) v;
-                return s == null ? new SingleContainer(leafOffset(val)) : s.add(epoch, leafOffset(val));
-              }
-            });
+  public ISet add(long epoch, long val) {
+    INode mapPrime = map.addElement(mapKey(val), epoch, leafOffset(val));
     if (mapPrime == map) {
-      count = -1;
       return this;
     } else {
       return new IntSet(leafSize, log2LeafSize, mapPrime);
     }
   }
 
-  public ISet remove(final long epoch, final long val) {
-    INode mapPrime = map.update(mapKey(val), epoch,
-            new AFn() {
-              public Object invoke(Object v) {
-                ISet s = (ISet) v;
-                return s == null ? null : s.remove(epoch, leafOffset(val));
-              }
-            });
+  public ISet remove(long epoch, long val) {
+    INode mapPrime = map.removeElement(mapKey(val), epoch, leafOffset(val));
     if (mapPrime == map) {
-      count = -1;
       return this;
     } else {
-      return new IntSet(leafSize, log2LeafSize, mapPrime);
+      return new IntSet(leafSize, log2LeafSize, mapPrime == null ? Nodes.Empty.EMPTY : mapPrime);
     }
   }
 
@@ -271,49 +1529,102 @@ public class IntSet implements ISet {
     }
 
     INode mapPrime = map.range(mapKey(min), mapKey(max));
-    mapPrime = mapPrime == null
-            ? Nodes.Empty.EMPTY
-            : mapPrime
-            .update(mapKey(min), epoch,
-                    new AFn() {
-                      public Object invoke(Object v) {
-                        return v != null ? ((ISet) v).range(epoch, leafOffset(min), leafSize) : null;
-                      }
-                    })
-            .update(mapKey(max), epoch,
-                    new AFn() {
-                      public Object invoke(Object v) {
-                        return v != null ? ((ISet)v).range(epoch, 0, leafOffset(max)) : null;
-                      }
-                    });
+    if (mapPrime == null) {
+      return new IntSet(leafSize);
+    }
 
-    return new IntSet(leafSize, log2LeafSize, mapPrime);
+    mapPrime = rangeLeaf(rangeLeaf(mapPrime, epoch, mapKey(min), leafOffset(min), leafSize), epoch, mapKey(max), 0, leafOffset(max));
+    return new IntSet(leafSize, log2LeafSize, mapPrime == null ? Nodes.Empty.EMPTY : mapPrime);
   }
 
-  public Iterator elements(final long offset, final boolean reverse) {
-    final Iterator it = map.iterator(INode.IterationType.ENTRIES, reverse);
-    return new Iterator() {
+  // narrows the container at `k` to [min, max], removing it if nothing is left
+  private static INode rangeLeaf(INode node, long epoch, long k, long min, long max) {
+    if (node == null) {
+      return null;
+    }
+
+    ISet set = (ISet) node.get(k, null);
+    if (set == null) {
+      return node;
+    }
+
+    ISet setPrime = set.range(epoch, min, max);
+    return setPrime == set
+            ? node
+            : setPrime == null
+            ? node.dissoc(k, epoch)
+            : node.assoc(k, epoch, null, setPrime);
+  }
+
+  public PrimitiveIterator.OfLong elements(long offset, boolean reverse) {
+    return elements(new Nodes.Cursor(map, INode.IterationType.VALS, reverse), offset, reverse);
+  }
 
-      private Iterator parentIterator = it;
-      private Iterator iterator = null;
+  // the elements at or after `from`, or at or before it if `reverse`
+  public PrimitiveIterator.OfLong elementsFrom(long from, boolean reverse) {
+    return reverse ? elementsWithin(Long.MIN_VALUE, from, true) : elementsWithin(from, Long.MAX_VALUE, false);
+  }
 
-      private void tryAdvance() {
-        while ((iterator == null || !iterator.hasNext()) && parentIterator.hasNext()) {
-          MapEntry entry = (MapEntry) parentIterator.next();
-          ISet set = (ISet) entry.val();
-          long fullOffset = offset + ((Long)entry.key()) << log2LeafSize;
-          iterator = set == null ? null : set.elements(fullOffset, reverse);
+  // the elements within [min, max], which seeks to the leaf holding the first of them and stops after the last
+  public PrimitiveIterator.OfLong elementsWithin(final long min, final long max, final boolean reverse) {
+    final PrimitiveIterator.OfLong it =
+            elements(new Nodes.Cursor(map, INode.IterationType.VALS, reverse, mapKey(reverse ? max : min)), 0, reverse);
+    return new PrimitiveIterator.OfLong() {
+
+      private long next;
+      private boolean hasNext = advance();
+
+      // skips whatever precedes the range in the first leaf
+      private boolean advance() {
+        while (it.hasNext()) {
+          next = it.nextLong();
+          if (reverse ? next < min : next > max) {
+            return false;
+          } else if (reverse ? next <= max : next >= min) {
+            return true;
+          }
         }
+        return false;
       }
 
       public boolean hasNext() {
-        tryAdvance();
-        return iterator == null ? false : iterator.hasNext();
+        return hasNext;
       }
 
-      public Object next() {
-        tryAdvance();
-        return iterator.next();
+      public long nextLong() {
+        if (!hasNext) throw new NoSuchElementException();
+        long val = next;
+        hasNext = advance();
+        return val;
+      }
+    };
+  }
+
+  // the elements within [min, max], which are split off in batches since the range needn't follow the trie
+  public Spliterator.OfLong spliteratorWithin(long min, long max) {
+    return Spliterators.spliterator(elementsWithin(min, max, false), count(min, max), Nodes.Splitter.CHARACTERISTICS);
+  }
+
+  // walks the leaves with a single cursor, stepping through each leaf's container in turn
+  private PrimitiveIterator.OfLong elements(final Nodes.Cursor cursor, final long offset, final boolean reverse) {
+    return new PrimitiveIterator.OfLong() {
+
+      private PrimitiveIterator.OfLong iterator = null;
+
+      public boolean hasNext() {
+        while (iterator == null || !iterator.hasNext()) {
+          if (!cursor.hasNext()) {
+            return false;
+          }
+          long base = offset + (cursor.nextKey() << log2LeafSize);
+          iterator = ((ISet) cursor.value()).elements(base, reverse);
+        }
+        return true;
+      }
+
+      public long nextLong() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return iterator.nextLong();
       }
 
       public void remove() {
@@ -322,18 +1633,283 @@ public class IntSet implements ISet {
     };
   }
 
+  // the greatest element at or below `val`, or null if there is none
+  public Long floor(long val) {
+    long key = mapKey(val);
+    for (INode n = map.floor(key); n != null; n = map.floor(((Nodes.Leaf) n).key - 1)) {
+      Nodes.Leaf leaf = (Nodes.Leaf) n;
+      int e = ((Container) leaf.value).floor(leaf.key == key ? leafOffset(val) : leafSize - 1);
+      if (e >= 0) {
+        return (leaf.key << log2LeafSize) + e;
+      }
+    }
+    return null;
+  }
+
+  // the least element at or above `val`, or null if there is none
+  public Long ceiling(long val) {
+    long key = mapKey(val);
+    for (INode n = map.ceiling(key); n != null; n = map.ceiling(((Nodes.Leaf) n).key + 1)) {
+      Nodes.Leaf leaf = (Nodes.Leaf) n;
+      int e = ((Container) leaf.value).ceiling(leaf.key == key ? leafOffset(val) : 0);
+      if (e >= 0) {
+        return (leaf.key << log2LeafSize) + e;
+      }
+    }
+    return null;
+  }
+
+  // the number of elements less than `val`, which descends through the counts of each branch to the container
+  public long rank(long val) {
+    ISet s = (ISet) map.get(mapKey(val), null);
+    return map.rank(mapKey(val)) + (s == null ? 0 : ((Container) s).rank(leafOffset(val)));
+  }
+
+  // the element at `idx` in ascending order
+  public long select(long idx) {
+    if (idx < 0 || idx >= map.count()) {
+      throw new IndexOutOfBoundsException();
+    }
+    Nodes.Leaf leaf = (Nodes.Leaf) map.select(idx);
+    int offset = (int) (idx - map.rank(leaf.key));
+    return (leaf.key << log2LeafSize) + ((Container) leaf.value).select(offset);
+  }
+
+  // the number of elements shared with `s`, which walks both tries together and only descends where they overlap
+  public long intersectionCount(IntSet s) {
+    return intersectionCount(s, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  // the number of elements within [min, max] shared with `s`, which skips the slots outside the range
+  public long intersectionCount(IntSet s, long min, long max) {
+    if (s.leafSize != leafSize) {
+      throw new IllegalArgumentException("Cannot intersect int-sets of different density.");
+    }
+    return max < min ? 0 : intersectionCount(map, s.map, min, max, false);
+  }
+
+  // true if any element is shared with `s`, which stops at the first one found
+  public boolean intersects(IntSet s) {
+    return intersects(s, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  // true if any element within [min, max] is shared with `s`
+  public boolean intersects(IntSet s, long min, long max) {
+    if (s.leafSize != leafSize) {
+      throw new IllegalArgumentException("Cannot intersect int-sets of different density.");
+    }
+    return max >= min && intersectionCount(map, s.map, min, max, true) > 0;
+  }
+
+  // if `any`, returns as soon as the count is non-zero
+  private long intersectionCount(INode a, INode b, long min, long max, boolean any) {
+    a = Nodes.Strided.unwrap(a);
+    b = Nodes.Strided.unwrap(b);
+
+    if (a == null || b == null || a instanceof Nodes.Empty || b instanceof Nodes.Empty) {
+      return 0;
+    } else if (b instanceof Nodes.Leaf) {
+      INode t = a;
+      a = b;
+      b = t;
+    } else if (b instanceof Nodes.BinaryBranch && a instanceof Nodes.Branch) {
+      INode t = a;
+      a = b;
+      b = t;
+    }
+
+    if (a instanceof Nodes.Leaf) {
+      Nodes.Leaf leaf = (Nodes.Leaf) a;
+      Container l = within(leaf.key, (Container) leaf.value, min, max);
+      Container c = l == null ? null : (Container) b.get(leaf.key, null);
+      if (c == null) {
+        return 0;
+      }
+      return any ? (l.intersects(c) ? 1 : 0) : l.intersectionCount(c);
+    }
+
+    if (a instanceof Nodes.BinaryBranch) {
+      Nodes.BinaryBranch x = (Nodes.BinaryBranch) a;
+      if (b instanceof Nodes.BinaryBranch) {
+        Nodes.BinaryBranch y = (Nodes.BinaryBranch) b;
+        long n = intersectionCount(x.a, y.a, min, max, any);
+        return any && n > 0 ? n : n + intersectionCount(x.b, y.b, min, max, any);
+      }
+      // a branch never mixes negative and non-negative keys
+      return intersectionCount(((Nodes.Branch) b).prefix < 0 ? x.a : x.b, b, min, max, any);
+    }
+
+    Nodes.Branch x = (Nodes.Branch) a, y = (Nodes.Branch) b;
+    if (x.offset < y.offset) {
+      x = y;
+      y = (Nodes.Branch) a;
+    }
+
+    long n = 0;
+    long slots = x.slotsWithin(mapKey(min), mapKey(max));
+    if (x.offset >= y.offset + y.bits) {
+      // `y` falls entirely within a single slot of `x`
+      n = x.covers(y.prefix) && (slots & (1L << x.indexOf(y.prefix))) != 0
+              ? intersectionCount(x.child(x.indexOf(y.prefix)), y, min, max, any)
+              : 0;
+    } else if (x.offset == y.offset && x.bits == y.bits) {
+      if (x.covers(y.prefix)) {
+        for (long shared = x.bitmap & y.bitmap & slots; shared != 0; shared &= shared - 1) {
+          int slot = Long.numberOfTrailingZeros(shared);
+          n += intersectionCount(x.child(slot), y.child(slot), min, max, any);
+          if (any && n > 0) break;
+        }
+      }
+    } else {
+      // the strides differ, so descend through the wider branch until they line up
+      for (slots &= x.bitmap; slots != 0; slots &= slots - 1) {
+        n += intersectionCount(x.child(Long.numberOfTrailingZeros(slots)), y, min, max, any);
+        if (any && n > 0) break;
+      }
+    }
+    return n;
+  }
+
+  // narrows the container at `k` to the elements within [min, max], which only copies it if `k` is at either end of
+  // the range
+  private Container within(long k, Container c, long min, long max) {
+    if (k < mapKey(min) || k > mapKey(max)) {
+      return null;
+    }
+    return (Container) c.range(0,
+            k == mapKey(min) ? leafOffset(min) : 0,
+            k == mapKey(max) ? leafOffset(max) : leafSize - 1);
+  }
+
+  // folds over the elements in parallel, splitting on the branches of the trie and reducing each container directly
+  public Object fold(long n, IFn combiner, final IFn reducer, IFn fjtask, IFn fjfork, IFn fjjoin) {
+    return map.fold(n, combiner,
+            new AFn() {
+              public Object invoke(Object acc, Object k, Object container) {
+                return ((Container) container).reduce(reducer, acc, (Long) k << log2LeafSize);
+              }
+            },
+            fjtask, fjfork, fjjoin);
+  }
+
+  // the elements in ascending order, which splits on the branches of the trie
+  public Spliterator.OfLong spliterator() {
+    return new ElementSpliterator(map, log2LeafSize);
+  }
+
+  static class ElementSpliterator extends Nodes.Splitter implements Spliterator.OfLong {
+    private final short log2LeafSize;
+    private PrimitiveIterator.OfLong elements;
+
+    ElementSpliterator(INode root, short log2LeafSize) {
+      super(root);
+      this.log2LeafSize = log2LeafSize;
+    }
+
+    ElementSpliterator(INode[] nodes, int lo, int hi, long size, short log2LeafSize) {
+      super(nodes, lo, hi, size);
+      this.log2LeafSize = log2LeafSize;
+    }
+
+    Nodes.Splitter create(INode[] nodes, int lo, int hi, long size) {
+      return new ElementSpliterator(nodes, lo, hi, size, log2LeafSize);
+    }
+
+    public boolean tryAdvance(LongConsumer action) {
+      while (elements == null || !elements.hasNext()) {
+        if (!advance()) {
+          return false;
+        }
+        long base = cursor.nextKey() << log2LeafSize;
+        elements = ((ISet) cursor.value()).elements(base, false);
+      }
+      size--;
+      action.accept(elements.nextLong());
+      return true;
+    }
+
+    public Spliterator.OfLong trySplit() {
+      return elements != null && elements.hasNext() ? null : (ElementSpliterator) splitPrefix();
+    }
+
+    public Comparator<? super Long> getComparator() {
+      return null;
+    }
+  }
+
   public long count() {
-    if (count >= 0) {
-      return count;
+    return map.count();
+  }
+
+  // the number of elements within [min, max]
+  public long count(long min, long max) {
+    if (max < min) {
+      return 0;
+    }
+    return (max == Long.MAX_VALUE ? count() : rank(max + 1)) - rank(min);
+  }
+
+  // the sum of the hashes of every element, per `hasheq` if `equiv` and `hashCode` otherwise
+  public int hash(boolean equiv) {
+    return map.hash(equiv, log2LeafSize);
+  }
+
+  // the sum of the hashes of the elements within [min, max]
+  public int hash(boolean equiv, long min, long max) {
+    int hash = 0;
+    if (max >= min) {
+      Nodes.Cursor cursor = new Nodes.Cursor(map, INode.IterationType.VALS, false, mapKey(min));
+      while (cursor.hasNext()) {
+        long k = cursor.nextKey();
+        if (k > mapKey(max)) {
+          break;
+        }
+        Container c = within(k, (Container) cursor.value(), min, max);
+        if (c != null) {
+          hash += c.hash(k << log2LeafSize, equiv);
+        }
+      }
+    }
+    return hash;
+  }
+
+  // reduces the elements within [min, max] in ascending order, a container at a time
+  public Object reduce(IFn f, Object init, long min, long max) {
+    if (max >= min) {
+      Nodes.Cursor cursor = new Nodes.Cursor(map, INode.IterationType.VALS, false, mapKey(min));
+      while (cursor.hasNext()) {
+        long k = cursor.nextKey();
+        if (k > mapKey(max)) {
+          break;
+        }
+        Container c = within(k, (Container) cursor.value(), min, max);
+        if (c != null) {
+          init = c.reduce(f, init, k << log2LeafSize);
+          if (RT.isReduced(init)) {
+            break;
+          }
+        }
+      }
+    }
+    return init;
+  }
+
+  // returns true if `s` has the same elements, which is a walk over both tries if they have the same leaf size
+  public boolean equiv(IntSet s) {
+    if (s.leafSize == leafSize) {
+      return Nodes.equals(map, s.map, true);
+    } else if (s.count() != count()) {
+      return false;
     }
 
-    long cnt = 0;
-    Iterator i =  map.iterator(INode.IterationType.VALS, false);
+    PrimitiveIterator.OfLong i = elements(0, false);
+    PrimitiveIterator.OfLong j = s.elements(0, false);
     while (i.hasNext()) {
-      ISet s = (ISet) i.next();
-      if (s != null) cnt += s.count();
+      if (i.nextLong() != j.nextLong()) {
+        return false;
+      }
     }
-    return cnt;
+    return true;
   }
 
   public BitSet toBitSet() {
@@ -341,40 +1917,28 @@ public class IntSet implements ISet {
   }
 
   public ISet intersection(final long epoch, ISet sv) {
-    IntSet s = (IntSet) sv;
-    Iterator i1 = map.iterator(INode.IterationType.ENTRIES, false);
-    Iterator i2 = s.map.iterator(INode.IterationType.ENTRIES, false);
-
-    // one is empty, so is the intersection
-    if (!i1.hasNext() || !i2.hasNext()) {
-      return new IntSet(leafSize);
+    if (sv instanceof MappedIntSet) {
+      return ((MappedIntSet) sv).intersection(epoch, this);
     }
 
-    INode node = Nodes.Empty.EMPTY;
-
-    MapEntry e1 = (MapEntry) i1.next();
-    MapEntry e2 = (MapEntry) i2.next();
-    while (true) {
-      long k1 = (Long) e1.key();
-      long k2 = (Long) e2.key();
-      if (k1 == k2 && e1.val() != null && e2.val() != null) {
-        node = node.assoc(k1, epoch, null, ((ISet)e1.val()).intersection(epoch, (ISet)e2.val()));
-        if (!i1.hasNext() || !i2.hasNext()) break;
-        e1 = (MapEntry) i1.next();
-        e2 = (MapEntry) i2.next();
-      } else if (k1 < k2) {
-        if (!i1.hasNext()) break;
-        e1 = (MapEntry) i1.next();
-      } else {
-        if (!i2.hasNext()) break;
-        e2 = (MapEntry) i2.next();
-      }
+    IntSet s = (IntSet) sv;
+    if (s.leafSize != leafSize) {
+      throw new IllegalArgumentException("Cannot intersect int-sets of different density.");
     }
-
-    return new IntSet(leafSize, log2LeafSize, node);
+    INode node = map.intersection(s.map, epoch,
+            new AFn() {
+              public Object invoke(Object a, Object b) {
+                return ((ISet) a).intersection(epoch, (ISet) b);
+              }
+            });
+    return new IntSet(leafSize, log2LeafSize, node == null ? Nodes.Empty.EMPTY : node);
   }
 
   public ISet union(final long epoch, ISet sv) {
+    if (sv instanceof MappedIntSet) {
+      return sv.union(epoch, this);
+    }
+
     IntSet s = (IntSet) sv;
     if (s.leafSize != leafSize) {
       throw new IllegalArgumentException("Cannot merge int-sets of different density.");
@@ -390,47 +1954,200 @@ public class IntSet implements ISet {
                     }));
   }
 
-  public ISet difference(final long epoch, ISet sv) {
-    IntSet s = (IntSet) sv;
-    Iterator i1 = map.iterator(INode.IterationType.ENTRIES, false);
-    Iterator i2 = s.map.iterator(INode.IterationType.ENTRIES, false);
+  // multi-way operations, which visit each leaf of every set once rather than rebuilding the trie for each pair
 
-    if (!i1.hasNext() || !i2.hasNext()) {
-      return this;
+  private static void checkDensity(IntSet[] sets, String op) {
+    for (IntSet s : sets) {
+      if (s.leafSize != sets[0].leafSize) {
+        throw new IllegalArgumentException("Cannot " + op + " int-sets of different density.");
+      }
     }
+  }
 
-    INode node = Nodes.Empty.EMPTY;
+  // merges the leaves of several sets in key order, gathering the containers stored under each key.  The sets which
+  // aren't exhausted are kept in a binary heap of their indices, ordered by the key each cursor is on.
+  private static class LeafMerge {
+    private final Nodes.Cursor[] cursors;
+    private final long[] heads;
+    private final int[] heap;
+    private int heapSize;
+    final Container[] containers;
+    int size;
+    long key;
+
+    LeafMerge(IntSet[] sets) {
+      cursors = new Nodes.Cursor[sets.length];
+      heads = new long[sets.length];
+      heap = new int[sets.length];
+      containers = new Container[sets.length];
+      for (int i = 0; i < sets.length; i++) {
+        cursors[i] = new Nodes.Cursor(sets[i].map, INode.IterationType.VALS, false);
+        if (cursors[i].hasNext()) {
+          heads[i] = cursors[i].nextKey();
+          heap[heapSize++] = i;
+        }
+      }
+      for (int i = (heapSize >> 1) - 1; i >= 0; i--) {
+        siftDown(i);
+      }
+    }
 
-    MapEntry e1 = (MapEntry) i1.next();
-    MapEntry e2 = (MapEntry) i2.next();
-    while (true) {
-      long k1 = (Long) e1.key();
-      long k2 = (Long) e2.key();
-
-      if (k1 == k2 && e1.val() != null && e2.val() != null) {
-        node = node.assoc(k1, epoch, null, ((ISet)e1.val()).difference(epoch, (ISet) e2.val()));
-        if (!i1.hasNext() || !i2.hasNext()) break;
-        e1 = (MapEntry) i1.next();
-        e2 = (MapEntry) i2.next();
-      } else if (k1 <= k2 && e1.val() != null) {
-        node = node.assoc(k1, epoch, null, e1.val());
-        if (!i1.hasNext()) break;
-        e1 = (MapEntry) i1.next();
-      } else {
-        if (!i2.hasNext()) {
-          node = node.assoc(k1, epoch, null, e1.val());
+    private void siftDown(int i) {
+      int n = heap[i];
+      long head = heads[n];
+      for (int child = (i << 1) + 1; child < heapSize; child = (i << 1) + 1) {
+        if (child + 1 < heapSize && heads[heap[child + 1]] < heads[heap[child]]) {
+          child++;
+        }
+        if (heads[heap[child]] >= head) {
           break;
         }
-        e2 = (MapEntry) i2.next();
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = n;
+    }
+
+    // moves to the next key, returning false if every set is exhausted
+    boolean next() {
+      if (heapSize == 0) {
+        return false;
+      }
+      key = heads[heap[0]];
+      size = 0;
+      while (heapSize > 0 && heads[heap[0]] == key) {
+        int n = heap[0];
+        containers[size++] = (Container) cursors[n].value();
+        if (cursors[n].hasNext()) {
+          heads[n] = cursors[n].nextKey();
+        } else {
+          heap[0] = heap[--heapSize];
+        }
+        siftDown(0);
+      }
+      return true;
+    }
+
+    // ORs the current containers into `words`
+    long[] or(long[] words) {
+      for (int i = 0; i < size; i++) {
+        containers[i].or(words);
+      }
+      return words;
+    }
+  }
+
+  // a leaf held by only one set is shared as-is, and the rest are ORed into a single bitset of their own
+  public static IntSet unionAll(long epoch, IntSet... sets) {
+    checkDensity(sets, "merge");
+    LeafMerge m = new LeafMerge(sets);
+    long[] keys = new long[16];
+    Object[] containers = new Object[16];
+    int n = 0;
+    while (m.next()) {
+      if (n == keys.length) {
+        keys = Arrays.copyOf(keys, n << 1);
+        containers = Arrays.copyOf(containers, n << 1);
+      }
+      keys[n] = m.key;
+      containers[n++] = m.size == 1 ? m.containers[0] : compact(epoch, m.or(new long[sets[0].leafSize >> 6]));
+    }
+    return new IntSet(sets[0].leafSize, sets[0].log2LeafSize,
+            Nodes.fromSorted(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n)));
+  }
+
+  // reuses a single bitset for every leaf, since nothing is kept
+  public static long unionCount(IntSet... sets) {
+    checkDensity(sets, "merge");
+    LeafMerge m = new LeafMerge(sets);
+    long[] words = new long[sets[0].leafSize >> 6];
+    long count = 0;
+    while (m.next()) {
+      if (m.size == 1) {
+        count += m.containers[0].count();
+      } else {
+        Arrays.fill(words, 0);
+        count += cardinality(m.or(words), 0, words.length << 6);
+      }
+    }
+    return count;
+  }
+
+  // probes every other set with the leaves of the smallest, and ANDs each leaf found in all of them into a single bitset
+  public static IntSet intersectionAll(long epoch, IntSet... sets) {
+    checkDensity(sets, "intersect");
+    int smallest = 0;
+    for (int i = 1; i < sets.length; i++) {
+      if (sets[i].map.count() < sets[smallest].map.count()) smallest = i;
+    }
+
+    Container[] group = new Container[sets.length];
+    long[] keys = new long[16];
+    Object[] containers = new Object[16];
+    int n = 0;
+    Nodes.Cursor cursor = new Nodes.Cursor(sets[smallest].map, INode.IterationType.VALS, false);
+    leaves:
+    while (cursor.hasNext()) {
+      long key = cursor.nextKey();
+      for (int i = 0; i < sets.length; i++) {
+        group[i] = i == smallest ? (Container) cursor.value() : (Container) sets[i].map.get(key, null);
+        if (group[i] == null) continue leaves;
+      }
+
+      long[] words = group[smallest].toWords();
+      for (int i = 0; i < sets.length && !isEmpty(words); i++) {
+        if (i != smallest) group[i].and(words);
+      }
+
+      ISet c = compact(epoch, words);
+      if (c != null) {
+        if (n == keys.length) {
+          keys = Arrays.copyOf(keys, n << 1);
+          containers = Arrays.copyOf(containers, n << 1);
+        }
+        keys[n] = key;
+        containers[n++] = c;
       }
     }
+    return new IntSet(sets[0].leafSize, sets[0].log2LeafSize,
+            Nodes.fromSorted(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n)));
+  }
+
+  // walks both tries together, so that subtrees shared by both sets cancel out without being visited
+  public ISet xor(final long epoch, ISet sv) {
+    if (sv instanceof MappedIntSet) {
+      return sv.xor(epoch, this);
+    }
+
+    IntSet s = (IntSet) sv;
+    if (s.leafSize != leafSize) {
+      throw new IllegalArgumentException("Cannot xor int-sets of different density.");
+    }
+    INode node = Nodes.xor(map, s.map, epoch,
+            new AFn() {
+              public Object invoke(Object a, Object b) {
+                return ((ISet) a).xor(epoch, (ISet) b);
+              }
+            });
+    return new IntSet(leafSize, log2LeafSize, node == null ? Nodes.Empty.EMPTY : node);
+  }
 
-    while (i1.hasNext()) {
-      e1 = (MapEntry) i1.next();
-      node = node.assoc((Long)e1.key(), epoch, null, e1.val());
+  public ISet difference(final long epoch, ISet sv) {
+    if (sv instanceof MappedIntSet) {
+      return ((MappedIntSet) sv).removeFrom(epoch, this);
     }
 
-    return new IntSet(leafSize, log2LeafSize, node);
+    IntSet s = (IntSet) sv;
+    if (s.leafSize != leafSize) {
+      throw new IllegalArgumentException("Cannot subtract int-sets of different density.");
+    }
+    INode node = map.difference(s.map, epoch,
+            new AFn() {
+              public Object invoke(Object a, Object b) {
+                return ((ISet) a).difference(epoch, (ISet) b);
+              }
+            });
+    return node == map ? this : new IntSet(leafSize, log2LeafSize, node == null ? Nodes.Empty.EMPTY : node);
   }
 
 }
@@ -0,0 +1,144 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map;
+
+import clojure.lang.AFn;
+import clojure.lang.MapEntry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// a set of longs which any number of threads may add to at once.  Elements are split into leaves exactly as in an
+// IntSet with the same leaf size, and each leaf's words are an AtomicLongArray held in a Ctrie, so once a leaf exists
+// an element is added with a CAS on a single word, and threads only contend when they touch the same 64 elements.
+//
+// Leaves are never removed, even once empty, since a thread may still be setting bits in one.
+public class IntSetAccumulator {
+
+  public final short leafSize, log2LeafSize;
+  private final Ctrie leaves = new Ctrie();
+
+  public IntSetAccumulator(short leafSize) {
+    this.leafSize = leafSize;
+    this.log2LeafSize = (short) Nodes.bitLog2(leafSize);
+  }
+
+  private long mapKey(long val) {
+    return val >> log2LeafSize;
+  }
+
+  private short leafOffset(long val) {
+    return (short) (val & (leafSize - 1));
+  }
+
+  private AtomicLongArray leaf(long val) {
+    return (AtomicLongArray) leaves.get(mapKey(val), null);
+  }
+
+  private AtomicLongArray ensureLeaf(long val) {
+    AtomicLongArray words = leaf(val);
+    if (words == null) {
+      words = new AtomicLongArray(leafSize >> 6);
+      Object prev = leaves.putIfAbsent(mapKey(val), words);
+      if (prev != null) {
+        words = (AtomicLongArray) prev;
+      }
+    }
+    return words;
+  }
+
+  // returns true if `val` wasn't already in the set
+  public boolean add(long val) {
+    AtomicLongArray words = ensureLeaf(val);
+    int offset = leafOffset(val);
+    int idx = offset >> 6;
+    long mask = 1L << offset;
+    while (true) {
+      long w = words.get(idx);
+      if ((w & mask) != 0) {
+        return false;
+      } else if (words.compareAndSet(idx, w, w | mask)) {
+        return true;
+      }
+    }
+  }
+
+  // returns true if `val` was in the set
+  public boolean remove(long val) {
+    AtomicLongArray words = leaf(val);
+    if (words == null) {
+      return false;
+    }
+    int offset = leafOffset(val);
+    int idx = offset >> 6;
+    long mask = 1L << offset;
+    while (true) {
+      long w = words.get(idx);
+      if ((w & mask) == 0) {
+        return false;
+      } else if (words.compareAndSet(idx, w, w & ~mask)) {
+        return true;
+      }
+    }
+  }
+
+  public boolean contains(long val) {
+    AtomicLongArray words = leaf(val);
+    if (words == null) {
+      return false;
+    }
+    int offset = leafOffset(val);
+    return (words.get(offset >> 6) & (1L << offset)) != 0;
+  }
+
+  public long count() {
+    return (Long) leaves.kvreduce(new AFn() {
+      @Override
+      public Object invoke(Object acc, Object key, Object val) {
+        AtomicLongArray words = (AtomicLongArray) val;
+        long n = (Long) acc;
+        for (int i = 0; i < words.length(); i++) {
+          n += Long.bitCount(words.get(i));
+        }
+        return n;
+      }
+    }, 0L);
+  }
+
+  // an IntSet of the elements, which freezes the trie of leaves in constant time, then copies each leaf's words once
+  // and builds the set's trie in a single pass.  Each word is read atomically, but the set as a whole is not: elements
+  // added or removed during the snapshot may or may not be included.
+  public IntSet snapshot() {
+    INode frozen = leaves.toNode();
+    long[] keys = new long[(int) frozen.count()];
+    Object[] containers = new Object[keys.length];
+    int n = 0;
+    Iterator i = frozen.iterator(INode.IterationType.ENTRIES, false);
+    while (i.hasNext()) {
+      MapEntry e = (MapEntry) i.next();
+      AtomicLongArray words = (AtomicLongArray) e.val();
+      long[] buf = new long[words.length()];
+      for (int j = 0; j < buf.length; j++) {
+        buf[j] = words.get(j);
+      }
+      ISet c = IntSet.compact(0, buf);
+      if (c != null) {
+        keys[n] = (Long) e.key();
+        containers[n++] = c;
+      }
+    }
+
+    if (n < keys.length) {
+      keys = Arrays.copyOf(keys, n);
+      containers = Arrays.copyOf(containers, n);
+    }
+    return new IntSet(leafSize, log2LeafSize, Nodes.fromSorted(keys, containers));
+  }
+}
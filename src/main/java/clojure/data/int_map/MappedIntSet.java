@@ -0,0 +1,516 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map;
+
+import clojure.lang.MapEntry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+// A read-only set over a buffer containing a serialized set, as written by Roaring.write, which is typically memory
+// mapped.  Only the location of each 32-bit bitmap is read up front, and everything else is read from the buffer as
+// needed, so the heap used doesn't depend on the number of elements.  Operations which yield a new set, such as
+// range or union, return an IntSet on the heap.
+public class MappedIntSet implements ISet {
+
+  private final ByteBuffer buf;
+  private final short leafSize;
+
+  // for each 32-bit bitmap, in unsigned order: the upper 32 bits of its elements, the number of containers, and
+  // the position of its cookie, run flags, descriptive header, offset header, and container data, where the run
+  // flags and offset header are -1 if absent
+  private final long[] bucketKeys;
+  private final int[] sizes, starts, runFlags, headers, offsets, data;
+  private final int numNonNegative;
+  private final long count;
+
+  public MappedIntSet(ByteBuffer buffer, short leafSize) {
+    this.buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    this.leafSize = leafSize;
+
+    int pos = buf.position();
+    long numBitmaps = buf.getLong(pos);
+    if (numBitmaps < 0 || numBitmaps > (buf.limit() - pos) / 12) {
+      throw new IllegalArgumentException("Invalid number of bitmaps: " + numBitmaps);
+    }
+    pos += 8;
+
+    int n = (int) numBitmaps;
+    bucketKeys = new long[n];
+    sizes = new int[n];
+    starts = new int[n];
+    runFlags = new int[n];
+    headers = new int[n];
+    offsets = new int[n];
+    data = new int[n];
+
+    long count = 0;
+    int numNonNegative = 0;
+    for (int b = 0; b < n; b++) {
+      bucketKeys[b] = buf.getInt(pos) & 0xffffffffL;
+      if (bucketKeys[b] < 0x80000000L) {
+        numNonNegative++;
+      }
+      pos += 4;
+
+      starts[b] = pos;
+      int cookie = buf.getInt(pos);
+      int size;
+      boolean hasRuns = (cookie & 0xffff) == Roaring.SERIAL_COOKIE;
+      if (hasRuns) {
+        size = (cookie >>> 16) + 1;
+        runFlags[b] = pos + 4;
+        headers[b] = pos + 4 + ((size + 7) >> 3);
+      } else if (cookie == Roaring.SERIAL_COOKIE_NO_RUNCONTAINER) {
+        size = buf.getInt(pos + 4);
+        if (size < 0 || size > 0x10000) {
+          throw new IllegalArgumentException("Invalid number of containers: " + size);
+        }
+        runFlags[b] = -1;
+        headers[b] = pos + 8;
+      } else {
+        throw new IllegalArgumentException("Not a portable Roaring bitmap.");
+      }
+      sizes[b] = size;
+      offsets[b] = (!hasRuns || size >= Roaring.NO_OFFSET_THRESHOLD) ? headers[b] + (size << 2) : -1;
+      data[b] = headers[b] + (size << 2) + (offsets[b] < 0 ? 0 : size << 2);
+
+      for (int i = 0; i < size; i++) {
+        count += cardinality(b, i);
+      }
+      pos = size == 0 ? data[b] : position(b, size - 1) + containerSize(b, size - 1);
+    }
+
+    this.numNonNegative = numNonNegative;
+    this.count = count;
+  }
+
+  public short leafSize() {
+    return leafSize;
+  }
+
+  // container accessors
+
+  private static final byte ARRAY = 0, BITSET = 1, RUN = 2;
+
+  private int key(int b, int i) {
+    return buf.getShort(headers[b] + (i << 2)) & 0xffff;
+  }
+
+  private int cardinality(int b, int i) {
+    return (buf.getShort(headers[b] + (i << 2) + 2) & 0xffff) + 1;
+  }
+
+  private byte type(int b, int i) {
+    if (runFlags[b] >= 0 && (buf.get(runFlags[b] + (i >> 3)) & (1 << (i & 7))) != 0) {
+      return RUN;
+    }
+    return cardinality(b, i) <= Roaring.MAX_ARRAY_SIZE ? ARRAY : BITSET;
+  }
+
+  private int containerSize(int b, int i) {
+    switch (type(b, i)) {
+      case ARRAY:
+        return cardinality(b, i) << 1;
+      case RUN:
+        return 2 + ((buf.getShort(position(b, i)) & 0xffff) << 2);
+      default:
+        return 8192;
+    }
+  }
+
+  private int position(int b, int i) {
+    if (offsets[b] >= 0) {
+      return starts[b] + buf.getInt(offsets[b] + (i << 2));
+    }
+
+    // without an offset header there are at most three containers, so just skip over the ones before
+    int pos = data[b];
+    for (int j = 0; j < i; j++) {
+      pos += containerSize(b, j);
+    }
+    return pos;
+  }
+
+  private int findBucket(long bucketKey) {
+    int idx = Arrays.binarySearch(bucketKeys, bucketKey);
+    return idx < 0 ? -1 : idx;
+  }
+
+  // returns the index of the first container in `b` whose key is at least `key`
+  private int ceilContainer(int b, int key) {
+    int lo = 0, hi = sizes[b];
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (key(b, mid) < key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int findContainer(int b, int key) {
+    int i = ceilContainer(b, key);
+    return i < sizes[b] && key(b, i) == key ? i : -1;
+  }
+
+  private static long bucketMin(long bucketKey) {
+    return bucketKey << 32;
+  }
+
+  // the elements of part of a container, as words of a bitset
+  class Words {
+    final long[] words;
+    int minWord, maxWord = -1;
+
+    Words(int numWords) {
+      words = new long[numWords];
+      minWord = numWords;
+    }
+
+    boolean isEmpty() {
+      return maxWord < 0;
+    }
+
+    private void clear() {
+      if (maxWord >= 0) {
+        Arrays.fill(words, minWord, maxWord + 1, 0L);
+      }
+      minWord = words.length;
+      maxWord = -1;
+    }
+
+    private void set(int start, int end) {
+      Roaring.setRange(words, start, end);
+      minWord = Math.min(minWord, start >> 6);
+      maxWord = Math.max(maxWord, end >> 6);
+    }
+
+    // reads the elements of container `i` in bucket `b` within [lo, lo + 64 * words.length), where `lo` is a multiple
+    // of the length, so that bit 0 of words[0] is `lo`
+    void read(int b, int i, int lo) {
+      clear();
+
+      int hi = lo + (words.length << 6) - 1;
+      int pos = position(b, i);
+      switch (type(b, i)) {
+        case BITSET:
+          for (int w = 0; w < words.length; w++) {
+            long word = buf.getLong(pos + (((lo >> 6) + w) << 3));
+            if (word != 0) {
+              words[w] = word;
+              minWord = Math.min(minWord, w);
+              maxWord = w;
+            }
+          }
+          break;
+
+        case ARRAY:
+          int card = cardinality(b, i);
+          int lower = 0, upper = card;
+          while (lower < upper) {
+            int mid = (lower + upper) >>> 1;
+            if ((buf.getShort(pos + (mid << 1)) & 0xffff) < lo) {
+              lower = mid + 1;
+            } else {
+              upper = mid;
+            }
+          }
+          for (int j = lower; j < card; j++) {
+            int val = buf.getShort(pos + (j << 1)) & 0xffff;
+            if (val > hi) {
+              break;
+            }
+            set(val - lo, val - lo);
+          }
+          break;
+
+        default:
+          int numRuns = buf.getShort(pos) & 0xffff;
+          for (int j = 0; j < numRuns; j++) {
+            int start = buf.getShort(pos + 2 + (j << 2)) & 0xffff;
+            int end = start + (buf.getShort(pos + 4 + (j << 2)) & 0xffff);
+            if (start > hi) {
+              break;
+            } else if (end >= lo) {
+              set(Math.max(start, lo) - lo, Math.min(end, hi) - lo);
+            }
+          }
+      }
+    }
+
+    // reads the elements within [val, val + 64 * words.length), returning false if there are none
+    boolean read(long val) {
+      int b = findBucket(val >>> 32);
+      int i = b < 0 ? -1 : findContainer(b, (int) (val >>> 16) & 0xffff);
+      if (i < 0) {
+        clear();
+        return false;
+      }
+      read(b, i, (int) val & 0xffff);
+      return !isEmpty();
+    }
+
+    // clears the bits before `start` and after `end`
+    void mask(int start, int end) {
+      for (int w = minWord; w <= maxWord; w++) {
+        long mask = -1L;
+        if (w == start >> 6) {
+          mask &= -1L << start;
+        } else if (w < start >> 6) {
+          mask = 0;
+        }
+        if (w == end >> 6) {
+          mask &= -1L >>> (63 - (end & 63));
+        } else if (w > end >> 6) {
+          mask = 0;
+        }
+        words[w] &= mask;
+      }
+    }
+  }
+
+  // ISet
+
+  public ISet add(long epoch, long val) {
+    throw new UnsupportedOperationException();
+  }
+
+  public ISet remove(long epoch, long val) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean contains(long val) {
+    int b = findBucket(val >>> 32);
+    if (b < 0) {
+      return false;
+    }
+    int i = findContainer(b, (int) (val >>> 16) & 0xffff);
+    if (i < 0) {
+      return false;
+    }
+
+    int v = (int) val & 0xffff;
+    int pos = position(b, i);
+    switch (type(b, i)) {
+      case BITSET:
+        return (buf.getLong(pos + ((v >> 6) << 3)) & (1L << v)) != 0;
+
+      case ARRAY:
+        int lo = 0, hi = cardinality(b, i) - 1;
+        while (lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          int x = buf.getShort(pos + (mid << 1)) & 0xffff;
+          if (x < v) {
+            lo = mid + 1;
+          } else if (x > v) {
+            hi = mid - 1;
+          } else {
+            return true;
+          }
+        }
+        return false;
+
+      default:
+        // find the last run starting at or before `v`
+        int numRuns = buf.getShort(pos) & 0xffff;
+        int lower = 0, upper = numRuns;
+        while (lower < upper) {
+          int mid = (lower + upper) >>> 1;
+          if ((buf.getShort(pos + 2 + (mid << 2)) & 0xffff) <= v) {
+            lower = mid + 1;
+          } else {
+            upper = mid;
+          }
+        }
+        if (lower == 0) {
+          return false;
+        }
+        int start = buf.getShort(pos + 2 + ((lower - 1) << 2)) & 0xffff;
+        return v <= start + (buf.getShort(pos + 4 + ((lower - 1) << 2)) & 0xffff);
+    }
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public BitSet toBitSet() {
+    throw new UnsupportedOperationException();
+  }
+
+  // returns the buckets in signed order
+  private int bucket(int idx) {
+    return (idx + numNonNegative) % bucketKeys.length;
+  }
+
+  // the elements in ascending order; there's no trie to split on, so this splits off batches of the iterator instead
+  public Spliterator.OfLong spliterator() {
+    return Spliterators.spliterator(elements(0, false), count, Nodes.Splitter.CHARACTERISTICS);
+  }
+
+  public PrimitiveIterator.OfLong elements(final long offset, final boolean reverse) {
+    return new PrimitiveIterator.OfLong() {
+      private final Words words = new Words(1024);
+      private int bucketIdx = -1, b = -1, i = -1, w = 0;
+      private long base = 0, word = 0;
+
+      private boolean nextContainer() {
+        while (true) {
+          if (b >= 0) {
+            i += reverse ? -1 : 1;
+            if (0 <= i && i < sizes[b]) {
+              words.read(b, i, 0);
+              base = bucketMin(bucketKeys[b]) | ((long) key(b, i) << 16);
+              w = reverse ? words.maxWord + 1 : words.minWord - 1;
+              return true;
+            }
+          }
+          if (++bucketIdx >= bucketKeys.length) {
+            return false;
+          }
+          b = bucket(reverse ? bucketKeys.length - 1 - bucketIdx : bucketIdx);
+          i = reverse ? sizes[b] : -1;
+        }
+      }
+
+      public boolean hasNext() {
+        while (word == 0) {
+          if (b >= 0 && i >= 0 && i < sizes[b]) {
+            w += reverse ? -1 : 1;
+            if (words.minWord <= w && w <= words.maxWord) {
+              word = words.words[w];
+              continue;
+            }
+          }
+          if (!nextContainer()) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      public long nextLong() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        int bit = reverse ? 63 - Long.numberOfLeadingZeros(word) : Long.numberOfTrailingZeros(word);
+        word &= ~(1L << bit);
+        return offset + base + (w << 6) + bit;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public IntSet range(long epoch, long min, long max) {
+    Roaring.SetReader reader = new Roaring.SetReader(leafSize);
+    Words words = new Words(1024);
+    for (int b = 0; b < bucketKeys.length; b++) {
+      long bucketMin = bucketMin(bucketKeys[b]);
+      long bucketMax = bucketMin | 0xffffffffL;
+      if (max < bucketMin || bucketMax < min) {
+        continue;
+      }
+
+      int lo = min <= bucketMin ? 0 : (int) (min >>> 16) & 0xffff;
+      int hi = max >= bucketMax ? 0xffff : (int) (max >>> 16) & 0xffff;
+      for (int i = ceilContainer(b, lo); i < sizes[b] && key(b, i) <= hi; i++) {
+        long containerMin = bucketMin | ((long) key(b, i) << 16);
+        words.read(b, i, 0);
+        words.mask(
+                min <= containerMin ? 0 : (int) (min - containerMin),
+                max >= (containerMin | 0xffff) ? 0xffff : (int) (max - containerMin));
+        if (!words.isEmpty()) {
+          reader.container(containerMin, words.words, words.minWord, words.maxWord);
+        }
+      }
+    }
+    return reader.intSet();
+  }
+
+  // materializes the set on the heap
+  public IntSet toIntSet(short leafSize) {
+    return Roaring.readSet(leafSize, buf.duplicate());
+  }
+
+  // combines each leaf of `s` with the elements of this set within the same range, in a single pass over `s`
+  private IntSet combine(long epoch, IntSet s, boolean intersect) {
+    int leafWords = s.leafSize >> 6;
+    Words words = new Words(leafWords);
+    long[] keys = new long[16];
+    Object[] containers = new Object[16];
+    int n = 0;
+
+    for (Iterator it = s.map.iterator(INode.IterationType.ENTRIES, false); it.hasNext(); ) {
+      MapEntry e = (MapEntry) it.next();
+      long k = (Long) e.key();
+      ISet container = (ISet) e.val();
+
+      ISet containerPrime;
+      if (!words.read(k << s.log2LeafSize)) {
+        containerPrime = intersect ? null : container;
+      } else {
+        long[] bits = ((IntSet.Container) container).toWords();
+        long[] other = words.words;
+        for (int i = 0; i < bits.length; i++) {
+          long w = i < other.length ? other[i] : 0;
+          bits[i] &= intersect ? w : ~w;
+        }
+        containerPrime = IntSet.compact(epoch, bits);
+      }
+
+      if (containerPrime != null) {
+        if (n == keys.length) {
+          keys = Arrays.copyOf(keys, n << 1);
+          containers = Arrays.copyOf(containers, n << 1);
+        }
+        keys[n] = k;
+        containers[n++] = containerPrime;
+      }
+    }
+
+    return new IntSet(s.leafSize, s.log2LeafSize,
+            Nodes.fromSorted(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n)));
+  }
+
+  // returns the elements of `s` which aren't in this set
+  public IntSet removeFrom(long epoch, IntSet s) {
+    return combine(epoch, s, false);
+  }
+
+  public ISet intersection(long epoch, ISet sv) {
+    return sv instanceof IntSet
+            ? combine(epoch, (IntSet) sv, true)
+            : toIntSet(leafSize).intersection(epoch, sv);
+  }
+
+  public ISet union(long epoch, ISet sv) {
+    return toIntSet(sv instanceof IntSet ? ((IntSet) sv).leafSize : leafSize).union(epoch, sv);
+  }
+
+  public ISet difference(long epoch, ISet sv) {
+    return toIntSet(sv instanceof IntSet ? ((IntSet) sv).leafSize : leafSize).difference(epoch, sv);
+  }
+
+  public ISet xor(long epoch, ISet sv) {
+    return toIntSet(sv instanceof IntSet ? ((IntSet) sv).leafSize : leafSize).xor(epoch, sv);
+  }
+}
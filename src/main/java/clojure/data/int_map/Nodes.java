@@ -8,16 +8,23 @@
 
 package clojure.data.int_map;
 
+import clojure.lang.IDeref;
 import clojure.lang.IFn;
 import clojure.lang.AFn;
+import clojure.lang.MapEntry;
+import clojure.lang.Murmur3;
 import clojure.lang.RT;
 import clojure.lang.Util;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 public class Nodes {
 
@@ -33,11 +40,70 @@ public class Nodes {
     }
   }
 
+  static class InvertLongFn extends InvertFn implements IFn.LLL {
+
+    public InvertLongFn(IFn f) {
+      super(f);
+    }
+
+    public long invokePrim(long x, long y) {
+      return ((IFn.LLL) f).invokePrim(y, x);
+    }
+  }
+
   static public IFn invert(IFn f) {
     if (f instanceof InvertFn) {
       return ((InvertFn) f).f;
     }
-    return new InvertFn(f);
+    return f instanceof IFn.LLL ? new InvertLongFn(f) : new InvertFn(f);
+  }
+
+  // primitive invocation helpers, which fall back to boxing if `f` isn't type-hinted
+
+  static long invokeLong(IFn f, long x) {
+    return f instanceof IFn.LL
+            ? ((IFn.LL) f).invokePrim(x)
+            : ((Number) f.invoke(x)).longValue();
+  }
+
+  static long mergeLong(IFn f, long x, long y) {
+    if (f == null) {
+      return y;
+    }
+    return f instanceof IFn.LLL
+            ? ((IFn.LLL) f).invokePrim(x, y)
+            : ((Number) f.invoke(x, y)).longValue();
+  }
+
+  static Object kvinvoke(IFn f, Object init, long k, long v) {
+    return f instanceof IFn.OLLO
+            ? ((IFn.OLLO) f).invokePrim(init, k, v)
+            : f.invoke(init, k, v);
+  }
+
+  // reduces a node serially within a fold, which like `reduce` unwraps an early result
+  static Object foldSerially(INode node, IFn combiner, IFn reducer) {
+    Object result = node.kvreduce(reducer, combiner.invoke());
+    return RT.isReduced(result) ? ((IDeref) result).deref() : result;
+  }
+
+  // returns the entry at `idx` in ascending order of the keys, which is found by descending through the counts
+  public static MapEntry nth(INode root, long idx) {
+    MapEntry e = entry(0 <= idx && idx < root.count() ? root.select(idx) : null);
+    if (e == null) {
+      throw new IndexOutOfBoundsException();
+    }
+    return e;
+  }
+
+  // returns the entry for a leaf, or null if there is none
+  public static MapEntry entry(INode leaf) {
+    if (leaf instanceof Leaf) {
+      return new MapEntry(((Leaf) leaf).key, ((Leaf) leaf).value);
+    } else if (leaf instanceof LongLeaf) {
+      return new MapEntry(((LongLeaf) leaf).key, ((LongLeaf) leaf).value);
+    }
+    return null;
   }
 
   // bitwise helper functions
@@ -60,6 +126,22 @@ public class Nodes {
     return bitLog2(highestBit(a ^ b, 1)) & ~0x3;
   }
 
+  // the offset of the branch which distinguishes `a` and `b`, for branches which consume `bits` bits apiece.  Since
+  // 60 is a multiple of 4, 5, and 6, the topmost branch always sits at 60 and consumes the remaining four bits.
+  private static final byte[][] OFFSETS = new byte[7][64];
+
+  static {
+    for (int bits = 4; bits <= 6; bits++) {
+      for (int i = 0; i < 64; i++) {
+        OFFSETS[bits][i] = (byte) ((i / bits) * bits);
+      }
+    }
+  }
+
+  public static int offset(long a, long b, int bits) {
+    return OFFSETS[bits][bitLog2(highestBit(a ^ b, 1))];
+  }
+
   public static long highestBit(long n, long estimate) {
     long x = n & ~(estimate - 1);
     long m;
@@ -70,380 +152,1390 @@ public class Nodes {
     }
   }
 
-  // 2-way top-level branch
-  public static class BinaryBranch implements INode {
+  // intersection and difference helpers
 
-    public INode a, b;
+  private static final Object NOT_FOUND = new Object();
 
-    public BinaryBranch(INode a, INode b) {
-      this.a = a;
-      this.b = b;
+  // removes or replaces the value at `k` in `node`, per the value returned by `f`
+  static INode differenceLeaf(INode node, long k, Object v, long epoch, IFn f) {
+    Object val = node.get(k, NOT_FOUND);
+    if (val == NOT_FOUND) {
+      return node;
     }
 
-    public long count() {
-      return a.count() + b.count();
-    }
+    Object valPrime = f.invoke(val, v);
+    return valPrime == val
+            ? node
+            : valPrime == null
+            ? node.dissoc(k, epoch)
+            : node.assoc(k, epoch, null, valPrime);
+  }
 
-    public Iterator iterator(final IterationType type, final boolean reverse) {
-      return new Iterator() {
-        boolean first = true;
-        Iterator iterator = reverse ? b.iterator(type, reverse) : a.iterator(type, reverse);
+  static INode differenceLeaf(INode node, INode leaf, long epoch, IFn f) {
+    if (leaf instanceof Strided) {
+      return node.difference(((Strided) leaf).node, epoch, f);
+    } else if (leaf instanceof Leaf) {
+      return differenceLeaf(node, ((Leaf) leaf).key, ((Leaf) leaf).value, epoch, f);
+    } else {
+      return differenceLeaf(node, ((LongLeaf) leaf).key, ((LongLeaf) leaf).value, epoch, f);
+    }
+  }
 
-        public boolean hasNext() {
-          if (iterator.hasNext()) {
-            return true;
-          }
+  static INode binaryBranch(BinaryBranch branch, INode a, INode b) {
+    return a == null
+            ? b
+            : b == null
+            ? a
+            : (a == branch.a && b == branch.b)
+            ? branch
+            : new BinaryBranch(a, b);
+  }
 
-          if (first) {
-            first = false;
-            iterator = reverse ? a.iterator(type, reverse) : b.iterator(type, reverse);
-          }
+  // symmetric difference
 
-          return iterator.hasNext();
-        }
+  // adds the entry at `k` to `node` if it's absent, and otherwise replaces or removes it per the value returned by `f`
+  private static INode xorLeaf(INode node, long k, Object v, long epoch, IFn f) {
+    Object val = node.get(k, NOT_FOUND);
+    if (val == NOT_FOUND) {
+      return node.assoc(k, epoch, null, v);
+    }
 
-        public Object next() {
-          if (hasNext()) {
-            return iterator.next();
-          } else {
-            throw new NoSuchElementException();
-          }
-        }
+    Object valPrime = f.invoke(val, v);
+    return valPrime == null
+            ? node.dissoc(k, epoch)
+            : node.assoc(k, epoch, null, valPrime);
+  }
 
-        public void remove() {
-          throw new UnsupportedOperationException();
-        }
-      };
+  // keys present in only one of two tries of Leaf nodes, where `f` combines the values of shared keys and may return
+  // null to drop them, and must be symmetric.  Identical subtrees cancel out without being visited, so two versions of
+  // the same trie are compared in time proportional to the paths they don't share.  Returns null if nothing is left.
+  static INode xor(INode a, INode b, long epoch, IFn f) {
+    a = Strided.unwrap(a);
+    b = Strided.unwrap(b);
+
+    if (a == b) {
+      return null;
+    } else if (a == null || a instanceof Empty) {
+      return b instanceof Empty ? null : b;
+    } else if (b == null || b instanceof Empty) {
+      return a;
+    } else if (b instanceof Leaf) {
+      INode n = a;
+      a = b;
+      b = n;
+    } else if (b instanceof BinaryBranch && a instanceof Branch) {
+      INode n = a;
+      a = b;
+      b = n;
     }
 
-    public INode range(long min, long max) {
-      if (max < 0) {
-        return a.range(min, max);
-      } else if (min >= 0) {
-        return b.range(min, max);
-      } else {
-        INode aPrime = a.range(min,max);
-        INode bPrime = b.range(min, max);
+    if (a instanceof Leaf) {
+      Leaf leaf = (Leaf) a;
+      return xorLeaf(b, leaf.key, leaf.value, epoch, f);
+    }
 
-        if (aPrime == null && bPrime == null) {
-          return Empty.EMPTY;
-        } else if (aPrime == null) {
-          return bPrime;
-        } else if (bPrime == null) {
-          return aPrime;
-        } else {
-          return new BinaryBranch(aPrime, bPrime);
-        }
+    if (a instanceof BinaryBranch) {
+      BinaryBranch x = (BinaryBranch) a;
+      if (b instanceof BinaryBranch) {
+        BinaryBranch y = (BinaryBranch) b;
+        return binaryBranch(x, xor(x.a, y.a, epoch, f), xor(x.b, y.b, epoch, f));
       }
+      return ((Branch) b).prefix < 0
+              ? binaryBranch(x, xor(x.a, b, epoch, f), x.b)
+              : binaryBranch(x, x.a, xor(x.b, b, epoch, f));
     }
 
-    public INode merge(INode node, long epoch, IFn f) {
-      if (node instanceof BinaryBranch) {
-        BinaryBranch bin = (BinaryBranch) node;
-        return new BinaryBranch(a.merge(bin.a, epoch, f), b.merge(bin.b, epoch, f));
-      } else if (node instanceof Branch) {
-        Branch branch = (Branch) node;
-        return branch.prefix < 0 ? new BinaryBranch(a.merge(node, epoch, f), b) : new BinaryBranch(a, b.merge(node, epoch, f));
-      } else {
-        return node.merge(this, epoch, invert(f));
-      }
+    Branch x = (Branch) a, y = (Branch) b;
+    if ((x.prefix < 0) != (y.prefix < 0)) {
+      return x.prefix < 0 ? new BinaryBranch(x, y) : new BinaryBranch(y, x);
+    } else if (x.offset < y.offset) {
+      x = y;
+      y = (Branch) a;
     }
 
-    public INode assoc(long k, long epoch, IFn f, Object v) {
-      if (k < 0) {
-        INode aPrime = a.assoc(k, epoch, f, v);
-        return a == aPrime ? this : new BinaryBranch(aPrime, b);
-      } else {
-        INode bPrime = b.assoc(k, epoch, f, v);
-        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+    if (x.offset >= y.offset + y.bits) {
+      if (!x.covers(y.prefix)) {
+        // disjoint ranges of keys, which a merge will put beneath a common parent
+        return x.merge(y, epoch, f);
       }
-    }
 
-    public INode dissoc(long k, long epoch) {
-      if (k < 0) {
-        INode aPrime = a.dissoc(k, epoch);
-        return aPrime == null
-                ? b
-                : (a == aPrime)
-                ? this
-                : new BinaryBranch(aPrime, b);
-      } else {
-        INode bPrime = b.dissoc(k, epoch);
-        return bPrime == null
-                ? a
-                : (b == bPrime)
-                ? this
-                : new BinaryBranch(a, bPrime);
+      // `y` falls entirely within a single slot of `x`
+      int idx = x.indexOf(y.prefix);
+      INode n = x.child(idx);
+      INode[] children = x.expand();
+      children[idx] = n == null ? y : xor(n, y, epoch, f);
+      return x.withChildren(children, epoch);
+    } else if (x.offset == y.offset && x.bits == y.bits) {
+      if (!x.covers(y.prefix)) {
+        return x.merge(y, epoch, f);
       }
-    }
 
-    public INode update(long k, long epoch, IFn f) {
-      if (k < 0) {
-        INode aPrime = a.update(k, epoch, f);
-        return a == aPrime ? this : new BinaryBranch(aPrime, b);
-      } else {
-        INode bPrime = b.update(k, epoch, f);
-        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+      // the same range of keys, so xor each child in turn
+      INode[] children = new INode[1 << x.bits];
+      for (int i = 0; i < children.length; i++) {
+        children[i] = xor(x.child(i), y.child(i), epoch, f);
       }
+      return x.withChildren(children, epoch);
     }
 
-    public Object get(long k, Object defaultVal) {
-      return k < 0 ? a.get(k, defaultVal) : b.get(k, defaultVal);
+    // the strides differ, so toggle each of the narrower branch's entries in the wider one
+    INode node = x;
+    Cursor cursor = new Cursor(y, INode.IterationType.VALS, false);
+    while (cursor.hasNext()) {
+      long k = cursor.nextKey();
+      node = xorLeaf(node == null ? Empty.EMPTY : node, k, cursor.value(), epoch, f);
     }
+    return node;
+  }
 
-    public Object kvreduce(IFn f, Object init) {
-      init = a.kvreduce(f, init);
-      if (RT.isReduced(init)) return init;
-      return b.kvreduce(f, init);
+  // hashing and equality
+
+  // the hash of a single map entry, which matches that of a MapEntry
+  static int hashEntry(long k, Object v, boolean equiv) {
+    return equiv
+            ? Murmur3.mixCollHash(31 * (31 + Murmur3.hashLong(k)) + Util.hasheq(v), 2)
+            : Long.hashCode(k) ^ Util.hash(v);
+  }
+
+  static boolean equalValues(Object a, Object b, boolean equiv) {
+    if (a instanceof IntSet.Container && b instanceof IntSet.Container) {
+      return ((IntSet.Container) a).equiv((IntSet.Container) b);
     }
+    return equiv ? Util.equiv(a, b) : Util.equals(a, b);
+  }
 
-    public Object reduce(IFn f, Object init) {
-      init = a.reduce(f, init);
-      if (RT.isReduced(init)) return init;
-      return b.reduce(f, init);
+  // returns true if `a` and `b` have the same entries, with values compared per `Util.equiv` if `equiv` and
+  // `Util.equals` otherwise.  Wherever the two tries have the same shape this is a walk which skips identical subtrees
+  // and stops at the first subtrees whose counts differ, and elsewhere the entries are compared in order.
+  public static boolean equals(INode a, INode b, boolean equiv) {
+    a = Strided.unwrap(a);
+    b = Strided.unwrap(b);
+    if (a == b) {
+      return true;
+    } else if (a.count() != b.count()) {
+      return false;
     }
 
-    public Object fold(final long n, final IFn combiner, final IFn reducer, final IFn fjtask, final IFn fjfork, final IFn fjjoin) {
-      if (count() > n) {
-        Object forked = new Callable() {
-          public Object call() throws Exception {
-            return b.fold(n, combiner, reducer, fjtask, fjfork, fjjoin);
+    if (a instanceof BinaryBranch && b instanceof BinaryBranch) {
+      BinaryBranch x = (BinaryBranch) a, y = (BinaryBranch) b;
+      return equals(x.a, y.a, equiv) && equals(x.b, y.b, equiv);
+
+    } else if (a instanceof Branch && b instanceof Branch) {
+      Branch x = (Branch) a, y = (Branch) b;
+      if (x.offset == y.offset && x.bits == y.bits && x.bitmap == y.bitmap && x.covers(y.prefix)) {
+        for (int i = 0; i < x.children.length; i++) {
+          if (!equals(x.children[i], y.children[i], equiv)) {
+            return false;
           }
-        };
-        return combiner.invoke(a.fold(n, combiner, reducer, fjtask, fjfork, fjjoin), fjjoin.invoke(fjfork.invoke(fjtask.invoke(forked))));
-      } else {
-        return kvreduce(reducer, combiner.invoke());
+        }
+        return true;
       }
-    }
-  }
 
-  // 16-way branch node
-
-  public static class Branch implements INode {
-    public final long prefix, mask, epoch;
-    public final int offset;
-    long count;
-    public final INode[] children;
+    } else if (a instanceof Leaf && b instanceof Leaf) {
+      Leaf x = (Leaf) a, y = (Leaf) b;
+      return x.key == y.key && equalValues(x.value, y.value, equiv);
 
-    public Branch(long prefix, int offset, long epoch, long count, INode[] children) {
-      this.prefix = prefix;
-      this.offset = offset;
-      this.epoch = epoch;
-      this.mask = 0xfL << offset;
-      this.count = count;
-      this.children = children;
+    } else if (a instanceof LongLeaf && b instanceof LongLeaf) {
+      LongLeaf x = (LongLeaf) a, y = (LongLeaf) b;
+      return x.key == y.key && x.value == y.value;
     }
 
-    public Branch(long prefix, int offset, long epoch, INode[] children) {
-      this.prefix = prefix;
-      this.offset = offset;
-      this.epoch = epoch;
-      this.mask = 0xfL << offset;
-      this.count = -1;
-      this.children = children;
+    // the tries have different shapes, but the same order
+    Iterator i = a.iterator(INode.IterationType.ENTRIES, false);
+    Iterator j = b.iterator(INode.IterationType.ENTRIES, false);
+    while (i.hasNext()) {
+      MapEntry x = (MapEntry) i.next();
+      MapEntry y = (MapEntry) j.next();
+      if (!Util.equiv(x.key(), y.key()) || !equalValues(x.val(), y.val(), equiv)) {
+        return false;
+      }
     }
+    return true;
+  }
 
-    public int indexOf(long key) {
-      return (int) ((key & mask) >>> offset);
-    }
+  // differences between versions
 
-    private INode[] arraycopy() {
-      INode[] copy = new INode[16];
-      System.arraycopy(children, 0, copy, 0, 16);
-      return copy;
+  // reduces over the keys whose entries differ between `a` and `b` in ascending order, calling `f` with the
+  // accumulator, the key, and its values in `a` and `b`, where `notFound` stands in for a missing entry.  Subtrees
+  // shared by both versions are skipped without being visited.
+  public static Object diff(INode a, INode b, IFn f, Object init, Object notFound) {
+    Object acc = diffNodes(a, b, f, init, notFound);
+    return RT.isReduced(acc) ? ((IDeref) acc).deref() : acc;
+  }
+
+  private static Object diffNodes(INode a, INode b, IFn f, Object acc, Object notFound) {
+    a = Strided.unwrap(a);
+    b = Strided.unwrap(b);
+    if (a == b) {
+      return acc;
     }
 
-    // returns 0 for no overlap, 1 if there's some overlap, 2 if the left completely covers the right
-    private static int overlap(long min0, long max0, long min1, long max1) {
-      if (min0 <= min1 && max1 <= max0) {
-        return 2;
-      }
-      if (min0 <= max1 && min1 <= max0) {
-        return 1;
+    if (a instanceof BinaryBranch && b instanceof BinaryBranch) {
+      BinaryBranch x = (BinaryBranch) a, y = (BinaryBranch) b;
+      acc = diffNodes(x.a, y.a, f, acc, notFound);
+      return RT.isReduced(acc) ? acc : diffNodes(x.b, y.b, f, acc, notFound);
+
+    } else if (a instanceof Branch && b instanceof Branch) {
+      Branch x = (Branch) a, y = (Branch) b;
+      if (x.offset == y.offset && x.bits == y.bits && (x.prefix < 0) == (y.prefix < 0) && x.covers(y.prefix)) {
+        for (int i = 0; i < 1 << x.bits && !RT.isReduced(acc); i++) {
+          INode n = x.child(i), nPrime = y.child(i);
+          if (n != nPrime) {
+            acc = diffNodes(n, nPrime, f, acc, notFound);
+          }
+        }
+        return acc;
       }
-      return 0;
     }
 
-    public INode range(long min, long max) {
-      long nodeMask = offset < 60 ? ((1L << (offset + 4)) - 1) : ~(1L<<63);
-      long nodeMin = prefix & ~nodeMask;
-      long nodeMax = prefix | nodeMask;
-      switch (overlap(min, max, nodeMin, nodeMax)) {
-        case 2:
-          return this;
-        case 0:
-          return null;
-        default:
-      }
+    return diffEntries(a, b, f, acc, notFound);
+  }
 
-      INode[] children = null;
-      // true if already known that at least one child of this node should be removed in the result
-      boolean atLeastOneDropped = false;
+  // the tries have different shapes, so merge their entries in order, either of them may be null or empty
+  private static Object diffEntries(INode a, INode b, IFn f, Object acc, Object notFound) {
+    Cursor x = new Cursor(a == null ? Empty.EMPTY : a, INode.IterationType.ENTRIES, false);
+    Cursor y = new Cursor(b == null ? Empty.EMPTY : b, INode.IterationType.ENTRIES, false);
+    boolean hasX = x.hasNext(), hasY = y.hasNext();
+    long kx = hasX ? x.nextKey() : 0, ky = hasY ? y.nextKey() : 0;
+
+    while ((hasX || hasY) && !RT.isReduced(acc)) {
+      if (hasX && (!hasY || kx < ky)) {
+        acc = f.invoke(acc, kx, x.value(), notFound);
+        hasX = x.hasNext();
+        kx = hasX ? x.nextKey() : kx;
+      } else if (!hasX || ky < kx) {
+        acc = f.invoke(acc, ky, notFound, y.value());
+        hasY = y.hasNext();
+        ky = hasY ? y.nextKey() : ky;
+      } else {
+        Object vx = x.value(), vy = y.value();
+        if (!equalValues(vx, vy, true)) {
+          acc = f.invoke(acc, kx, vx, vy);
+        }
+        hasX = x.hasNext();
+        kx = hasX ? x.nextKey() : kx;
+        hasY = y.hasNext();
+        ky = hasY ? y.nextKey() : ky;
+      }
+    }
+    return acc;
+  }
 
-      int minI = min <= nodeMin ? -1 : indexOf(Math.min(nodeMax, min));
-      int maxI = max >= nodeMax ? 16 : indexOf(Math.max(nodeMin, max));
+  // iteration
 
-      INode onlyChild = null;
-      int numChildren = 0;
+  // a cursor over the leaves of a trie, in order or in reverse, which keeps the path to the current leaf in a pair of
+  // arrays rather than nesting an iterator per level.  `nextKey` and `value` step through the entries without
+  // allocating anything, and `next` yields the keys, values, or entries per `type`.
+  public static class Cursor implements Iterator {
 
-      for (int i = 0; i < 16; i++) {
-        INode c = this.children[i];
-        if (c != null) {
+    // a binary branch above a branch at each offset from 60 down to 0
+    private static final int MAX_DEPTH = 17;
 
-          // if i is outside [minI, maxI], it must have no intersection with the range
-          // if it is strictly inside (minI, maxI) exclusive, it must be fully in the range
-          // otherwise it is minI or maxI, so it may be partially in the range so we have to recurse
-          INode child =
-                  (i < minI || maxI < i) ? null :
-                          (minI < i && i < maxI) ? c :
-                          c.range(min, max);
+    private final INode.IterationType type;
+    private final boolean reverse;
+    private final INode[] path = new INode[MAX_DEPTH];
+    private final int[] indices = new int[MAX_DEPTH];
+    private int depth = 0;
+    private INode leaf, next;
 
-          if (children != null) {
-            children[i] = child;
-          } else if (child == null) {
-            if (numChildren != 0) {
-              // dropping `child`, but the children at previous indices are all identical to this.children, so clone
-              // indices 0..(i-1)
-              children = this.children.clone();
-              children[i] = null;
-            } else {
-              atLeastOneDropped = true;
-            }
-          } else if (child != c) {
-            children = numChildren != 0 ? this.children.clone() : new INode[16];
-            children[i] = child;
-            // we could set atLeastOneChild = true here, but it will never be used since now children != null
-          } else if (atLeastOneDropped) {
-            children = new INode[16];
-            children[i] = child;
-            // we could set atLeastOneChild = true here, but it will never be used since now children != null
-          }
-          if (child != null) {
-            numChildren += 1;
-            onlyChild = child;
-          }
-        }
-      }
+    public Cursor(INode root, INode.IterationType type, boolean reverse) {
+      this.type = type;
+      this.reverse = reverse;
+      this.next = descend(root);
+    }
 
-      return numChildren == 0 ? null :
-              numChildren == 1 ? onlyChild :
-              children == null ? this :
-              new Branch(prefix, offset, epoch, children);
+    // starts at the first key at or after `k`, or at or before it if `reverse`
+    public Cursor(INode root, INode.IterationType type, boolean reverse, long k) {
+      this.type = type;
+      this.reverse = reverse;
+      this.next = seek(root, k);
     }
 
-    public Iterator iterator(final IterationType type, final boolean reverse) {
-      return new Iterator() {
+    // follows the path towards `k`, returning the first leaf on our side of it
+    private INode seek(INode node, long k) {
+      while (true) {
+        if (node instanceof Branch) {
+          Branch branch = (Branch) node;
+          if (!branch.covers(k) || (k < 0) != (branch.prefix < 0)) {
+            // every key beneath us is on one side of `k`
+            return (k < branch.prefix) != reverse ? descend(node) : advance();
+          }
 
-        private byte idx = (byte)(reverse ? 16 : -1);
-        private Iterator iterator = null;
-
-        private void advanceToNext() {
-          while (reverse ? --idx >= 0 : ++idx < 16) {
-            INode c = children[idx];
-            if (c != null) {
-              iterator = children[idx].iterator(type, reverse);
-              if (iterator.hasNext()) {
-                return;
-              }
-            }
+          INode[] children = branch.children;
+          long bit = 1L << branch.indexOf(k);
+          int idx = Long.bitCount(branch.bitmap & (bit - 1));
+          if ((branch.bitmap & bit) != 0) {
+            path[depth] = node;
+            indices[depth++] = idx;
+            node = children[idx];
+            continue;
           }
-          iterator = null;
-        }
 
-        public boolean hasNext() {
-            if (iterator != null && iterator.hasNext()) {
-                return true;
-            }
-            advanceToNext();
-            return iterator != null;
+          // there's no child towards `k`, so start from its nearest sibling on our side
+          idx = reverse ? idx - 1 : idx;
+          if (idx < 0 || idx >= children.length) {
+            return advance();
+          }
+          path[depth] = node;
+          indices[depth++] = idx;
+          return descend(children[idx]);
+        } else if (node instanceof BinaryBranch) {
+          path[depth] = node;
+          indices[depth++] = k < 0 ? 0 : 1;
+          node = k < 0 ? ((BinaryBranch) node).a : ((BinaryBranch) node).b;
+        } else if (node instanceof Strided) {
+          node = ((Strided) node).node;
+        } else if (node instanceof Empty) {
+          return advance();
+        } else {
+          long key = node instanceof Leaf ? ((Leaf) node).key : ((LongLeaf) node).key;
+          return (reverse ? key <= k : key >= k) ? node : advance();
         }
+      }
+    }
 
-        public Object next() {
-          if (iterator != null && iterator.hasNext()) {
-            return iterator.next();
-          } else {
-            advanceToNext();
-            if (iterator != null) return iterator.next();
-            throw new NoSuchElementException();
-          }
+    // returns the first leaf at or beneath `node`, or the first one after it if there are none
+    private INode descend(INode node) {
+      while (true) {
+        if (node instanceof Branch) {
+          INode[] children = ((Branch) node).children;
+          int idx = reverse ? children.length - 1 : 0;
+          path[depth] = node;
+          indices[depth++] = idx;
+          node = children[idx];
+        } else if (node instanceof BinaryBranch) {
+          path[depth] = node;
+          indices[depth++] = reverse ? 1 : 0;
+          node = reverse ? ((BinaryBranch) node).b : ((BinaryBranch) node).a;
+        } else if (node instanceof Strided) {
+          node = ((Strided) node).node;
+        } else if (node instanceof Empty) {
+          return advance();
+        } else {
+          return node;
         }
+      }
+    }
 
-        public void remove() {
-          throw new UnsupportedOperationException();
+    // returns the first leaf after the current path, or null if there are none
+    private INode advance() {
+      while (depth > 0) {
+        INode parent = path[depth - 1];
+        int idx = indices[depth - 1] + (reverse ? -1 : 1);
+        int size = parent instanceof Branch ? ((Branch) parent).children.length : 2;
+        if (idx < 0 || idx >= size) {
+          depth--;
+          continue;
         }
-      };
+
+        indices[depth - 1] = idx;
+        return descend(parent instanceof Branch
+                ? ((Branch) parent).children[idx]
+                : idx == 0 ? ((BinaryBranch) parent).a : ((BinaryBranch) parent).b);
+      }
+      return null;
     }
 
-    public Object get(long k, Object defaultVal) {
-      INode n = children[indexOf(k)];
-      return n == null ? defaultVal : n.get(k, defaultVal);
+    public boolean hasNext() {
+      return next != null;
     }
 
-    public long count() {
-      int count = 0;
-      for (int i = 0; i < 16; i++) {
-        INode n = children[i];
-        if (n != null) count += n.count();
+    // moves to the next entry, and returns its key
+    public long nextKey() {
+      if (next == null) {
+        throw new NoSuchElementException();
       }
-      this.count = count;
-      return count;
+      leaf = next;
+      next = advance();
+      return leaf instanceof Leaf ? ((Leaf) leaf).key : ((LongLeaf) leaf).key;
     }
 
-    public INode merge(INode node, long epoch, IFn f) {
-      if (node instanceof Branch) {
-        Branch branch = (Branch) node;
-        int offsetPrime = offset(prefix, branch.prefix);
+    // the value of the current entry
+    public Object value() {
+      return leaf instanceof Leaf ? ((Leaf) leaf).value : (Object) ((LongLeaf) leaf).value;
+    }
 
-        if (branch.prefix < 0 && this.prefix >= 0) {
-          return new BinaryBranch(branch, this);
-        } else if (branch.prefix >= 0 && this.prefix < 0) {
-          return new BinaryBranch(this, branch);
-        }
+    // the value of the current entry, which must be a number
+    public long longValue() {
+      return leaf instanceof LongLeaf ? ((LongLeaf) leaf).value : ((Number) ((Leaf) leaf).value).longValue();
+    }
 
-        if (offsetPrime > offset && offsetPrime > branch.offset) {
-            return new Branch(prefix, offset(prefix, branch.prefix), epoch, new INode[16])
-                .merge(this, epoch, f)
-                .merge(node, epoch, f);
-        }
+    public Object next() {
+      long k = nextKey();
+      switch (type) {
+        case KEYS:
+          return k;
+        case VALS:
+          return value();
+        case ENTRIES:
+          return new MapEntry(k, value());
+        default:
+          throw new IllegalStateException();
+      }
+    }
 
-        // we contain the other node
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  // the leaves beneath a run of adjacent nodes, which splits on the children of branches so that the size of each half
+  // is known exactly from the maintained counts.  Once a node is being traversed by `cursor`, only the nodes after it
+  // can be split off, which isn't allowed, so we can't split again until the cursor is exhausted.
+  static abstract class Splitter {
+
+    public static final int CHARACTERISTICS = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT
+            | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+
+    INode[] nodes;
+    int lo, hi;
+    long size;
+    Cursor cursor;
+
+    Splitter(INode root) {
+      root = Strided.unwrap(root);
+      this.nodes = new INode[] {root};
+      this.lo = 0;
+      this.hi = root instanceof Empty ? 0 : 1;
+      this.size = root.count();
+    }
+
+    Splitter(INode[] nodes, int lo, int hi, long size) {
+      this.nodes = nodes;
+      this.lo = lo;
+      this.hi = hi;
+      this.size = size;
+    }
+
+    abstract Splitter create(INode[] nodes, int lo, int hi, long size);
+
+    // moves the cursor to a node with leaves remaining, returning false if there are none
+    boolean advance() {
+      while (cursor == null || !cursor.hasNext()) {
+        if (lo == hi) {
+          return false;
+        }
+        cursor = new Cursor(nodes[lo++], INode.IterationType.ENTRIES, false);
+      }
+      return true;
+    }
+
+    // returns the first half of the remaining nodes, which are removed from this spliterator
+    Splitter splitPrefix() {
+      if (cursor != null && cursor.hasNext()) {
+        return null;
+      }
+
+      while (hi - lo == 1) {
+        INode n = nodes[lo];
+        if (n instanceof Branch) {
+          nodes = ((Branch) n).children;
+        } else if (n instanceof BinaryBranch) {
+          nodes = new INode[] {((BinaryBranch) n).a, ((BinaryBranch) n).b};
+        } else {
+          return null;
+        }
+        lo = 0;
+        hi = nodes.length;
+      }
+      if (hi - lo < 2) {
+        return null;
+      }
+
+      int mid = (lo + hi) >>> 1;
+      long prefixSize = 0;
+      for (int i = lo; i < mid; i++) {
+        prefixSize += nodes[i].count();
+      }
+      Splitter prefix = create(nodes, lo, mid, prefixSize);
+      lo = mid;
+      size -= prefixSize;
+      return prefix;
+    }
+
+    public long estimateSize() {
+      return size;
+    }
+
+    public int characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+
+  private static final Comparator<Map.Entry> KEY_ORDER = new Comparator<Map.Entry>() {
+    public int compare(Map.Entry a, Map.Entry b) {
+      return Long.compare((Long) a.getKey(), (Long) b.getKey());
+    }
+  };
+
+  // the entries of a trie, in ascending order of their keys
+  public static class EntrySpliterator extends Splitter implements Spliterator<Map.Entry> {
+
+    public EntrySpliterator(INode root) {
+      super(root);
+    }
+
+    EntrySpliterator(INode[] nodes, int lo, int hi, long size) {
+      super(nodes, lo, hi, size);
+    }
+
+    Splitter create(INode[] nodes, int lo, int hi, long size) {
+      return new EntrySpliterator(nodes, lo, hi, size);
+    }
+
+    public boolean tryAdvance(Consumer<? super Map.Entry> action) {
+      if (!advance()) {
+        return false;
+      }
+      long k = cursor.nextKey();
+      size--;
+      action.accept(new MapEntry(k, cursor.value()));
+      return true;
+    }
+
+    public Spliterator<Map.Entry> trySplit() {
+      return (EntrySpliterator) splitPrefix();
+    }
+
+    public Comparator<Map.Entry> getComparator() {
+      return KEY_ORDER;
+    }
+  }
+
+  // bulk construction, which builds each node exactly once from keys which are already sorted
+
+  static void checkSorted(long[] keys, boolean distinct) {
+    for (int i = 1; i < keys.length; i++) {
+      if (distinct ? keys[i - 1] >= keys[i] : keys[i - 1] > keys[i]) {
+        throw new IllegalArgumentException(distinct ? "Keys must be sorted and distinct." : "Keys must be sorted.");
+      }
+    }
+  }
+
+  public static INode fromSorted(long[] keys, Object[] vals) {
+    if (keys.length != vals.length) {
+      throw new IllegalArgumentException("Must have as many values as keys.");
+    }
+    checkSorted(keys, true);
+    return fromSorted(keys, vals, null);
+  }
+
+  public static INode fromSorted(long[] keys, long[] vals) {
+    if (keys.length != vals.length) {
+      throw new IllegalArgumentException("Must have as many values as keys.");
+    }
+    checkSorted(keys, true);
+    return fromSorted(keys, null, vals);
+  }
+
+  private static INode fromSorted(long[] keys, Object[] vals, long[] longVals) {
+    int n = keys.length;
+    if (n == 0) {
+      return Empty.EMPTY;
+    }
+
+    // negative keys sort first, and are kept apart from the rest beneath a binary branch
+    int split = nextChild(keys, 0, n, 63);
+    return split == n || keys[0] >= 0
+            ? build(keys, vals, longVals, null, 0, n, 4)
+            : new BinaryBranch(build(keys, vals, longVals, null, 0, split, 4), build(keys, vals, longVals, null, split, n, 4));
+  }
+
+  // returns the first index in (start, end) whose key differs from keys[start] at or above `offset`, or `end`
+  private static int nextChild(long[] keys, int start, int end, int offset) {
+    long k = keys[start] >>> offset;
+    int lo = start + 1, hi = end;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if ((keys[mid] >>> offset) == k) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // builds the subtree over [start, end), whose keys all share the same sign, out of new leaves or the existing
+  // `leaves` if there are no values
+  private static INode build(long[] keys, Object[] vals, long[] longVals, INode[] leaves, int start, int end, int bits) {
+    if (end - start == 1) {
+      return vals != null
+              ? new Leaf(keys[start], vals[start])
+              : longVals != null
+              ? new LongLeaf(keys[start], longVals[start])
+              : leaves[start];
+    }
+
+    int offset = offset(keys[start], keys[end - 1], bits);
+    INode[] children = new INode[1 << bits];
+    for (int i = start; i < end; ) {
+      int j = nextChild(keys, i, end, offset);
+      children[(int) ((keys[i] >>> offset) & ((1 << bits) - 1))] = build(keys, vals, longVals, leaves, i, j, bits);
+      i = j;
+    }
+    return new Branch(keys[start], offset, bits, 0, children);
+  }
+
+  // splitting leaves
+
+  // returns true if `node` is a leaf whose key isn't `k`, so that adding `k` would split it into a branch
+  static boolean isOtherLeaf(INode node, long k) {
+    return node instanceof Leaf ? ((Leaf) node).key != k : node instanceof LongLeaf && ((LongLeaf) node).key != k;
+  }
+
+  private static long leafKey(INode leaf) {
+    return leaf instanceof Leaf ? ((Leaf) leaf).key : ((LongLeaf) leaf).key;
+  }
+
+  // a branch consuming `bits` bits over two leaves with different keys of the same sign.  Leaves don't know the stride
+  // of the tree they're in, so a branch splitting one of its leaves calls this itself, with its own stride.
+  static Branch join(long epoch, int bits, INode a, INode b) {
+    long ka = leafKey(a), kb = leafKey(b);
+    int offset = offset(ka, kb, bits);
+    INode[] slots = new INode[1 << bits];
+    slots[(int) ((ka >>> offset) & ((1 << bits) - 1))] = a;
+    slots[(int) ((kb >>> offset) & ((1 << bits) - 1))] = b;
+    return new Branch(ka, offset, bits, epoch, slots);
+  }
+
+  // changing the stride
+
+  // returns `node` with every branch beneath it consuming `bits` bits, rebuilding any branch which doesn't.  Branches
+  // are assumed to have the same stride as their parent, so this is constant-time for a node which is already correct.
+  static INode restride(INode node, int bits) {
+    if (node instanceof BinaryBranch) {
+      BinaryBranch bin = (BinaryBranch) node;
+      INode a = restride(bin.a, bits);
+      INode b = restride(bin.b, bits);
+      return a == bin.a && b == bin.b ? node : new BinaryBranch(a, b);
+    } else if (!(node instanceof Branch) || ((Branch) node).bits == bits) {
+      return node;
+    }
+
+    List<INode> leaves = new ArrayList<INode>();
+    collectLeaves(node, leaves);
+    long[] keys = new long[leaves.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = leafKey(leaves.get(i));
+    }
+    return build(keys, null, null, leaves.toArray(new INode[keys.length]), 0, keys.length, bits);
+  }
+
+  private static void collectLeaves(INode node, List<INode> leaves) {
+    if (node instanceof Branch) {
+      for (INode n : ((Branch) node).children) {
+        collectLeaves(n, leaves);
+      }
+    } else {
+      leaves.add(node);
+    }
+  }
+
+  // returns the root of a map whose branches consume `bits` bits apiece
+  public static INode withStride(INode root, int bits) {
+    if (bits < 4 || bits > 6) {
+      throw new IllegalArgumentException("Fan-out must be 16, 32, or 64.");
+    }
+    INode node = restride(Strided.unwrap(root), bits);
+    return bits == 4 ? node : new Strided(bits, node);
+  }
+
+  // returns an empty root with the same stride as `root`
+  public static INode empty(INode root) {
+    return root instanceof Strided ? new Strided(((Strided) root).bits, Empty.EMPTY) : Empty.EMPTY;
+  }
+
+  // 2-way top-level branch
+  public static class BinaryBranch implements INode {
+
+    public INode a, b;
+
+    public BinaryBranch(INode a, INode b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    public long count() {
+      return a.count() + b.count();
+    }
+
+    public long rank(long k) {
+      return k < 0 ? a.rank(k) : a.count() + b.rank(k);
+    }
+
+    public INode select(long idx) {
+      long n = a.count();
+      return idx < n ? a.select(idx) : b.select(idx - n);
+    }
+
+    public INode floor(long k) {
+      if (k < 0) {
+        return a.floor(k);
+      }
+      INode n = b.floor(k);
+      return n == null ? a.floor(k) : n;
+    }
+
+    public INode ceiling(long k) {
+      if (k >= 0) {
+        return b.ceiling(k);
+      }
+      INode n = a.ceiling(k);
+      return n == null ? b.ceiling(k) : n;
+    }
+
+    public int hash(boolean equiv, int shift) {
+      return a.hash(equiv, shift) + b.hash(equiv, shift);
+    }
+
+    public Iterator iterator(IterationType type, boolean reverse) {
+      return new Cursor(this, type, reverse);
+    }
+
+    public INode range(long min, long max) {
+      if (max < 0) {
+        return a.range(min, max);
+      } else if (min >= 0) {
+        return b.range(min, max);
+      } else {
+        INode aPrime = a.range(min,max);
+        INode bPrime = b.range(min, max);
+
+        if (aPrime == null && bPrime == null) {
+          return Empty.EMPTY;
+        } else if (aPrime == null) {
+          return bPrime;
+        } else if (bPrime == null) {
+          return aPrime;
+        } else {
+          return new BinaryBranch(aPrime, bPrime);
+        }
+      }
+    }
+
+    public INode merge(INode node, long epoch, IFn f) {
+      if (node instanceof BinaryBranch) {
+        BinaryBranch bin = (BinaryBranch) node;
+        return new BinaryBranch(a.merge(bin.a, epoch, f), b.merge(bin.b, epoch, f));
+      } else if (node instanceof Branch) {
+        Branch branch = (Branch) node;
+        return branch.prefix < 0 ? new BinaryBranch(a.merge(node, epoch, f), b) : new BinaryBranch(a, b.merge(node, epoch, f));
+      } else {
+        return node.merge(this, epoch, invert(f));
+      }
+    }
+
+    public INode intersection(INode node, long epoch, IFn f) {
+      if (node == this) {
+        return this;
+      } else if (node instanceof BinaryBranch) {
+        BinaryBranch bin = (BinaryBranch) node;
+        return binaryBranch(this, a.intersection(bin.a, epoch, f), b.intersection(bin.b, epoch, f));
+      } else if (node instanceof Branch) {
+        return ((Branch) node).prefix < 0 ? a.intersection(node, epoch, f) : b.intersection(node, epoch, f);
+      } else {
+        return node.intersection(this, epoch, invert(f));
+      }
+    }
+
+    public INode difference(INode node, long epoch, IFn f) {
+      if (node == this) {
+        return null;
+      } else if (node instanceof BinaryBranch) {
+        BinaryBranch bin = (BinaryBranch) node;
+        return binaryBranch(this, a.difference(bin.a, epoch, f), b.difference(bin.b, epoch, f));
+      } else if (node instanceof Branch) {
+        return ((Branch) node).prefix < 0
+                ? binaryBranch(this, a.difference(node, epoch, f), b)
+                : binaryBranch(this, a, b.difference(node, epoch, f));
+      } else if (node instanceof Empty) {
+        return this;
+      } else {
+        return differenceLeaf(this, node, epoch, f);
+      }
+    }
+
+    public INode assoc(long k, long epoch, IFn f, Object v) {
+      if (k < 0) {
+        INode aPrime = a.assoc(k, epoch, f, v);
+        return a == aPrime ? this : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.assoc(k, epoch, f, v);
+        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public INode dissoc(long k, long epoch) {
+      if (k < 0) {
+        INode aPrime = a.dissoc(k, epoch);
+        return aPrime == null
+                ? b
+                : (a == aPrime)
+                ? this
+                : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.dissoc(k, epoch);
+        return bPrime == null
+                ? a
+                : (b == bPrime)
+                ? this
+                : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public INode update(long k, long epoch, IFn f) {
+      if (k < 0) {
+        INode aPrime = a.update(k, epoch, f);
+        return a == aPrime ? this : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.update(k, epoch, f);
+        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public Object get(long k, Object defaultVal) {
+      return k < 0 ? a.get(k, defaultVal) : b.get(k, defaultVal);
+    }
+
+    public INode assocLong(long k, long epoch, IFn f, long v) {
+      if (k < 0) {
+        INode aPrime = a.assocLong(k, epoch, f, v);
+        return a == aPrime ? this : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.assocLong(k, epoch, f, v);
+        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public INode updateLong(long k, long epoch, IFn f) {
+      if (k < 0) {
+        INode aPrime = a.updateLong(k, epoch, f);
+        return a == aPrime ? this : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.updateLong(k, epoch, f);
+        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public long getLong(long k, long defaultVal) {
+      return k < 0 ? a.getLong(k, defaultVal) : b.getLong(k, defaultVal);
+    }
+
+    public INode addElement(long k, long epoch, short val) {
+      if (k < 0) {
+        INode aPrime = a.addElement(k, epoch, val);
+        return a == aPrime ? this : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.addElement(k, epoch, val);
+        return b == bPrime ? this : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public INode removeElement(long k, long epoch, short val) {
+      if (k < 0) {
+        INode aPrime = a.removeElement(k, epoch, val);
+        return aPrime == null
+                ? b
+                : (a == aPrime)
+                ? this
+                : new BinaryBranch(aPrime, b);
+      } else {
+        INode bPrime = b.removeElement(k, epoch, val);
+        return bPrime == null
+                ? a
+                : (b == bPrime)
+                ? this
+                : new BinaryBranch(a, bPrime);
+      }
+    }
+
+    public Object kvreduce(IFn f, Object init) {
+      init = a.kvreduce(f, init);
+      if (RT.isReduced(init)) return init;
+      return b.kvreduce(f, init);
+    }
+
+    public Object reduce(IFn f, Object init) {
+      init = a.reduce(f, init);
+      if (RT.isReduced(init)) return init;
+      return b.reduce(f, init);
+    }
+
+    public Object fold(final long n, final IFn combiner, final IFn reducer, final IFn fjtask, final IFn fjfork, final IFn fjjoin) {
+      if (count() > n) {
+        Object forked = new Callable() {
+          public Object call() throws Exception {
+            return b.fold(n, combiner, reducer, fjtask, fjfork, fjjoin);
+          }
+        };
+        return combiner.invoke(a.fold(n, combiner, reducer, fjtask, fjfork, fjjoin), fjjoin.invoke(fjfork.invoke(fjtask.invoke(forked))));
+      } else {
+        return foldSerially(this, combiner, reducer);
+      }
+    }
+  }
+
+  // branch node with 2^bits slots, 16 by default, storing only the non-null children in a dense array indexed by the
+  // popcount of `bitmap`
+
+  public static class Branch implements INode {
+    public final long prefix, mask, epoch;
+    public final int offset, bits;
+    long count;
+    public long bitmap;
+    public INode[] children;
+
+    // the cached sums of our entries' hashes, or 0 if they haven't been computed
+    int _hasheq, _hash;
+
+    public Branch(long prefix, int offset, int bits, long epoch, long count, long bitmap, INode[] children) {
+      this.prefix = prefix;
+      this.offset = offset;
+      this.bits = bits;
+      this.epoch = epoch;
+      this.mask = ((1L << bits) - 1) << offset;
+      this.count = count;
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+
+    public Branch(long prefix, int offset, long epoch, INode[] slots) {
+      this(prefix, offset, 4, epoch, slots);
+    }
+
+    // takes all 2^bits slots, some of which may be null
+    public Branch(long prefix, int offset, int bits, long epoch, INode[] slots) {
+      this.prefix = prefix;
+      this.offset = offset;
+      this.bits = bits;
+      this.epoch = epoch;
+      this.mask = ((1L << bits) - 1) << offset;
+
+      long bitmap = 0;
+      for (int i = 0; i < slots.length; i++) {
+        if (slots[i] != null) bitmap |= 1L << i;
+      }
+
+      INode[] children = new INode[Long.bitCount(bitmap)];
+      long count = 0;
+      int idx = 0;
+      for (int i = 0; i < slots.length; i++) {
+        INode n = slots[i];
+        if (n != null) {
+          children[idx++] = n;
+          count += n.count();
+        }
+      }
+
+      this.bitmap = bitmap;
+      this.children = children;
+      this.count = count;
+    }
+
+    public int indexOf(long key) {
+      return (int) ((key & mask) >>> offset);
+    }
+
+    // returns the child in `slot`, or null if there isn't one
+    public INode child(int slot) {
+      long bit = 1L << slot;
+      return (bitmap & bit) == 0 ? null : children[Long.bitCount(bitmap & (bit - 1))];
+    }
+
+    // returns true if `key` falls within the range of keys which can be stored beneath this node
+    public boolean covers(long key) {
+      return offset >= 60 || ((key ^ prefix) >>> (offset + bits)) == 0;
+    }
+
+    // returns a mask of the slots which may hold keys within [min, max]
+    public long slotsWithin(long min, long max) {
+      long nodeMask = offset < 60 ? ((1L << (offset + bits)) - 1) : ~(1L<<63);
+      long nodeMin = prefix & ~nodeMask;
+      long nodeMax = prefix | nodeMask;
+      if (max < nodeMin || nodeMax < min) {
+        return 0;
+      }
+
+      int minI = min <= nodeMin ? 0 : indexOf(min);
+      int maxI = max >= nodeMax ? (1 << bits) - 1 : indexOf(max);
+      return (-1L << minI) & (-1L >>> (63 - maxI));
+    }
+
+    // returns a branch with the given slots, or null/the only child if there are fewer than two
+    private INode withChildren(INode[] slots, long epoch) {
+      INode onlyChild = null;
+      int numChildren = 0;
+      for (int i = 0; i < slots.length; i++) {
+        if (slots[i] != null) {
+          onlyChild = slots[i];
+          numChildren++;
+        }
+      }
+
+      return numChildren == 0 ? null :
+              numChildren == 1 ? onlyChild :
+              new Branch(prefix, offset, bits, epoch, slots);
+    }
+
+    // puts `nPrime` in place of the child `n` at `slot`, whose count was `before` prior to the update, in place if
+    // we're owned by `epoch`.  Returns null if nothing is left beneath us.
+    private INode replaceChild(int slot, long epoch, INode n, INode nPrime, long before) {
+      long delta = (nPrime == null ? 0 : nPrime.count()) - before;
+      if (nPrime == n && delta == 0) {
+        // the child may still have been changed in place
+        if (epoch == this.epoch) {
+          _hasheq = _hash = 0;
+        }
+        return this;
+      } else if (count() + delta == 0) {
+        return null;
+      }
+
+      long bit = 1L << slot;
+      int idx = Long.bitCount(this.bitmap & (bit - 1));
+      long bitmap = this.bitmap;
+      INode[] children;
+
+      if (n != null && nPrime != null) {
+        // same shape, so we can reuse our array if we own it
+        children = epoch == this.epoch ? this.children : this.children.clone();
+        children[idx] = nPrime;
+      } else if (n == null) {
+        children = new INode[this.children.length + 1];
+        System.arraycopy(this.children, 0, children, 0, idx);
+        System.arraycopy(this.children, idx, children, idx + 1, this.children.length - idx);
+        children[idx] = nPrime;
+        bitmap |= bit;
+      } else {
+        children = new INode[this.children.length - 1];
+        System.arraycopy(this.children, 0, children, 0, idx);
+        System.arraycopy(this.children, idx + 1, children, idx, children.length - idx);
+        bitmap &= ~bit;
+      }
+
+      if (epoch == this.epoch) {
+        this.children = children;
+        this.bitmap = bitmap;
+        this.count += delta;
+        _hasheq = _hash = 0;
+        return this;
+      } else {
+        return new Branch(prefix, offset, bits, epoch, count() + delta, bitmap, children);
+      }
+    }
+
+    // puts `leaf` in the empty slot `idx`, or joins it with the other leaf `n` there beneath a branch of our stride
+    private INode addLeaf(int idx, long epoch, INode n, INode leaf) {
+      return n == null
+              ? replaceChild(idx, epoch, null, leaf, 0)
+              : replaceChild(idx, epoch, n, join(epoch, bits, n, leaf), n.count());
+    }
+
+    // merges two children, joining two leaves with different keys beneath a branch of our stride
+    private INode mergeChild(INode n, INode nPrime, long epoch, IFn f) {
+      return (n instanceof Leaf || n instanceof LongLeaf) && isOtherLeaf(nPrime, leafKey(n))
+              ? join(epoch, bits, n, nPrime)
+              : n.merge(nPrime, epoch, f);
+    }
+
+    // returns all 2^bits slots, with null for the missing children
+    private INode[] expand() {
+      INode[] slots = new INode[1 << bits];
+      int idx = 0;
+      for (int i = 0; i < slots.length; i++) {
+        if ((bitmap & (1L << i)) != 0) slots[i] = children[idx++];
+      }
+      return slots;
+    }
+
+    // returns `node` at our stride, if it's a branch built with a different one
+    private INode restrided(INode node) {
+      return node instanceof Branch && ((Branch) node).bits != bits ? restride(node, bits) : node;
+    }
+
+    // returns 0 for no overlap, 1 if there's some overlap, 2 if the left completely covers the right
+    private static int overlap(long min0, long max0, long min1, long max1) {
+      if (min0 <= min1 && max1 <= max0) {
+        return 2;
+      }
+      if (min0 <= max1 && min1 <= max0) {
+        return 1;
+      }
+      return 0;
+    }
+
+    public INode range(long min, long max) {
+      long nodeMask = offset < 60 ? ((1L << (offset + bits)) - 1) : ~(1L<<63);
+      long nodeMin = prefix & ~nodeMask;
+      long nodeMax = prefix | nodeMask;
+      switch (overlap(min, max, nodeMin, nodeMax)) {
+        case 2:
+          return this;
+        case 0:
+          return null;
+        default:
+      }
+
+      int minI = min <= nodeMin ? -1 : indexOf(Math.min(nodeMax, min));
+      int maxI = max >= nodeMax ? 1 << bits : indexOf(Math.max(nodeMin, max));
+
+      INode[] slots = null;
+      int idx = 0;
+
+      for (int i = 0; i < 1 << bits; i++) {
+        if ((bitmap & (1L << i)) != 0) {
+          INode c = children[idx++];
+
+          // if i is outside [minI, maxI], it must have no intersection with the range
+          // if it is strictly inside (minI, maxI) exclusive, it must be fully in the range
+          // otherwise it is minI or maxI, so it may be partially in the range so we have to recurse
+          INode child =
+                  (i < minI || maxI < i) ? null :
+                          (minI < i && i < maxI) ? c :
+                          c.range(min, max);
+
+          if (child != c) {
+            if (slots == null) {
+              slots = expand();
+            }
+            slots[i] = child;
+          }
+        }
+      }
+
+      return slots == null ? this : withChildren(slots, epoch);
+    }
+
+    public Iterator iterator(IterationType type, boolean reverse) {
+      return new Cursor(this, type, reverse);
+    }
+
+    public Object get(long k, Object defaultVal) {
+      INode n = child(indexOf(k));
+      return n == null ? defaultVal : n.get(k, defaultVal);
+    }
+
+    public long count() {
+      return count;
+    }
+
+    public long rank(long k) {
+      // every key beneath us is on one side of `k`
+      if (!covers(k) || (k < 0) != (prefix < 0)) {
+        return k < prefix ? 0 : count();
+      }
+
+      long bit = 1L << indexOf(k);
+      int idx = Long.bitCount(bitmap & (bit - 1));
+      long rank = 0;
+      for (int i = 0; i < idx; i++) {
+        rank += children[i].count();
+      }
+      return (bitmap & bit) == 0 ? rank : rank + children[idx].rank(k);
+    }
+
+    public INode select(long idx) {
+      for (INode n : children) {
+        long c = n.count();
+        if (idx < c) {
+          return n.select(idx);
+        }
+        idx -= c;
+      }
+      return null;
+    }
+
+    // the greatest and least keys beneath a child are found by asking for the floor of MAX_VALUE and the ceiling of
+    // MIN_VALUE, since every key is on one side of them
+    public INode floor(long k) {
+      if (!covers(k) || (k < 0) != (prefix < 0)) {
+        return k < prefix ? null : children[children.length - 1].floor(Long.MAX_VALUE);
+      }
+
+      long bit = 1L << indexOf(k);
+      int idx = Long.bitCount(bitmap & (bit - 1));
+      if ((bitmap & bit) != 0) {
+        INode n = children[idx].floor(k);
+        if (n != null) {
+          return n;
+        }
+      }
+      return idx == 0 ? null : children[idx - 1].floor(Long.MAX_VALUE);
+    }
+
+    public INode ceiling(long k) {
+      if (!covers(k) || (k < 0) != (prefix < 0)) {
+        return k > prefix ? null : children[0].ceiling(Long.MIN_VALUE);
+      }
+
+      long bit = 1L << indexOf(k);
+      int idx = Long.bitCount(bitmap & (bit - 1));
+      if ((bitmap & bit) != 0) {
+        INode n = children[idx].ceiling(k);
+        if (n != null) {
+          return n;
+        }
+        idx++;
+      }
+      return idx == children.length ? null : children[idx].ceiling(Long.MIN_VALUE);
+    }
+
+    public int hash(boolean equiv, int shift) {
+      int hash = equiv ? _hasheq : _hash;
+      if (hash == 0) {
+        for (INode n : children) {
+          hash += n.hash(equiv, shift);
+        }
+        if (equiv) {
+          _hasheq = hash;
+        } else {
+          _hash = hash;
+        }
+      }
+      return hash;
+    }
+
+    public INode merge(INode node, long epoch, IFn f) {
+      node = restrided(node);
+      if (node instanceof Branch) {
+        Branch branch = (Branch) node;
+        int offsetPrime = offset(prefix, branch.prefix, bits);
+
+        if (branch.prefix < 0 && this.prefix >= 0) {
+          return new BinaryBranch(branch, this);
+        } else if (branch.prefix >= 0 && this.prefix < 0) {
+          return new BinaryBranch(this, branch);
+        }
+
+        if (offsetPrime > offset && offsetPrime > branch.offset) {
+            return new Branch(prefix, offsetPrime, bits, epoch, new INode[1 << bits])
+                .merge(this, epoch, f)
+                .merge(node, epoch, f);
+        }
+
+        // we contain the other node
         if (offset > branch.offset) {
           int idx = indexOf(branch.prefix);
-          INode[] children = arraycopy();
-          INode n = children[idx];
+          INode n = child(idx);
+          INode[] children = expand();
           children[idx] = n != null ? n.merge(node, epoch, f) : node;
-          return new Branch(prefix, offset, epoch, children);
+          return new Branch(prefix, offset, bits, epoch, children);
+
+        }
+
+        if (offset < branch.offset) {
+          return branch.merge(this, epoch, invert(f));
+        }
+
+        INode[] children = new INode[1 << bits];
+        int offset = this.offset;
+
+        for (int i = 0; i < children.length; i++) {
+          INode n = child(i);
+          INode nPrime = branch.child(i);
+          if (n == null) {
+            children[i] = nPrime;
+          } else if (nPrime == null) {
+            children[i] = n;
+          } else {
+            children[i] = mergeChild(n, nPrime, epoch, f);
+          }
+        }
+        return new Branch(prefix, offset, bits, epoch, children);
+
+      } else {
+        return node.merge(this, epoch, invert(f));
+      }
+    }
+
+    public INode intersection(INode node, long epoch, IFn f) {
+      node = restrided(node);
+      if (node == this) {
+        return this;
+      } else if (!(node instanceof Branch)) {
+        return node.intersection(this, epoch, invert(f));
+      }
+
+      Branch branch = (Branch) node;
+      if (offset > branch.offset) {
+        INode n = covers(branch.prefix) ? child(indexOf(branch.prefix)) : null;
+        return n == null ? null : n.intersection(node, epoch, f);
+      } else if (offset < branch.offset) {
+        INode n = branch.covers(prefix) ? branch.child(branch.indexOf(prefix)) : null;
+        return n == null ? null : intersection(n, epoch, f);
+      } else if (!covers(branch.prefix)) {
+        return null;
+      }
 
+      // the same range of keys, so intersect each child in turn
+      INode[] children = null;
+      for (int i = 0; i < 1 << bits; i++) {
+        INode n = child(i);
+        INode nPrime = branch.child(i);
+        INode child = (n == null || nPrime == null) ? null : n.intersection(nPrime, epoch, f);
+        if (child != n) {
+          if (children == null) {
+            children = expand();
+          }
+          children[i] = child;
         }
+      }
+      return children == null ? this : withChildren(children, epoch);
+    }
 
-        if (offset < branch.offset) {
-          return branch.merge(this, epoch, invert(f));
-        }
+    public INode difference(INode node, long epoch, IFn f) {
+      node = restrided(node);
+      if (node == this) {
+        return null;
+      } else if (node instanceof BinaryBranch) {
+        BinaryBranch bin = (BinaryBranch) node;
+        return difference(prefix < 0 ? bin.a : bin.b, epoch, f);
+      } else if (node instanceof Empty) {
+        return this;
+      } else if (!(node instanceof Branch)) {
+        return differenceLeaf(this, node, epoch, f);
+      }
 
-        INode[] children = new INode[16];
-        INode[] branchChildren = branch.children;
-        int offset = this.offset;
+      Branch branch = (Branch) node;
+      if (offset > branch.offset) {
+        if (!covers(branch.prefix)) {
+          return this;
+        }
+        int idx = indexOf(branch.prefix);
+        INode n = child(idx);
+        INode nPrime = n == null ? null : n.difference(node, epoch, f);
+        if (nPrime == n) {
+          return this;
+        }
+        INode[] children = expand();
+        children[idx] = nPrime;
+        return withChildren(children, epoch);
+      } else if (offset < branch.offset) {
+        INode n = branch.covers(prefix) ? branch.child(branch.indexOf(prefix)) : null;
+        return n == null ? this : difference(n, epoch, f);
+      } else if (!covers(branch.prefix)) {
+        return this;
+      }
 
-        for (int i = 0; i < 16; i++) {
-          INode n = this.children[i];
-          INode nPrime = branchChildren[i];
-          if (n == null) {
-            children[i] = nPrime;
-          } else if (nPrime == null) {
-            children[i] = n;
-          } else {
-            children[i] = n.merge(nPrime, epoch, f);
+      // the same range of keys, so subtract each child in turn
+      INode[] children = null;
+      for (int i = 0; i < 1 << bits; i++) {
+        INode n = child(i);
+        INode nPrime = branch.child(i);
+        INode child = (n == null || nPrime == null) ? n : n.difference(nPrime, epoch, f);
+        if (child != n) {
+          if (children == null) {
+            children = expand();
           }
+          children[i] = child;
         }
-        return new Branch(prefix, offset, epoch, children);
-
-      } else {
-        return node.merge(this, epoch, invert(f));
       }
+      return children == null ? this : withChildren(children, epoch);
     }
 
     public INode assoc(long k, long epoch, IFn f, Object v) {
-      int offsetPrime = offset(k, prefix);
+      int offsetPrime = offset(k, prefix, bits);
 
       // need a new branch above us both
       if (prefix < 0 && k >= 0) {
@@ -451,173 +1543,417 @@ public class Nodes {
       } else if (k < 0 && prefix >= 0) {
         return new BinaryBranch(new Leaf(k, v), this);
       } else if (offsetPrime > this.offset) {
-        return new Branch(k, offsetPrime, epoch, new INode[16])
+        return new Branch(k, offsetPrime, bits, epoch, new INode[1 << bits])
                 .merge(this, epoch, null)
                 .assoc(k, epoch, f, v);
 
         // somewhere at or below our level
       } else {
-        int idx = indexOf(k);
-        INode n = children[idx];
-        if (n == null) {
-          if (epoch == this.epoch) {
-            children[idx] = new Leaf(k, v);
-            count = -1;
-            return this;
-          } else {
-            INode[] children = arraycopy();
-            children[idx] = new Leaf(k, v);
-            return new Branch(prefix, offset, epoch, count, children);
-          }
-        } else {
-          INode nPrime = n.assoc(k, epoch, f, v);
-          if (nPrime == n) {
-            count = -1;
-            return this;
-          } else {
-            INode[] children = arraycopy();
-            children[idx] = nPrime;
-            return new Branch(prefix, offset, epoch, count, children);
-          }
-        }
+        int idx = indexOf(k);
+        INode n = child(idx);
+        if (n == null || isOtherLeaf(n, k)) {
+          return addLeaf(idx, epoch, n, new Leaf(k, v));
+        } else {
+          long before = n.count();
+          return replaceChild(idx, epoch, n, n.assoc(k, epoch, f, v), before);
+        }
+      }
+    }
+
+    public INode dissoc(long k, long epoch) {
+      int idx = indexOf(k);
+      INode n = child(idx);
+      if (n == null) {
+        return this;
+      } else {
+        long before = n.count();
+        return replaceChild(idx, epoch, n, n.dissoc(k, epoch), before);
+      }
+    }
+
+    public INode update(long k, long epoch, IFn f) {
+      int offsetPrime = offset(k, prefix, bits);
+
+      // need a new branch above us both
+      if (prefix < 0 && k >= 0) {
+        return new BinaryBranch(this, new Leaf(k, f.invoke(null)));
+      } else if (k < 0 && prefix >= 0) {
+        return new BinaryBranch(new Leaf(k, f.invoke(null)), this);
+      } else if (offsetPrime > this.offset) {
+        return new Branch(k, offsetPrime, bits, epoch, new INode[1 << bits])
+                .merge(this, epoch, null)
+                .update(k, epoch, f);
+      }
+
+      int idx = indexOf(k);
+      INode n = child(idx);
+      if (n == null || isOtherLeaf(n, k)) {
+        return addLeaf(idx, epoch, n, new Leaf(k, f.invoke(null)));
+      } else {
+        long before = n.count();
+        return replaceChild(idx, epoch, n, n.update(k, epoch, f), before);
+      }
+    }
+
+    public INode assocLong(long k, long epoch, IFn f, long v) {
+      int offsetPrime = offset(k, prefix, bits);
+
+      // need a new branch above us both
+      if (prefix < 0 && k >= 0) {
+        return new BinaryBranch(this, new LongLeaf(k, v));
+      } else if (k < 0 && prefix >= 0) {
+        return new BinaryBranch(new LongLeaf(k, v), this);
+      } else if (offsetPrime > this.offset) {
+        return new Branch(k, offsetPrime, bits, epoch, new INode[1 << bits])
+                .merge(this, epoch, null)
+                .assocLong(k, epoch, f, v);
+      }
+
+      int idx = indexOf(k);
+      INode n = child(idx);
+      if (n == null || isOtherLeaf(n, k)) {
+        return addLeaf(idx, epoch, n, new LongLeaf(k, v));
+      } else {
+        long before = n.count();
+        return replaceChild(idx, epoch, n, n.assocLong(k, epoch, f, v), before);
+      }
+    }
+
+    public INode updateLong(long k, long epoch, IFn f) {
+      int offsetPrime = offset(k, prefix, bits);
+
+      // need a new branch above us both
+      if (prefix < 0 && k >= 0) {
+        return new BinaryBranch(this, new LongLeaf(k, invokeLong(f, 0)));
+      } else if (k < 0 && prefix >= 0) {
+        return new BinaryBranch(new LongLeaf(k, invokeLong(f, 0)), this);
+      } else if (offsetPrime > this.offset) {
+        return new Branch(k, offsetPrime, bits, epoch, new INode[1 << bits])
+                .merge(this, epoch, null)
+                .updateLong(k, epoch, f);
+      }
+
+      int idx = indexOf(k);
+      INode n = child(idx);
+      if (n == null || isOtherLeaf(n, k)) {
+        return addLeaf(idx, epoch, n, new LongLeaf(k, invokeLong(f, 0)));
+      } else {
+        long before = n.count();
+        return replaceChild(idx, epoch, n, n.updateLong(k, epoch, f), before);
+      }
+    }
+
+    public long getLong(long k, long defaultVal) {
+      INode n = child(indexOf(k));
+      return n == null ? defaultVal : n.getLong(k, defaultVal);
+    }
+
+    public INode addElement(long k, long epoch, short val) {
+      int offsetPrime = offset(k, prefix, bits);
+
+      // need a new branch above us both
+      if (prefix < 0 && k >= 0) {
+        return new BinaryBranch(this, new Leaf(k, new IntSet.SingleContainer(val)));
+      } else if (k < 0 && prefix >= 0) {
+        return new BinaryBranch(new Leaf(k, new IntSet.SingleContainer(val)), this);
+      } else if (offsetPrime > this.offset) {
+        return new Branch(k, offsetPrime, bits, epoch, new INode[1 << bits])
+                .merge(this, epoch, null)
+                .addElement(k, epoch, val);
+      }
+
+      int idx = indexOf(k);
+      INode n = child(idx);
+      if (n == null || isOtherLeaf(n, k)) {
+        return addLeaf(idx, epoch, n, new Leaf(k, new IntSet.SingleContainer(val)));
+      } else {
+        long before = n.count();
+        return replaceChild(idx, epoch, n, n.addElement(k, epoch, val), before);
+      }
+    }
+
+    public INode removeElement(long k, long epoch, short val) {
+      int idx = indexOf(k);
+      INode n = child(idx);
+      if (n == null) {
+        return this;
+      }
+
+      long before = n.count();
+      return replaceChild(idx, epoch, n, n.removeElement(k, epoch, val), before);
+    }
+
+    public Object kvreduce(IFn f, Object init) {
+      for (INode n : children) {
+        init = n.kvreduce(f, init);
+        if (RT.isReduced(init)) break;
+      }
+      return init;
+    }
+
+    public Object reduce(IFn f, Object init) {
+      for (INode n : children) {
+        init = n.reduce(f, init);
+        if (RT.isReduced(init)) break;
+      }
+      return init;
+    }
+
+    // adapted from the PersistentHashMap.ArrayNode implementation
+    static public Object foldTasks(List<Callable> tasks, final IFn combiner, final IFn fjtask, final IFn fjfork, final IFn fjjoin) {
+
+      if (tasks.isEmpty()) {
+        return combiner.invoke();
+
+        // just wait on the one value
+      } else if (tasks.size() == 1) {
+        try {
+          return tasks.get(0).call();
+        } catch (Exception e) {
+          throw Util.sneakyThrow(e);
+        }
+
+        // divide and conquer
+      } else {
+        List<Callable> t1 = tasks.subList(0, tasks.size() / 2);
+        final List<Callable> t2 = tasks.subList(tasks.size() / 2, tasks.size());
+
+        Object forked = fjfork.invoke(fjtask.invoke(new Callable() {
+          public Object call() throws Exception {
+            return foldTasks(t2, combiner, fjtask, fjfork, fjjoin);
+          }
+        }));
+
+        return combiner.invoke(foldTasks(t1, combiner, fjtask, fjfork, fjjoin), fjjoin.invoke(forked));
+      }
+    }
+
+    public Object fold(final long n, final IFn combiner, final IFn reducer, final IFn fjtask, final IFn fjfork, final IFn fjjoin) {
+      if (count() > n) {
+        List<Callable> tasks = new ArrayList();
+        for (final INode node : children) {
+          tasks.add(new Callable() {
+            public Object call() throws Exception {
+              return node.fold(n, combiner, reducer, fjtask, fjfork, fjjoin);
+            }
+          });
+        }
+        return foldTasks(tasks, combiner, fjtask, fjfork, fjjoin);
+      } else {
+        return foldSerially(this, combiner, reducer);
+      }
+    }
+  }
+
+  // leaf node
+  public static class Leaf implements INode {
+    public final long key;
+    public final Object value;
+
+    public Leaf(long key, Object value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public Iterator iterator(final IterationType type, boolean reverse) {
+      return new Iterator() {
+
+        boolean iterated = false;
+
+        public boolean hasNext() {
+          return !iterated;
+        }
+
+        public Object next() {
+          if (iterated) {
+            throw new NoSuchElementException();
+          } else {
+            iterated = true;
+            switch(type) {
+              case KEYS:
+                return key;
+              case VALS:
+                return value;
+              case ENTRIES:
+                return new clojure.lang.MapEntry(key, value);
+              default:
+                throw new IllegalStateException();
+            }
+          }
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public INode range(long min, long max) {
+      return (min <= key && key <= max) ? this : null;
+    }
+
+    public Object reduce(IFn f, Object init) {
+      return f.invoke(init, new clojure.lang.MapEntry(key, value));
+    }
+
+    public Object kvreduce(IFn f, Object init) {
+      return f.invoke(init, key, value);
+    }
+
+    public Object fold(long n, IFn combiner, IFn reducer, IFn fjtask, IFn fjfork, IFn fjjoin) {
+      return foldSerially(this, combiner, reducer);
+    }
+
+    // a leaf holding an int-set container counts as many elements as the container
+    public long count() {
+      return value instanceof IntSet.Container ? ((IntSet.Container) value).count() : 1;
+    }
+
+    public long rank(long k) {
+      return key < k ? count() : 0;
+    }
+
+    public INode select(long idx) {
+      return this;
+    }
+
+    public INode floor(long k) {
+      return key <= k ? this : null;
+    }
+
+    public INode ceiling(long k) {
+      return key >= k ? this : null;
+    }
+
+    public int hash(boolean equiv, int shift) {
+      return value instanceof IntSet.Container
+              ? ((IntSet.Container) value).hash(key << shift, equiv)
+              : hashEntry(key, value, equiv);
+    }
+
+    public INode merge(INode node, long epoch, IFn f) {
+      return node.assoc(key, epoch, invert(f), value);
+    }
+
+    public INode intersection(INode node, long epoch, IFn f) {
+      if (node == this) {
+        return this;
+      }
+
+      Object val = node.get(key, NOT_FOUND);
+      if (val == NOT_FOUND) {
+        return null;
+      }
+
+      Object valPrime = f.invoke(value, val);
+      return valPrime == null ? null : valPrime == value ? this : new Leaf(key, valPrime);
+    }
+
+    public INode difference(INode node, long epoch, IFn f) {
+      if (node == this) {
+        return null;
+      }
+
+      Object val = node.get(key, NOT_FOUND);
+      if (val == NOT_FOUND) {
+        return this;
+      }
+
+      Object valPrime = f.invoke(value, val);
+      return valPrime == null ? null : valPrime == value ? this : new Leaf(key, valPrime);
+    }
+
+    public INode assoc(long k, long epoch, IFn f, Object v) {
+      if (k == key) {
+        v = f == null ? v : f.invoke(value, v);
+        return new Leaf(k, v);
+      } else if (key < 0 && k >= 0) {
+        return new BinaryBranch(this, new Leaf(k, v));
+      } else if (k < 0 && key >= 0) {
+        return new BinaryBranch(new Leaf(k, v), this);
+      } else {
+        return join(epoch, 4, this, new Leaf(k, v));
       }
     }
 
     public INode dissoc(long k, long epoch) {
-      int idx = indexOf(k);
-      INode n = children[idx];
-      if (n == null) {
-        return this;
+      if (key == k) {
+        return null;
       } else {
-        INode nPrime = n.dissoc(k, epoch);
-        if (nPrime == n) {
-          count = -1;
-          return this;
-        } else {
-          INode[] children = arraycopy();
-          children[idx] = nPrime;
-          for (int i = 0; i < 16; i++) {
-            if (children[i] != null) {
-              return new Branch(prefix, offset, epoch, count, children);
-            }
-          }
-          return null;
-        }
+        return this;
       }
     }
 
     public INode update(long k, long epoch, IFn f) {
-      int offsetPrime = offset(k, prefix);
-
-      // need a new branch above us both
-      if (prefix < 0 && k >= 0) {
-        return new BinaryBranch(this, new Leaf(k, f.invoke(null)));
-      } else if (k < 0 && prefix >= 0) {
-        return new BinaryBranch(new Leaf(k, f.invoke(null)), this);
-      } else if (offsetPrime > this.offset) {
-        return new Branch(k, offsetPrime, epoch, new INode[16])
-                .merge(this, epoch, null)
-                .update(k, epoch, f);
-      }
-
-      int idx = indexOf(k);
-      INode n = children[idx];
-      if (n == null) {
-        if (epoch == this.epoch) {
-          children[idx] = new Leaf(k, f.invoke(null));
-          count = -1;
-          return this;
-        } else {
-          INode[] children = arraycopy();
-          children[idx] = new Leaf(k, f.invoke(null));
-          return new Branch(prefix, offset, epoch, count, children);
-        }
+      if (k == key) {
+        Object v = f.invoke(value);
+        return new Leaf(k, v);
       } else {
-        INode nPrime = n.update(k, epoch, f);
-        if (nPrime == n) {
-          count = -1;
-          return this;
-        } else {
-          INode[] children = arraycopy();
-          children[idx] = nPrime;
-          return new Branch(prefix, offset, epoch, count, children);
-        }
+        return this.assoc(k, epoch, null, f.invoke(null));
       }
     }
 
-    public Object kvreduce(IFn f, Object init) {
-      for (int i = 0; i < 16; i++) {
-        INode n = children[i];
-        if (n != null) init = n.kvreduce(f, init);
-        if (RT.isReduced(init)) break;
-      }
-      return init;
+    public Object get(long k, Object defaultVal) {
+      if (k == key) return value;
+      return defaultVal;
     }
 
-    public Object reduce(IFn f, Object init) {
-      for (int i = 0; i < 16; i++) {
-        INode n = children[i];
-        if (n != null) init = n.reduce(f, init);
-        if (RT.isReduced(init)) break;
+    public INode assocLong(long k, long epoch, IFn f, long v) {
+      if (k == key) {
+        return new LongLeaf(k, f == null ? v : ((Number) f.invoke(value, v)).longValue());
+      } else if (key < 0 && k >= 0) {
+        return new BinaryBranch(this, new LongLeaf(k, v));
+      } else if (k < 0 && key >= 0) {
+        return new BinaryBranch(new LongLeaf(k, v), this);
+      } else {
+        return join(epoch, 4, this, new LongLeaf(k, v));
       }
-      return init;
     }
 
-    // adapted from the PersistentHashMap.ArrayNode implementation
-    static public Object foldTasks(List<Callable> tasks, final IFn combiner, final IFn fjtask, final IFn fjfork, final IFn fjjoin) {
-
-      if (tasks.isEmpty()) {
-        return combiner.invoke();
-
-        // just wait on the one value
-      } else if (tasks.size() == 1) {
-        try {
-          return tasks.get(0).call();
-        } catch (Exception e) {
-          throw Util.sneakyThrow(e);
-        }
-
-        // divide and conquer
+    public INode updateLong(long k, long epoch, IFn f) {
+      if (k == key) {
+        return new LongLeaf(k, invokeLong(f, ((Number) value).longValue()));
       } else {
-        List<Callable> t1 = tasks.subList(0, tasks.size() / 2);
-        final List<Callable> t2 = tasks.subList(tasks.size() / 2, tasks.size());
+        return this.assocLong(k, epoch, null, invokeLong(f, 0));
+      }
+    }
 
-        Object forked = fjfork.invoke(fjtask.invoke(new Callable() {
-          public Object call() throws Exception {
-            return foldTasks(t2, combiner, fjtask, fjfork, fjjoin);
-          }
-        }));
+    public long getLong(long k, long defaultVal) {
+      if (k == key) return ((Number) value).longValue();
+      return defaultVal;
+    }
 
-        return combiner.invoke(foldTasks(t1, combiner, fjtask, fjfork, fjjoin), fjjoin.invoke(forked));
+    public INode addElement(long k, long epoch, short val) {
+      if (k == key) {
+        ISet s = (ISet) value;
+        ISet sPrime = s.add(epoch, val);
+        return s == sPrime ? this : new Leaf(k, sPrime);
+      } else {
+        return assoc(k, epoch, null, new IntSet.SingleContainer(val));
       }
     }
 
-    public Object fold(final long n, final IFn combiner, final IFn reducer, final IFn fjtask, final IFn fjfork, final IFn fjjoin) {
-      if (n > count()) {
-        List<Callable> tasks = new ArrayList();
-        for (int i = 0; i < 16; i++) {
-          final INode node = children[i];
-          if (node != null) {
-            tasks.add(new Callable() {
-              public Object call() throws Exception {
-                return node.fold(n, combiner, reducer, fjtask, fjfork, fjjoin);
-              }
-            });
-          }
-        }
-        return foldTasks(tasks, combiner, fjtask, fjfork, fjjoin);
+    public INode removeElement(long k, long epoch, short val) {
+      if (k == key) {
+        ISet s = (ISet) value;
+        ISet sPrime = s.remove(epoch, val);
+        return s == sPrime
+                ? this
+                : sPrime == null
+                ? null
+                : new Leaf(k, sPrime);
       } else {
-        return kvreduce(reducer, combiner.invoke());
+        return this;
       }
     }
   }
 
-  // leaf node
-  public static class Leaf implements INode {
+  // leaf node with an unboxed value
+  public static class LongLeaf implements INode {
     public final long key;
-    public final Object value;
+    public final long value;
 
-    public Leaf(long key, Object value) {
+    public LongLeaf(long key, long value) {
       this.key = key;
       this.value = value;
     }
@@ -664,19 +2000,69 @@ public class Nodes {
     }
 
     public Object kvreduce(IFn f, Object init) {
-      return f.invoke(init, key, value);
+      return kvinvoke(f, init, key, value);
     }
 
     public Object fold(long n, IFn combiner, IFn reducer, IFn fjtask, IFn fjfork, IFn fjjoin) {
-      return kvreduce(reducer, combiner.invoke());
+      return foldSerially(this, combiner, reducer);
     }
 
     public long count() {
       return 1;
     }
 
+    public long rank(long k) {
+      return key < k ? 1 : 0;
+    }
+
+    public INode select(long idx) {
+      return this;
+    }
+
+    public INode floor(long k) {
+      return key <= k ? this : null;
+    }
+
+    public INode ceiling(long k) {
+      return key >= k ? this : null;
+    }
+
+    public int hash(boolean equiv, int shift) {
+      return equiv
+              ? Murmur3.mixCollHash(31 * (31 + Murmur3.hashLong(key)) + Murmur3.hashLong(value), 2)
+              : Long.hashCode(key) ^ Long.hashCode(value);
+    }
+
     public INode merge(INode node, long epoch, IFn f) {
-      return node.assoc(key, epoch, invert(f), value);
+      return node.assocLong(key, epoch, invert(f), value);
+    }
+
+    public INode intersection(INode node, long epoch, IFn f) {
+      if (node == this) {
+        return this;
+      }
+
+      Object val = node.get(key, NOT_FOUND);
+      if (val == NOT_FOUND) {
+        return null;
+      }
+
+      Object valPrime = f.invoke(value, val);
+      return valPrime == null ? null : new LongLeaf(key, ((Number) valPrime).longValue());
+    }
+
+    public INode difference(INode node, long epoch, IFn f) {
+      if (node == this) {
+        return null;
+      }
+
+      Object val = node.get(key, NOT_FOUND);
+      if (val == NOT_FOUND) {
+        return this;
+      }
+
+      Object valPrime = f.invoke(value, val);
+      return valPrime == null ? null : new LongLeaf(key, ((Number) valPrime).longValue());
     }
 
     public INode assoc(long k, long epoch, IFn f, Object v) {
@@ -688,9 +2074,19 @@ public class Nodes {
       } else if (k < 0 && key >= 0) {
         return new BinaryBranch(new Leaf(k, v), this);
       } else {
-        return new Branch(k, offset(k, key), epoch, new INode[16])
-                .assoc(key, epoch, f, value)
-                .assoc(k, epoch, f, v);
+        return join(epoch, 4, this, new Leaf(k, v));
+      }
+    }
+
+    public INode assocLong(long k, long epoch, IFn f, long v) {
+      if (k == key) {
+        return new LongLeaf(k, mergeLong(f, value, v));
+      } else if (key < 0 && k >= 0) {
+        return new BinaryBranch(this, new LongLeaf(k, v));
+      } else if (k < 0 && key >= 0) {
+        return new BinaryBranch(new LongLeaf(k, v), this);
+      } else {
+        return join(epoch, 4, this, new LongLeaf(k, v));
       }
     }
 
@@ -704,17 +2100,166 @@ public class Nodes {
 
     public INode update(long k, long epoch, IFn f) {
       if (k == key) {
-        Object v = f.invoke(value);
-        return new Leaf(k, v);
+        return new Leaf(k, f.invoke(value));
       } else {
         return this.assoc(k, epoch, null, f.invoke(null));
       }
     }
 
+    public INode updateLong(long k, long epoch, IFn f) {
+      if (k == key) {
+        return new LongLeaf(k, invokeLong(f, value));
+      } else {
+        return this.assocLong(k, epoch, null, invokeLong(f, 0));
+      }
+    }
+
     public Object get(long k, Object defaultVal) {
       if (k == key) return value;
       return defaultVal;
     }
+
+    public long getLong(long k, long defaultVal) {
+      if (k == key) return value;
+      return defaultVal;
+    }
+
+    public INode addElement(long k, long epoch, short val) {
+      throw new IllegalStateException("int-long-map leaves hold no set containers");
+    }
+
+    public INode removeElement(long k, long epoch, short val) {
+      throw new IllegalStateException("int-long-map leaves hold no set containers");
+    }
+  }
+
+  // root node for a map whose branches have a fan-out other than 16.  Branches split their own leaves at their stride,
+  // so we only need to split the leaves at the top of the tree, and rebuild what's merged in from a map of another width.
+  public static class Strided implements INode {
+    public final int bits;
+    public final INode node;
+
+    public Strided(int bits, INode node) {
+      this.bits = bits;
+      this.node = node;
+    }
+
+    static INode unwrap(INode node) {
+      return node instanceof Strided ? ((Strided) node).node : node;
+    }
+
+    private INode wrap(INode n) {
+      n = n == null ? Empty.EMPTY : n;
+      return n == node ? this : new Strided(bits, n);
+    }
+
+    // returns true if adding `k` would split a leaf at the top of the tree
+    private boolean splits(long k) {
+      INode n = node instanceof BinaryBranch ? (k < 0 ? ((BinaryBranch) node).a : ((BinaryBranch) node).b) : node;
+      return isOtherLeaf(n, k) && (leafKey(n) < 0) == (k < 0);
+    }
+
+    private INode split(long epoch, INode leaf) {
+      if (node instanceof BinaryBranch) {
+        BinaryBranch bin = (BinaryBranch) node;
+        return leafKey(leaf) < 0
+                ? new BinaryBranch(join(epoch, bits, bin.a, leaf), bin.b)
+                : new BinaryBranch(bin.a, join(epoch, bits, bin.b, leaf));
+      }
+      return join(epoch, bits, node, leaf);
+    }
+
+    public long count() {
+      return node.count();
+    }
+
+    public long rank(long k) {
+      return node.rank(k);
+    }
+
+    public INode select(long idx) {
+      return node.select(idx);
+    }
+
+    public INode floor(long k) {
+      return node.floor(k);
+    }
+
+    public INode ceiling(long k) {
+      return node.ceiling(k);
+    }
+
+    public int hash(boolean equiv, int shift) {
+      return node.hash(equiv, shift);
+    }
+
+    public Iterator iterator(IterationType type, boolean reverse) {
+      return node.iterator(type, reverse);
+    }
+
+    public INode range(long min, long max) {
+      return wrap(node.range(min, max));
+    }
+
+    public INode merge(INode n, long epoch, IFn f) {
+      return wrap(restride(node.merge(unwrap(n), epoch, f), bits));
+    }
+
+    public INode intersection(INode n, long epoch, IFn f) {
+      return wrap(node.intersection(unwrap(n), epoch, f));
+    }
+
+    public INode difference(INode n, long epoch, IFn f) {
+      return wrap(node.difference(unwrap(n), epoch, f));
+    }
+
+    public INode assoc(long k, long epoch, IFn f, Object v) {
+      return wrap(splits(k) ? split(epoch, new Leaf(k, v)) : node.assoc(k, epoch, f, v));
+    }
+
+    public INode dissoc(long k, long epoch) {
+      return wrap(node.dissoc(k, epoch));
+    }
+
+    public INode update(long k, long epoch, IFn f) {
+      return wrap(splits(k) ? split(epoch, new Leaf(k, f.invoke(null))) : node.update(k, epoch, f));
+    }
+
+    public Object get(long k, Object defaultVal) {
+      return node.get(k, defaultVal);
+    }
+
+    public INode assocLong(long k, long epoch, IFn f, long v) {
+      return wrap(splits(k) ? split(epoch, new LongLeaf(k, v)) : node.assocLong(k, epoch, f, v));
+    }
+
+    public INode updateLong(long k, long epoch, IFn f) {
+      return wrap(splits(k) ? split(epoch, new LongLeaf(k, invokeLong(f, 0))) : node.updateLong(k, epoch, f));
+    }
+
+    public long getLong(long k, long defaultVal) {
+      return node.getLong(k, defaultVal);
+    }
+
+    public INode addElement(long k, long epoch, short val) {
+      return wrap(splits(k) ? split(epoch, new Leaf(k, new IntSet.SingleContainer(val))) : node.addElement(k, epoch, val));
+    }
+
+    public INode removeElement(long k, long epoch, short val) {
+      return wrap(node.removeElement(k, epoch, val));
+    }
+
+    public Object kvreduce(IFn f, Object init) {
+      return node.kvreduce(f, init);
+    }
+
+    public Object reduce(IFn f, Object init) {
+      return node.reduce(f, init);
+    }
+
+    public Object fold(long n, IFn combiner, IFn reducer, IFn fjtask, IFn fjfork, IFn fjjoin) {
+      return node.fold(n, combiner, reducer, fjtask, fjfork, fjjoin);
+    }
   }
 
   // empty node
@@ -762,10 +2307,38 @@ public class Nodes {
       return 0;
     }
 
+    public long rank(long k) {
+      return 0;
+    }
+
+    public INode select(long idx) {
+      return null;
+    }
+
+    public INode floor(long k) {
+      return null;
+    }
+
+    public INode ceiling(long k) {
+      return null;
+    }
+
+    public int hash(boolean equiv, int shift) {
+      return 0;
+    }
+
     public INode merge(INode node, long epoch, IFn f) {
       return node;
     }
 
+    public INode intersection(INode node, long epoch, IFn f) {
+      return null;
+    }
+
+    public INode difference(INode node, long epoch, IFn f) {
+      return null;
+    }
+
     public INode assoc(long k, long epoch, IFn f, Object v) {
       return new Leaf(k, v);
     }
@@ -781,5 +2354,25 @@ public class Nodes {
     public Object get(long k, Object defaultVal) {
       return defaultVal;
     }
+
+    public INode assocLong(long k, long epoch, IFn f, long v) {
+      return new LongLeaf(k, v);
+    }
+
+    public INode updateLong(long k, long epoch, IFn f) {
+      return new LongLeaf(k, invokeLong(f, 0));
+    }
+
+    public long getLong(long k, long defaultVal) {
+      return defaultVal;
+    }
+
+    public INode addElement(long k, long epoch, short val) {
+      return new Leaf(k, new IntSet.SingleContainer(val));
+    }
+
+    public INode removeElement(long k, long epoch, short val) {
+      return this;
+    }
   }
 }
@@ -0,0 +1,743 @@
+//  Copyright (c) Zach Tellman, Rich Hickey and contributors. All rights reserved.
+//  The use and distribution terms for this software are covered by the
+//  Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+//  which can be found in the file epl-v10.html at the root of this distribution.
+//  By using this software in any fashion, you are agreeing to be bound by
+//  the terms of this license.
+//  You must not remove this notice, or any other, from this software.
+
+package clojure.data.int_map;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.MapEntry;
+import clojure.lang.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Reads and writes int-sets in the portable format for 64-bit Roaring bitmaps, as described by
+// https://github.com/RoaringBitmap/RoaringFormatSpec.  Elements are ordered as unsigned longs, and grouped by their
+// upper 32 bits into 32-bit bitmaps, each of which is a sequence of containers holding up to 2^16 elements as a
+// sorted array, a bitset, or a list of runs.  Everything is little-endian.
+//
+// An int-long-map is written as a bitmap of its keys, followed by its values in the same order.
+public class Roaring {
+
+  static final int SERIAL_COOKIE_NO_RUNCONTAINER = 12346;
+  static final int SERIAL_COOKIE = 12347;
+  static final int NO_OFFSET_THRESHOLD = 4;
+  static final int MAX_ARRAY_SIZE = 4096;
+
+  // little-endian output and input
+
+  interface Sink {
+    void writeByte(int b) throws IOException;
+    void writeShort(int s) throws IOException;
+    void writeInt(int i) throws IOException;
+    void writeLong(long l) throws IOException;
+  }
+
+  interface Source {
+    int readUnsignedByte() throws IOException;
+    int readUnsignedShort() throws IOException;
+    int readInt() throws IOException;
+    long readLong() throws IOException;
+  }
+
+  static Sink sink(final DataOutput out) {
+    return new Sink() {
+      public void writeByte(int b) throws IOException {
+        out.writeByte(b);
+      }
+
+      public void writeShort(int s) throws IOException {
+        out.writeShort(Short.reverseBytes((short) s));
+      }
+
+      public void writeInt(int i) throws IOException {
+        out.writeInt(Integer.reverseBytes(i));
+      }
+
+      public void writeLong(long l) throws IOException {
+        out.writeLong(Long.reverseBytes(l));
+      }
+    };
+  }
+
+  static Sink sink(final ByteBuffer buf) {
+    final boolean reverse = buf.order() != ByteOrder.LITTLE_ENDIAN;
+    return new Sink() {
+      public void writeByte(int b) {
+        buf.put((byte) b);
+      }
+
+      public void writeShort(int s) {
+        buf.putShort(reverse ? Short.reverseBytes((short) s) : (short) s);
+      }
+
+      public void writeInt(int i) {
+        buf.putInt(reverse ? Integer.reverseBytes(i) : i);
+      }
+
+      public void writeLong(long l) {
+        buf.putLong(reverse ? Long.reverseBytes(l) : l);
+      }
+    };
+  }
+
+  static class CountingSink implements Sink {
+    long size = 0;
+
+    public void writeByte(int b) {
+      size += 1;
+    }
+
+    public void writeShort(int s) {
+      size += 2;
+    }
+
+    public void writeInt(int i) {
+      size += 4;
+    }
+
+    public void writeLong(long l) {
+      size += 8;
+    }
+  }
+
+  static Source source(final DataInput in) {
+    return new Source() {
+      public int readUnsignedByte() throws IOException {
+        return in.readUnsignedByte();
+      }
+
+      public int readUnsignedShort() throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+      }
+
+      public int readInt() throws IOException {
+        return Integer.reverseBytes(in.readInt());
+      }
+
+      public long readLong() throws IOException {
+        return Long.reverseBytes(in.readLong());
+      }
+    };
+  }
+
+  static Source source(final ByteBuffer buf) {
+    final boolean reverse = buf.order() != ByteOrder.LITTLE_ENDIAN;
+    return new Source() {
+      public int readUnsignedByte() {
+        return buf.get() & 0xff;
+      }
+
+      public int readUnsignedShort() {
+        short s = buf.getShort();
+        return (reverse ? Short.reverseBytes(s) : s) & 0xffff;
+      }
+
+      public int readInt() {
+        int i = buf.getInt();
+        return reverse ? Integer.reverseBytes(i) : i;
+      }
+
+      public long readLong() {
+        long l = buf.getLong();
+        return reverse ? Long.reverseBytes(l) : l;
+      }
+    };
+  }
+
+  // iterates over the non-negative keys and then the negative keys, which is their unsigned order
+  static Iterator unsignedIterator(INode map, final INode.IterationType type) {
+    final INode[] nodes = new INode[] {map.range(0, Long.MAX_VALUE), map.range(Long.MIN_VALUE, -1)};
+    return new Iterator() {
+      private int idx = -1;
+      private Iterator iterator = null;
+
+      public boolean hasNext() {
+        while ((iterator == null || !iterator.hasNext()) && ++idx < nodes.length) {
+          iterator = nodes[idx] == null ? null : nodes[idx].iterator(type, false);
+        }
+        return iterator != null && iterator.hasNext();
+      }
+
+      public Object next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return iterator.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  // reduces over the entries in unsigned order
+  static void unsignedKVReduce(INode map, IFn f) {
+    INode pos = map.range(0, Long.MAX_VALUE);
+    INode neg = map.range(Long.MIN_VALUE, -1);
+    if (pos != null) pos.kvreduce(f, null);
+    if (neg != null) neg.kvreduce(f, null);
+  }
+
+  // sets the bits from `start` to `end`, inclusive
+  static void setRange(long[] words, int start, int end) {
+    int startWord = start >> 6, endWord = end >> 6;
+    long startMask = -1L << start, endMask = -1L >>> (63 - (end & 63));
+    if (startWord == endWord) {
+      words[startWord] |= startMask & endMask;
+    } else {
+      words[startWord] |= startMask;
+      for (int i = startWord + 1; i < endWord; i++) {
+        words[i] = -1L;
+      }
+      words[endWord] |= endMask;
+    }
+  }
+
+  // a container of up to 2^16 elements, in whichever encoding is smallest
+
+  static class Container {
+    static final byte ARRAY = 0, BITSET = 1, RUN = 2;
+
+    final int key, cardinality;
+    final byte type;
+    // the sorted elements of an array container, or the start and length - 1 of each run
+    final short[] vals;
+    final long[] words;
+
+    Container(int key, int cardinality, byte type, short[] vals, long[] words) {
+      this.key = key;
+      this.cardinality = cardinality;
+      this.type = type;
+      this.vals = vals;
+      this.words = words;
+    }
+
+    static Container of(int key, long[] words, int minWord, int maxWord) {
+      int cardinality = 0, numRuns = 0;
+      long prev = 0;
+      for (int i = minWord; i <= maxWord; i++) {
+        long w = words[i];
+        cardinality += Long.bitCount(w);
+        numRuns += Long.bitCount(w & ~((w << 1) | (prev >>> 63)));
+        prev = w;
+      }
+
+      int otherSize = cardinality <= MAX_ARRAY_SIZE ? cardinality << 1 : 8192;
+      if (2 + (numRuns << 2) < otherSize) {
+        short[] runs = new short[numRuns << 1];
+        int n = 0, start = -1, last = -2;
+        for (int i = minWord; i <= maxWord; i++) {
+          for (long w = words[i]; w != 0; w &= w - 1) {
+            int val = (i << 6) + Long.numberOfTrailingZeros(w);
+            if (val != last + 1) {
+              if (start >= 0) {
+                runs[n++] = (short) start;
+                runs[n++] = (short) (last - start);
+              }
+              start = val;
+            }
+            last = val;
+          }
+        }
+        runs[n++] = (short) start;
+        runs[n] = (short) (last - start);
+        return new Container(key, cardinality, RUN, runs, null);
+      } else if (cardinality <= MAX_ARRAY_SIZE) {
+        short[] vals = new short[cardinality];
+        int n = 0;
+        for (int i = minWord; i <= maxWord; i++) {
+          for (long w = words[i]; w != 0; w &= w - 1) {
+            vals[n++] = (short) ((i << 6) + Long.numberOfTrailingZeros(w));
+          }
+        }
+        return new Container(key, cardinality, ARRAY, vals, null);
+      } else {
+        return new Container(key, cardinality, BITSET, null, words.clone());
+      }
+    }
+
+    int size() {
+      switch (type) {
+        case ARRAY:
+          return cardinality << 1;
+        case RUN:
+          return 2 + (vals.length << 1);
+        default:
+          return 8192;
+      }
+    }
+
+    void write(Sink out) throws IOException {
+      switch (type) {
+        case RUN:
+          out.writeShort(vals.length >> 1);
+          for (short v : vals) {
+            out.writeShort(v);
+          }
+          break;
+        case ARRAY:
+          for (short v : vals) {
+            out.writeShort(v);
+          }
+          break;
+        default:
+          for (long w : words) {
+            out.writeLong(w);
+          }
+      }
+    }
+  }
+
+  // accumulates elements in unsigned order, writing out each 32-bit bitmap once it's complete
+  static class Writer {
+    private final Sink out;
+    private final long[] words = new long[1024];
+    private final List<Container> containers = new ArrayList<Container>();
+    private long bucket = -1;
+    private int key = -1;
+    private int minWord = 1024, maxWord = -1;
+
+    Writer(Sink out) {
+      this.out = out;
+    }
+
+    private void advanceTo(long val) throws IOException {
+      long bucket = val >>> 32;
+      int key = (int) (val >>> 16) & 0xffff;
+      if (bucket != this.bucket || key != this.key) {
+        flushContainer();
+        if (bucket != this.bucket) {
+          flushBitmap();
+          this.bucket = bucket;
+        }
+        this.key = key;
+      }
+    }
+
+    void add(long val) throws IOException {
+      advanceTo(val);
+      int idx = ((int) val & 0xffff) >>> 6;
+      words[idx] |= 1L << val;
+      minWord = Math.min(minWord, idx);
+      maxWord = Math.max(maxWord, idx);
+    }
+
+    // adds the elements of `ws`, where `base` is the element represented by the lowest bit of ws[0], a multiple
+    // of 64 such that the words don't span more than one container
+    void add(long base, long[] ws) throws IOException {
+      advanceTo(base);
+      int idx = ((int) base & 0xffff) >>> 6;
+      for (int i = 0; i < ws.length; i++) {
+        if (ws[i] != 0) {
+          words[idx + i] |= ws[i];
+          minWord = Math.min(minWord, idx + i);
+          maxWord = Math.max(maxWord, idx + i);
+        }
+      }
+    }
+
+    void finish() throws IOException {
+      flushContainer();
+      flushBitmap();
+    }
+
+    private void flushContainer() {
+      if (maxWord >= 0) {
+        containers.add(Container.of(key, words, minWord, maxWord));
+        Arrays.fill(words, minWord, maxWord + 1, 0L);
+        minWord = 1024;
+        maxWord = -1;
+      }
+    }
+
+    private void flushBitmap() throws IOException {
+      if (containers.isEmpty()) {
+        return;
+      }
+
+      int size = containers.size();
+      boolean hasRun = false;
+      for (Container c : containers) {
+        hasRun |= c.type == Container.RUN;
+      }
+
+      out.writeInt((int) bucket);
+      int offset;
+      if (hasRun) {
+        out.writeInt(SERIAL_COOKIE | ((size - 1) << 16));
+        for (int i = 0; i < size; i += 8) {
+          int flags = 0;
+          for (int j = i; j < Math.min(size, i + 8); j++) {
+            if (containers.get(j).type == Container.RUN) {
+              flags |= 1 << (j - i);
+            }
+          }
+          out.writeByte(flags);
+        }
+        offset = 4 + ((size + 7) >> 3) + (size << 2) + (size >= NO_OFFSET_THRESHOLD ? size << 2 : 0);
+      } else {
+        out.writeInt(SERIAL_COOKIE_NO_RUNCONTAINER);
+        out.writeInt(size);
+        offset = 8 + (size << 3);
+      }
+
+      for (Container c : containers) {
+        out.writeShort(c.key);
+        out.writeShort(c.cardinality - 1);
+      }
+
+      if (!hasRun || size >= NO_OFFSET_THRESHOLD) {
+        for (Container c : containers) {
+          out.writeInt(offset);
+          offset += c.size();
+        }
+      }
+
+      for (Container c : containers) {
+        c.write(out);
+      }
+      containers.clear();
+    }
+  }
+
+  // reads each container in turn, in unsigned order
+  static abstract class Reader {
+    private final long[] words = new long[1024];
+
+    // `base` is the element represented by the lowest bit of words[0], and words outside [minWord, maxWord] are empty
+    abstract void container(long base, long[] words, int minWord, int maxWord);
+
+    void read(Source in) throws IOException {
+      long numBitmaps = in.readLong();
+      if (numBitmaps < 0 || numBitmaps > (1L << 32)) {
+        throw new IllegalArgumentException("Invalid number of bitmaps: " + numBitmaps);
+      }
+      for (long i = 0; i < numBitmaps; i++) {
+        readBitmap((in.readInt() & 0xffffffffL) << 32, in);
+      }
+    }
+
+    private void readBitmap(long base, Source in) throws IOException {
+      int cookie = in.readInt();
+      int size;
+      byte[] runFlags = null;
+      if ((cookie & 0xffff) == SERIAL_COOKIE) {
+        size = (cookie >>> 16) + 1;
+        runFlags = new byte[(size + 7) >> 3];
+        for (int i = 0; i < runFlags.length; i++) {
+          runFlags[i] = (byte) in.readUnsignedByte();
+        }
+      } else if (cookie == SERIAL_COOKIE_NO_RUNCONTAINER) {
+        size = in.readInt();
+        if (size < 0 || size > 0x10000) {
+          throw new IllegalArgumentException("Invalid number of containers: " + size);
+        }
+      } else {
+        throw new IllegalArgumentException("Not a portable Roaring bitmap.");
+      }
+
+      int[] keys = new int[size];
+      int[] cardinalities = new int[size];
+      for (int i = 0; i < size; i++) {
+        keys[i] = in.readUnsignedShort();
+        cardinalities[i] = in.readUnsignedShort() + 1;
+      }
+
+      // the offsets are only useful for random access
+      if (runFlags == null || size >= NO_OFFSET_THRESHOLD) {
+        for (int i = 0; i < size; i++) {
+          in.readInt();
+        }
+      }
+
+      for (int i = 0; i < size; i++) {
+        int minWord = 1024, maxWord = -1;
+        if (runFlags != null && (runFlags[i >> 3] & (1 << (i & 7))) != 0) {
+          int numRuns = in.readUnsignedShort();
+          for (int j = 0; j < numRuns; j++) {
+            int start = in.readUnsignedShort();
+            int end = start + in.readUnsignedShort();
+            if (end > 0xffff) {
+              throw new IllegalArgumentException("Invalid run: " + start + " to " + end);
+            }
+            setRange(words, start, end);
+            minWord = Math.min(minWord, start >> 6);
+            maxWord = Math.max(maxWord, end >> 6);
+          }
+        } else if (cardinalities[i] <= MAX_ARRAY_SIZE) {
+          for (int j = 0; j < cardinalities[i]; j++) {
+            int val = in.readUnsignedShort();
+            words[val >> 6] |= 1L << val;
+            minWord = Math.min(minWord, val >> 6);
+            maxWord = Math.max(maxWord, val >> 6);
+          }
+        } else {
+          for (int j = 0; j < 1024; j++) {
+            words[j] = in.readLong();
+          }
+          minWord = 0;
+          maxWord = 1023;
+        }
+
+        if (maxWord >= 0) {
+          container(base | ((long) keys[i] << 16), words, minWord, maxWord);
+          Arrays.fill(words, minWord, maxWord + 1, 0L);
+        }
+      }
+    }
+  }
+
+  // returns the index of the first negative key, given keys in unsigned order
+  private static int firstNegative(long[] keys, int size) {
+    int lo = 0, hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys[mid] >= 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // moves the negative keys, which are last in unsigned order, to the front
+  private static long[] toSignedOrder(long[] a, int split, int size) {
+    long[] b = new long[size];
+    System.arraycopy(a, split, b, 0, size - split);
+    System.arraycopy(a, 0, b, size - split, split);
+    return b;
+  }
+
+  private static Object[] toSignedOrder(Object[] a, int split, int size) {
+    Object[] b = new Object[size];
+    System.arraycopy(a, split, b, 0, size - split);
+    System.arraycopy(a, 0, b, size - split, split);
+    return b;
+  }
+
+  // int-sets
+
+  private static long numBitmaps(IntSet set) {
+    long numBitmaps = 0, bucket = -1;
+    for (Iterator it = unsignedIterator(set.map, INode.IterationType.KEYS); it.hasNext(); ) {
+      long bucketPrime = (((Long) it.next()) << set.log2LeafSize) >>> 32;
+      if (bucketPrime != bucket) {
+        numBitmaps++;
+        bucket = bucketPrime;
+      }
+    }
+    return numBitmaps;
+  }
+
+  static void write(IntSet set, Sink out) throws IOException {
+    out.writeLong(numBitmaps(set));
+    Writer writer = new Writer(out);
+    for (Iterator it = unsignedIterator(set.map, INode.IterationType.ENTRIES); it.hasNext(); ) {
+      MapEntry e = (MapEntry) it.next();
+      writer.add(((Long) e.key()) << set.log2LeafSize, IntSet.wordsOf((ISet) e.val()));
+    }
+    writer.finish();
+  }
+
+  public static void write(IntSet set, DataOutput out) throws IOException {
+    write(set, sink(out));
+  }
+
+  public static void write(IntSet set, ByteBuffer buf) {
+    try {
+      write(set, sink(buf));
+    } catch (IOException e) {
+      throw Util.sneakyThrow(e);
+    }
+  }
+
+  public static long serializedSize(IntSet set) {
+    CountingSink sink = new CountingSink();
+    try {
+      write(set, sink);
+    } catch (IOException e) {
+      throw Util.sneakyThrow(e);
+    }
+    return sink.size;
+  }
+
+  static class SetReader extends Reader {
+    final short leafSize, log2LeafSize;
+    final int leafWords;
+    long[] keys = new long[16];
+    Object[] containers = new Object[16];
+    int size = 0;
+
+    SetReader(short leafSize) {
+      this.leafSize = leafSize;
+      this.log2LeafSize = (short) Nodes.bitLog2(leafSize);
+      this.leafWords = leafSize >> 6;
+    }
+
+    void container(long base, long[] words, int minWord, int maxWord) {
+      for (int i = minWord - (minWord % leafWords); i <= maxWord; i += leafWords) {
+        ISet c = IntSet.compact(0, Arrays.copyOfRange(words, i, i + leafWords));
+        if (c == null) {
+          continue;
+        }
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, size << 1);
+          containers = Arrays.copyOf(containers, size << 1);
+        }
+        keys[size] = (base + (i << 6)) >> log2LeafSize;
+        containers[size++] = c;
+      }
+    }
+
+    IntSet intSet() {
+      int split = firstNegative(keys, size);
+      return new IntSet(leafSize, log2LeafSize,
+              Nodes.fromSorted(toSignedOrder(keys, split, size), toSignedOrder(containers, split, size)));
+    }
+  }
+
+  static IntSet readSet(short leafSize, Source in) throws IOException {
+    SetReader reader = new SetReader(leafSize);
+    reader.read(in);
+    return reader.intSet();
+  }
+
+  public static IntSet readSet(short leafSize, DataInput in) throws IOException {
+    return readSet(leafSize, source(in));
+  }
+
+  public static IntSet readSet(short leafSize, ByteBuffer buf) {
+    try {
+      return readSet(leafSize, source(buf));
+    } catch (IOException e) {
+      throw Util.sneakyThrow(e);
+    }
+  }
+
+  // int-long-maps
+
+  static class KVFn extends AFn implements IFn.OLLO {
+    public Object invoke(Object acc, Object k, Object v) {
+      return invokePrim(acc, (Long) k, (Long) v);
+    }
+
+    public Object invokePrim(Object acc, long k, long v) {
+      try {
+        entry(k, v);
+      } catch (IOException e) {
+        throw Util.sneakyThrow(e);
+      }
+      return null;
+    }
+
+    void entry(long k, long v) throws IOException {
+    }
+  }
+
+  static void writeLongMap(INode map, final Sink out) throws IOException {
+    final long[] numBitmaps = new long[] {0, -1};
+    unsignedKVReduce(map, new KVFn() {
+      void entry(long k, long v) {
+        if ((k >>> 32) != numBitmaps[1]) {
+          numBitmaps[0]++;
+          numBitmaps[1] = k >>> 32;
+        }
+      }
+    });
+    out.writeLong(numBitmaps[0]);
+
+    final Writer writer = new Writer(out);
+    unsignedKVReduce(map, new KVFn() {
+      void entry(long k, long v) throws IOException {
+        writer.add(k);
+      }
+    });
+    writer.finish();
+
+    unsignedKVReduce(map, new KVFn() {
+      void entry(long k, long v) throws IOException {
+        out.writeLong(v);
+      }
+    });
+  }
+
+  public static void writeLongMap(INode map, DataOutput out) throws IOException {
+    writeLongMap(map, sink(out));
+  }
+
+  public static void writeLongMap(INode map, ByteBuffer buf) {
+    try {
+      writeLongMap(map, sink(buf));
+    } catch (IOException e) {
+      throw Util.sneakyThrow(e);
+    }
+  }
+
+  public static long serializedSize(INode map) {
+    CountingSink sink = new CountingSink();
+    try {
+      writeLongMap(map, sink);
+    } catch (IOException e) {
+      throw Util.sneakyThrow(e);
+    }
+    return sink.size;
+  }
+
+  static class KeyReader extends Reader {
+    long[] keys = new long[16];
+    int size = 0;
+
+    void container(long base, long[] words, int minWord, int maxWord) {
+      for (int i = minWord; i <= maxWord; i++) {
+        for (long w = words[i]; w != 0; w &= w - 1) {
+          if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+          }
+          keys[size++] = base + (i << 6) + Long.numberOfTrailingZeros(w);
+        }
+      }
+    }
+  }
+
+  static INode readLongMap(Source in) throws IOException {
+    KeyReader reader = new KeyReader();
+    reader.read(in);
+
+    int size = reader.size;
+    long[] vals = new long[size];
+    for (int i = 0; i < size; i++) {
+      vals[i] = in.readLong();
+    }
+
+    int split = firstNegative(reader.keys, size);
+    return Nodes.fromSorted(toSignedOrder(reader.keys, split, size), toSignedOrder(vals, split, size));
+  }
+
+  public static INode readLongMap(DataInput in) throws IOException {
+    return readLongMap(source(in));
+  }
+
+  public static INode readLongMap(ByteBuffer buf) {
+    try {
+      return readLongMap(source(buf));
+    } catch (IOException e) {
+      throw Util.sneakyThrow(e);
+    }
+  }
+}
@@ -318,3 +318,764 @@
     (is (= (.range im min max) (->> im
                                    (filter (fn [[k _]] (<= min k max)))
                                    (into {}))))))
+
+;;;
+
+(def int-long-map-generator
+  (gen/fmap
+    (fn [ks]
+      (into (i/int-long-map) ks))
+    (gen/list (gen/tuple map-int gen/int))))
+
+(deftest test-long-map-like
+  (check/assert-map-like 1e3 (i/int-long-map) map-int gen/int))
+
+(defspec equivalent-long-map 1e4
+  (prop/for-all [es (gen/list (gen/tuple map-int gen/int))]
+    (let [m (into {} es)
+          lm (into (i/int-long-map) es)]
+      (and (= m lm (into (i/int-map) es))
+        (= (hash m) (hash lm))
+        (= (seq (sort (keys m))) (keys lm))
+        (every? (fn [[k v]] (== v (i/get-long lm k -1))) m)))))
+
+(defspec equivalent-update-long 1e3
+  (prop/for-all [m int-long-map-generator k map-int]
+    (= (i/update-long m k (fn ^long [^long x] (inc x)))
+      (i/update m k inc)
+      (assoc m k (inc (get m k 0))))))
+
+(defspec equivalent-update-long! 1e3
+  (prop/for-all [ks (gen/list gen/int)]
+    (= (frequencies ks)
+      (persistent!
+        (reduce #(i/update-long! %1 %2 (fn ^long [^long x] (inc x))) (transient (i/int-long-map)) ks)))))
+
+(defspec equivalent-long-map-merge 1e3
+  (prop/for-all [a (gen/list (gen/tuple gen/int gen/int))
+                 b (gen/list (gen/tuple gen/int gen/int))]
+    (let [a (into (i/int-long-map) a)
+          b (into (i/int-long-map) b)]
+      (= (merge-with - a b)
+        (i/merge-with - a b)
+        (i/merge-with (fn ^long [^long x ^long y] (- x y)) a b)))))
+
+(defspec equivalent-long-map-fold 1e3
+  (prop/for-all [m int-long-map-generator]
+    (= (reduce-kv (fn [n _ v] (+ n v)) 0 m)
+      (r/fold 8 + (fn [n ^long _ ^long v] (+ (long n) v)) m))))
+
+(deftest test-fold-errors-and-meta
+  (doseq [m [(into (i/int-map) (map vector (clojure.core/range 10000) (clojure.core/range 10000)))
+             (into (i/int-long-map) (map vector (clojure.core/range 10000) (clojure.core/range 10000)))]]
+    (is (thrown? clojure.lang.ExceptionInfo
+          (r/fold 8 + (fn [n _ v] (if (== v 5000) (throw (ex-info "boom" {})) (+ n v))) m)))
+    (is (= {:hi :there} (meta (with-meta (transient m) {:hi :there}))))))
+
+;;;
+
+(defspec equivalent-set-disj 1e4
+  (prop/for-all [a (gen/vector map-int) b (gen/vector map-int)]
+    (let [s (set/difference (set a) (set b))]
+      (and
+        (= s (reduce disj (i/int-set a) b))
+        (= s (reduce disj (i/dense-int-set a) b))
+        (= s (persistent! (reduce disj! (transient (i/int-set a)) b)))))))
+
+(deftest test-transient-set-reuses-containers
+  (let [t (conj! (conj! (transient (i/int-set)) 1) 2)]
+    (is (identical? t (conj! t 3)))
+    (is (identical? t (conj! t 3)))
+    (is (identical? t (disj! t 3)))
+    (is (= #{1 2} (persistent! t)))))
+
+;;;
+
+(defspec equivalent-diff 1e3
+  (prop/for-all [fan-out (gen/elements [16 32 64])
+                 es (gen/vector (gen/tuple map-int gen/int))
+                 other (gen/vector (gen/tuple map-int gen/int))
+                 changes (gen/vector (gen/tuple gen/boolean gen/nat map-int (gen/choose 0 3)))]
+    (let [m (into {} es)
+          ks (vec (keys m))
+          ;; assocs and dissocs of both new and existing keys, some of which don't change the value
+          change (fn [m [assoc? i k v]]
+                   (let [k (if (and (seq ks) (even? i)) (nth ks (mod i (count ks))) k)]
+                     (if assoc? (assoc m k v) (dissoc m k))))
+          m' (reduce change m changes)
+          expected (fn [a b]
+                     (for [k (sort (distinct (concat (keys a) (keys b))))
+                           :when (not= (find a k) (find b k))]
+                       [k (get a k) (get b k)]))]
+      (every?
+        (fn [empty-map]
+          (let [im (into empty-map es)
+                im' (reduce change im changes)
+                other-im (into empty-map other)]
+            (and
+              (= (expected m m') (i/diff im im'))
+              (= (expected m' m) (i/diff im' im))
+              (= (expected m (into {} other)) (i/diff im other-im))
+              (= [] (i/diff im im) (i/diff im (into empty-map es)))
+              (= (take 1 (expected m m'))
+                 (i/reduce-diff (fn [acc k old new] (reduced [[k old new]])) [] im im'))
+              (= (count (filter (fn [[_ old]] (nil? old)) (expected m m')))
+                 (i/reduce-diff (fn [n _ old _] (if (= ::absent old) (inc n) n)) 0 im im' ::absent)))))
+        [(i/with-fan-out fan-out (i/int-map)) (i/with-fan-out fan-out (i/int-long-map)) (i/int-map)]))))
+
+(defspec equivalent-concurrent-map 1e3
+  (prop/for-all [ops (gen/vector
+                       (gen/tuple
+                         (gen/elements [:assoc :dissoc :compute :snapshot])
+                         (gen/one-of [map-int (gen/choose -100 100)])
+                         gen/int))]
+    (let [cm (i/concurrent-int-map)
+          ;; each snapshot, and the entries it should keep regardless of later updates
+          [m snapshots] (reduce
+                          (fn [[m snapshots] [op k v]]
+                            (case op
+                              :assoc (do (assoc! cm k v) [(assoc m k v) snapshots])
+                              :dissoc (do (dissoc! cm k) [(dissoc m k) snapshots])
+                              :compute (let [v' (i/compute-if-absent! cm k (constantly v))]
+                                         (assert (= v' (get m k v)))
+                                         [(assoc m k v') snapshots])
+                              :snapshot [m (conj snapshots [(i/snapshot cm) m])]))
+                          [{} []]
+                          ops)]
+      (and
+        (= m (persistent! cm))
+        (= (count m) (count cm))
+        (every? #(= (get m %) (get cm %)) (concat (keys m) (map second ops)))
+        (= (sort (keys m)) (map key (seq cm)))
+        (= m (reduce-kv assoc {} cm))
+        (every? (fn [[s expected]] (= expected (persistent! s))) snapshots)
+        (every? (fn [[s expected]] (= (count expected) (count s) (count (persistent! s)))) snapshots)
+        ;; the persistent map shares the concurrent map's branches, but neither sees the other's later updates
+        (let [p (persistent! cm)
+              p' (reduce dissoc (assoc p Long/MAX_VALUE :p) (take 1 (keys m)))]
+          (assoc! cm Long/MIN_VALUE :cm)
+          (and (= m p)
+               (= (reduce dissoc (assoc m Long/MAX_VALUE :p) (take 1 (keys m))) p')
+               (= (assoc m Long/MIN_VALUE :cm) (persistent! cm))
+               (= (count (assoc m Long/MIN_VALUE :cm)) (count cm))))))))
+
+(deftest test-concurrent-map-updates
+  (let [cm (i/concurrent-int-map)
+        n 20000
+        threads 8
+        snapshots (atom [])
+        calls (atom 0)
+        workers (doall
+                  (for [t (clojure.core/range threads)]
+                    (future
+                      (doseq [k (clojure.core/range n)]
+                        ;; every thread adds every key, and removes its own share of them
+                        (i/compute-if-absent! cm k (fn [k] (swap! calls inc) (- k)))
+                        (when (and (zero? (mod k threads)) (== t (mod (quot k threads) threads)))
+                          (dissoc! cm k))
+                        (when (zero? (mod k 1000))
+                          (swap! snapshots conj (persistent! (i/snapshot cm))))))))]
+    (run! deref workers)
+    (let [removed (set (filter #(zero? (mod % threads)) (clojure.core/range n)))
+          m (persistent! cm)]
+      (is (<= n @calls))
+      (is (= (count m) (count cm)))
+      (is (every? (fn [[k v]] (== v (- k))) m))
+      ;; a removed key may have been added back by a slower thread, but nothing else is missing
+      (is (every? #(or (removed %) (contains? m %)) (clojure.core/range n)))
+      (is (every? (fn [s] (every? (fn [[k v]] (== v (- k))) s)) @snapshots)))))
+
+(deftest test-concurrent-map-snapshots
+  ;; one thread adds keys in order while others churn, so every consistent snapshot holds a prefix of them
+  (let [cm (i/concurrent-int-map)
+        n 50000
+        done? (atom false)
+        writer (future (dotimes [k n] (assoc! cm k k)) (reset! done? true))
+        churn (doall
+                (for [t (clojure.core/range 4)]
+                  (future
+                    (while (not @done?)
+                      (let [k (- -1 (rand-int 1000))]
+                        (assoc! cm k t)
+                        (dissoc! cm k))))))
+        snapshots (loop [acc []]
+                    (if @done?
+                      acc
+                      (let [s (i/snapshot cm)]
+                        (Thread/sleep 1)
+                        (recur (conj acc s)))))]
+    @writer
+    (run! deref churn)
+    (is (every?
+          (fn [s]
+            (let [ks (filter #(>= % 0) (keys (persistent! s)))]
+              (= ks (clojure.core/range (count ks)))))
+          snapshots))
+    (is (= (clojure.core/range n) (filter #(>= % 0) (keys (persistent! cm)))))))
+
+(defspec equivalent-concurrent-set 1e3
+  (prop/for-all [ops (gen/vector
+                       (gen/tuple
+                         (gen/elements [:conj :disj])
+                         (gen/one-of [map-int (gen/choose -5000 5000)])))]
+    (every? true?
+      (for [[f g] [[i/concurrent-int-set i/int-set] [i/concurrent-dense-int-set i/dense-int-set]]]
+        (let [cs (f)
+              s (reduce
+                  (fn [s [op n]]
+                    (case op
+                      :conj (do (conj! cs n) (conj s n))
+                      :disj (do (disj! cs n) (disj s n))))
+                  #{}
+                  ops)
+              is (persistent! cs)]
+          (and
+            (= s is)
+            (= (count s) (count cs))
+            (every? #(= (contains? s %) (contains? cs %)) (map second ops))
+            (= (seq (sort s)) (seq cs))
+            ;; the snapshot has the same leaves as any other set of its density
+            (= (set/union s #{0 1 -1}) (i/union is (g [0 1 -1])))
+            (= s (persistent! (f s)))))))))
+
+(deftest test-concurrent-set-ingestion
+  (let [n 100000
+        threads 8
+        cs (i/concurrent-int-set)
+        ;; threads add interleaved ids, so they all write to the same leaves
+        workers (doall
+                  (for [t (clojure.core/range threads)]
+                    (future
+                      (doseq [x (clojure.core/range t n threads)]
+                        (conj! cs x)
+                        (when (zero? (mod x 7))
+                          (disj! cs x))))))
+        snapshots (loop [acc []]
+                    (if (every? realized? workers)
+                      acc
+                      (do
+                        (Thread/sleep 1)
+                        (recur (conj acc (persistent! cs))))))]
+    (run! deref workers)
+    (is (= (remove #(zero? (mod % 7)) (clojure.core/range n)) (seq cs)))
+    ;; a snapshot may catch an id between being added and removed, but never holds anything else
+    (is (every? (fn [s] (every? #(<= 0 % (dec n)) s)) snapshots))))
+
+(def clustered-ints
+  (gen/fmap
+    (fn [runs]
+      (mapcat (fn [[start len]] (clojure.core/range start (+ start len))) runs))
+    (gen/vector (gen/tuple (gen/choose -5000 5000) (gen/choose 1 300)) 0 8)))
+
+(defspec prop-clustered-set-algebra-operators-equivalent 1e4
+  (prop/for-all [a clustered-ints b clustered-ints]
+    (every? true?
+      (for [f [i/int-set i/dense-int-set]
+            :let [sa (set a)
+                  sb (set b)
+                  isa (f a)
+                  isb (f b)]]
+        (and
+          (= (set/difference sa sb) (i/difference isa isb))
+          (= (set/difference sb sa) (i/difference isb isa))
+          (= (set/union sa sb) (i/union isa isb) (i/union isb isa))
+          (= (set/intersection sa sb) (i/intersection isa isb) (i/intersection isb isa)))))))
+
+(defspec equivalent-clustered-set-updates 1e4
+  (prop/for-all [a clustered-ints b clustered-ints min gen/int max gen/int]
+    (let [s (set/difference (set a) (set b))]
+      (and
+        (= s (reduce disj (i/int-set a) b) (reduce disj (i/dense-int-set a) b))
+        (= (seq (sort s)) (seq (reduce disj (i/int-set a) b)))
+        (= (seq (sort > s)) (rseq (reduce disj (i/dense-int-set a) b)))
+        (= (set (filter #(<= min % max) s))
+          (i/range (reduce disj (i/int-set a) b) min max))))))
+
+(defspec equivalent-small-range-set-updates 1e3
+  (prop/for-all [a (gen/vector (gen/choose 0 10000) 0 2000)
+                 b (gen/vector (gen/choose 0 10000) 0 2000)]
+    (let [s (set/difference (set a) (set b))]
+      (and
+        (= s (reduce disj (i/int-set a) b))
+        (= s (reduce disj (i/dense-int-set a) b))
+        (= s (persistent! (reduce disj! (transient (i/dense-int-set a)) b)))
+        (= (set/intersection (set a) (set b)) (i/intersection (i/dense-int-set a) (i/dense-int-set b)))))))
+
+(defspec equivalent-set-fold 1e3
+  (prop/for-all [a (gen/vector map-int) c clustered-ints n (gen/elements [1 8 512])]
+    (let [xs (into (sorted-set) (concat a c))]
+      (every?
+        (fn [s]
+          (and
+            (= (reduce unchecked-add 0 xs) (r/fold n (r/monoid unchecked-add (constantly 0)) unchecked-add s))
+            (= (seq xs) (seq (r/fold n (r/monoid into vector) conj s)))))
+        [(into (i/int-set) xs) (into (i/dense-int-set) xs)]))))
+
+(defspec equivalent-rank-and-select 1e3
+  (prop/for-all [fan-out (gen/elements [16 32 64])
+                 a (gen/vector map-int)
+                 c clustered-ints
+                 probes (gen/vector map-int)]
+    (let [xs (vec (into (sorted-set) (concat a c)))
+          expected-rank (fn [x]
+                          (let [idx (java.util.Collections/binarySearch xs x compare)]
+                            (if (neg? idx) (- (inc idx)) idx)))]
+      (every?
+        (fn [coll]
+          (and
+            (every? #(= (expected-rank %) (i/rank coll %))
+              (concat probes xs (map unchecked-inc xs) (map unchecked-dec xs)))
+            (= xs (map #(let [x (i/select coll %)] (if (map-entry? x) (key x) x))
+                    (clojure.core/range (count xs))))
+            (try (i/select coll (count xs)) false (catch IndexOutOfBoundsException _ true))))
+        [(into (i/with-fan-out fan-out (i/int-map)) (zipmap xs xs))
+         (into (i/int-long-map) (zipmap xs xs))
+         (into (i/int-set) xs)
+         (into (i/dense-int-set) xs)]))))
+
+(defspec equivalent-nearest-and-subseq 1e3
+  (prop/for-all [fan-out (gen/elements [16 32 64])
+                 a (gen/vector map-int)
+                 c clustered-ints
+                 probes (gen/vector map-int)]
+    (let [xs (into (sorted-set) (concat a c))
+          sm (into (sorted-map) (zipmap xs xs))
+          sample (take-nth 13 xs)
+          sets [(into (i/int-set) xs) (into (i/dense-int-set) xs)]
+          maps [(into (i/with-fan-out fan-out (i/int-map)) sm) (into (i/int-long-map) sm)]
+          nearest (fn [coll x]
+                    (map #(% coll x) [i/floor i/ceiling i/lower i/higher]))
+          expected-nearest (fn [sorted x]
+                             [(first (rsubseq sorted <= x)) (first (subseq sorted >= x))
+                              (first (rsubseq sorted < x)) (first (subseq sorted > x))])
+          ;; seeking is what's under test, so only the start of each subseq is compared
+          same-start? (fn [a b] (= (take 20 a) (take 20 b)))]
+      (and
+        (every?
+          (fn [x]
+            (and
+              (every? #(= (expected-nearest xs x) (nearest % x)) sets)
+              (every? #(= (expected-nearest sm x) (nearest % x)) maps)))
+          (concat probes sample (map unchecked-inc sample) (map unchecked-dec sample) [Long/MIN_VALUE Long/MAX_VALUE]))
+        (every?
+          (fn [x]
+            (and
+              (every?
+                #(and
+                   (same-start? (subseq xs >= x) (subseq % >= x))
+                   (same-start? (subseq xs > x) (subseq % > x))
+                   (same-start? (rsubseq xs <= x) (rsubseq % <= x))
+                   (same-start? (rsubseq xs < x) (rsubseq % < x)))
+                sets)
+              (every?
+                #(and
+                   (same-start? (subseq sm > x) (subseq % > x))
+                   (same-start? (rsubseq sm <= x) (rsubseq % <= x))
+                   (= (subseq sm >= x < (unchecked-add x 100)) (subseq % >= x < (unchecked-add x 100))))
+                maps)))
+          (concat (take 8 probes) (take 8 (map unchecked-inc sample)) [Long/MIN_VALUE Long/MAX_VALUE]))))))
+
+(defspec equivalent-range-view 1e3
+  (prop/for-all [a (gen/vector map-int)
+                 c clustered-ints
+                 b (gen/vector map-int)
+                 [lo hi] (gen/fmap sort (gen/tuple map-int map-int))
+                 [lo' hi'] (gen/fmap sort (gen/tuple (gen/choose -6000 6000) (gen/choose -6000 6000)))]
+    (let [xs (into (sorted-set) (concat a c))
+          expected (into (sorted-set) (filter #(<= lo % hi) xs))
+          expected' (into (sorted-set) (filter #(<= (max lo lo') % (min hi hi')) xs))
+          sum (fn ([] 0) ([x y] (unchecked-add (long x) (long y))))]
+      (every?
+        (fn [s]
+          (let [v (i/range-view s lo hi)
+                v' (i/range-view v lo' hi')]
+            (and
+              (= expected v (i/range s lo hi))
+              (= (seq expected) (seq v))
+              (= (rseq expected) (rseq v))
+              (= (count expected) (count v))
+              (= (vec expected) (vec (.toArray (i/long-stream v))))
+              (= expected' v')
+              (= (count expected') (count v'))
+              (= (reduce sum expected) (reduce sum v))
+              (= (reduce conj [] expected') (reduce conj [] v'))
+              (= (first expected) (reduce #(reduced %2) nil v))
+              (= (hash expected) (hash v))
+              (= (.hashCode expected) (.hashCode v))
+              (every? #(= (contains? expected %) (contains? v %)) (concat b xs))
+              (= (count (set/intersection expected' (set b))) (i/intersection-count (into (empty s) b) v'))
+              (= (count (set/intersection expected expected')) (i/intersection-count v v'))
+              (= (boolean (seq (set/intersection expected' (set b)))) (i/intersects? v' (into (empty s) b)))
+              (= (subseq expected > lo') (subseq v > lo'))
+              (= (rsubseq expected <= hi') (rsubseq v <= hi'))
+              (= (conj expected 7) (conj v 7))
+              (= (disj expected (or (first expected) 0)) (disj v (or (first expected) 0)))
+              (= (set/union expected (set b)) (i/union v (into (empty s) b)))
+              (= (set/intersection expected (set b)) (i/intersection (into (empty s) b) v))
+              (= (set/difference expected (set b)) (i/difference v (into (empty s) b))))))
+        [(into (i/int-set) xs) (into (i/dense-int-set) xs)]))))
+
+(defspec equivalent-set-algebra-counts 1e3
+  (prop/for-all [a (gen/vector map-int)
+                 b (gen/vector map-int)
+                 c clustered-ints
+                 d clustered-ints]
+    (let [sa (set (concat a c))
+          sb (set (concat b d))]
+      (every?
+        (fn [empty-set]
+          (let [isa (into empty-set sa)
+                isb (into empty-set sb)]
+            (and
+              (= (count (set/intersection sa sb)) (i/intersection-count isa isb) (i/intersection-count isb isa))
+              (= (count (set/union sa sb)) (i/union-count isa isb))
+              (= (count (set/difference sa sb)) (i/difference-count isa isb))
+              (= (count (set/difference sb sa)) (i/difference-count isb isa))
+              (= (boolean (seq (set/intersection sa sb))) (i/intersects? isa isb) (i/intersects? isb isa))
+              (= (count (set/intersection sa sa)) (i/intersection-count isa isa)))))
+        [(i/int-set) (i/dense-int-set)]))))
+
+(defspec equivalent-multi-way-set-algebra 1e3
+  (prop/for-all [xs (gen/vector (gen/one-of [(gen/vector map-int) clustered-ints]) 3 8)
+                 shared clustered-ints]
+    (let [sets (map #(set (concat % shared)) xs)]
+      (every?
+        (fn [empty-set]
+          (let [int-sets (map #(into empty-set %) sets)]
+            (and
+              (= (apply set/union sets) (apply i/union int-sets))
+              (= (apply set/intersection sets) (apply i/intersection int-sets))
+              (= (count (apply set/union sets)) (apply i/union-count int-sets))
+              (= (apply set/union sets) (apply i/union (map #(i/range-view % Long/MIN_VALUE Long/MAX_VALUE) int-sets))))))
+        [(i/int-set) (i/dense-int-set)]))))
+
+(defspec equivalent-xor 1e3
+  (prop/for-all [a (gen/vector map-int)
+                 b (gen/vector map-int)
+                 c clustered-ints
+                 d clustered-ints
+                 changes (gen/vector (gen/choose -6000 6000))]
+    (let [sa (set (concat a c))
+          sb (set (concat b d))
+          xor (fn [x y] (set/union (set/difference x y) (set/difference y x)))
+          toggle #(if (contains? %1 %2) (disj %1 %2) (conj %1 %2))]
+      (every?
+        (fn [empty-set]
+          (let [isa (into empty-set sa)
+                isb (into empty-set sb)
+                ;; a later version of `isa`, which shares most of its structure
+                isa' (reduce toggle isa changes)]
+            (and
+              (= (xor sa sb) (i/xor isa isb) (i/xor isb isa))
+              (= (xor sa (reduce toggle sa changes)) (i/xor isa isa') (i/xor isa' isa))
+              (= #{} (i/xor isa isa))
+              (= sa (i/xor isa (empty isa)))
+              (= (xor sa sb) (i/xor (i/range-view isa Long/MIN_VALUE Long/MAX_VALUE) isb)))))
+        [(i/int-set) (i/dense-int-set)]))))
+
+(defspec prop-shared-structure-set-algebra-operators-equivalent 1e4
+  (prop/for-all [a (gen/vector map-int) b (gen/vector map-int) c (gen/vector map-int)]
+    (let [isa (i/int-set a)
+          isb (-> isa (into b) (#(reduce disj % c)))
+          sa (set a)
+          sb (-> sa (into b) (set/difference (set c)))]
+      (and
+        (= (set/intersection sa sb) (i/intersection isa isb) (i/intersection isb isa))
+        (= (set/difference sa sb) (i/difference isa isb))
+        (= (set/difference sb sa) (i/difference isb isa))
+        (empty? (i/difference isa isa))
+        (= sa (i/intersection isa isa))))))
+
+;;;
+
+(defn- walked-count [x]
+  (reduce (fn [n _] (inc n)) 0 x))
+
+(defspec maintained-counts-match 1e3
+  (prop/for-all [a (gen/vector map-int) b (gen/vector map-int) [lo hi] (gen/tuple map-int map-int)]
+    (let [m  (reduce #(dissoc %1 %2) (into (i/int-map) (zipmap a a)) b)
+          m! (persistent! (reduce #(dissoc! %1 %2) (transient (into (i/int-map) (zipmap a a))) b))
+          s  (reduce disj (into (i/int-set) a) b)
+          s! (persistent! (reduce disj! (reduce conj! (transient (i/dense-int-set)) a) b))]
+      (every?
+        #(= (count %) (walked-count %))
+        [m m! s s!
+         (i/range m lo hi)
+         (i/range s lo hi)
+         (i/union s (i/int-set b))
+         (i/intersection s (i/int-set b))
+         (i/difference s (i/int-set b))]))))
+
+(defn- compact-branches? [node]
+  (cond
+    (instance? clojure.data.int_map.Nodes$Strided node)
+    (compact-branches? (.node node))
+
+    (instance? clojure.data.int_map.Nodes$BinaryBranch node)
+    (and (compact-branches? (.a node)) (compact-branches? (.b node)))
+
+    (instance? clojure.data.int_map.Nodes$Branch node)
+    (let [children (.children node)]
+      (and (= (alength children) (Long/bitCount (.bitmap node)))
+           (every? some? children)
+           (every? #(or (not (instance? clojure.data.int_map.Nodes$Branch %)) (= (.bits node) (.bits %))) children)
+           (every? compact-branches? children)))
+
+    :else
+    true))
+
+(defspec branches-stay-compact 1e3
+  (prop/for-all [a (gen/vector map-int) b (gen/vector map-int) [lo hi] (gen/tuple map-int map-int)]
+    (let [m  (reduce #(dissoc %1 %2) (into (i/int-map) (zipmap a a)) b)
+          m! (persistent! (reduce #(dissoc! %1 %2) (transient (into (i/int-map) (zipmap a a))) b))
+          s  (reduce disj (into (i/int-set) a) b)
+          s' (i/int-set b)]
+      (and
+        (every? #(compact-branches? (.root %))
+          [m m! (i/range m lo hi) (merge m (zipmap b b))])
+        (every? #(compact-branches? (-> % .int-set .map))
+          [s (i/range s lo hi) (i/union s s') (i/intersection s s') (i/difference s s')])
+        (= (zipmap (remove (set b) a) (remove (set b) a)) m m!)))))
+
+(defn- root-stride [node]
+  (cond
+    (instance? clojure.data.int_map.Nodes$Strided node)
+    (root-stride (.node node))
+
+    (instance? clojure.data.int_map.Nodes$BinaryBranch node)
+    (or (root-stride (.a node)) (root-stride (.b node)))
+
+    (instance? clojure.data.int_map.Nodes$Branch node)
+    (.bits node)))
+
+(defspec equivalent-with-fan-out 1e3
+  (prop/for-all [fan-out (gen/elements [16 32 64])
+                 a (gen/vector map-int)
+                 b (gen/vector map-int)
+                 [lo hi] (gen/tuple map-int map-int)]
+    (let [bits ({16 4, 32 5, 64 6} fan-out)
+          empty-map (i/with-fan-out fan-out (i/int-map))
+          m  (reduce #(dissoc %1 %2) (into empty-map (zipmap a a)) b)
+          m! (persistent! (reduce #(dissoc! %1 %2) (transient (into empty-map (zipmap a a))) b))
+          l  (i/with-fan-out fan-out (into (i/int-long-map) (zipmap a a)))
+          u  (reduce #(i/update %1 %2 (fnil inc 0)) empty-map (concat a b))
+          ul (reduce #(i/update-long %1 %2 inc) (i/with-fan-out fan-out (i/int-long-map)) (concat a b))
+          expected (apply dissoc (zipmap a a) b)
+          merged (i/merge m (into (i/int-map) (zipmap b b)))]
+      (and
+        (= expected m m!)
+        (= (zipmap a a) l)
+        (= (seq (sort (keys expected))) (keys m) (keys m!))
+        (= (merge expected (zipmap b b)) merged)
+        (= (into {} (filter #(<= lo (key %) hi) expected)) (i/range m lo hi))
+        (= (frequencies (concat a b)) u ul)
+        (= (count expected) (walked-count m))
+        (every? #(compact-branches? (.root %)) [m m! l u ul merged (i/range m lo hi)])
+        (every? #(contains? #{nil bits} (root-stride (.root %))) [m m! l u ul merged (empty m)])))))
+
+(deftest test-with-fan-out-requires-supported-width
+  (is (thrown? IllegalArgumentException (i/with-fan-out 8 (i/int-map))))
+  (is (thrown? IllegalArgumentException (i/with-fan-out 32 {}))))
+
+(defspec equivalent-hashes-and-equality 1e3
+  (prop/for-all [a (gen/vector map-int) b (gen/vector map-int) c clustered-ints]
+    (let [expected (apply dissoc (zipmap a (map str a)) b)
+          m  (reduce dissoc (into (i/int-map) (zipmap a (map str a))) b)
+          m' (into (i/with-fan-out 64 (i/int-map)) expected)
+          l  (into (i/int-long-map) (zipmap a a))
+          xs (into (set a) c)
+          s  (reduce conj (i/int-set) (concat a c))
+          s' (persistent! (reduce conj! (transient (i/dense-int-set)) (concat c a)))]
+      (and
+        (= (hash expected) (hash m) (hash m'))
+        (= (.hashCode expected) (.hashCode m) (.hashCode m'))
+        (= m m' expected)
+        (.equals m m')
+        (= (hash (zipmap a a)) (hash l))
+        (= (.hashCode (zipmap a a)) (.hashCode l))
+        (= (hash xs) (hash s) (hash s'))
+        (= (.hashCode xs) (.hashCode s) (.hashCode s'))
+        (= s s' xs)
+        (= (hash (conj xs 7)) (hash (conj s 7)))
+        (= (hash (disj xs (get a 0 0))) (hash (disj s (get a 0 0))))
+        (not= m (assoc m' 1 :not-a-string))
+        (not= s (conj s' (inc (reduce max 0 xs))))))))
+
+(deftest test-hash-after-transient-edits
+  (let [m (persistent! (reduce #(assoc! %1 %2 %2) (transient (i/int-map)) (range 1000)))
+        h (hash m)
+        m' (persistent! (reduce #(assoc! %1 %2 (- %2)) (transient m) (range 0 1000 7)))]
+    (is (= h (hash m) (hash (zipmap (range 1000) (range 1000)))))
+    (is (= (hash m') (hash (into {} m'))))))
+
+;; the entries yielded by `nextKey` and `value` or `longValue`, without going through `next`
+(defn- cursor-entries [m reverse? long?]
+  (let [c (clojure.data.int_map.Nodes$Cursor. (.root m) clojure.data.int_map.INode$IterationType/KEYS reverse?)]
+    (loop [acc []]
+      (if (.hasNext c)
+        (let [k (.nextKey c)]
+          (recur (conj acc [k (if long? (.longValue c) (.value c))])))
+        acc))))
+
+(defn- primitive-elements [s]
+  (let [it (.iterator s)]
+    (when (instance? java.util.PrimitiveIterator$OfLong it)
+      (loop [acc []]
+        (if (.hasNext it)
+          (recur (conj acc (.nextLong it)))
+          acc)))))
+
+(defspec equivalent-cursor-order 1e3
+  (prop/for-all [fan-out (gen/elements [16 32 64])
+                 a (gen/vector map-int)
+                 c clustered-ints]
+    (let [m (into (i/with-fan-out fan-out (i/int-map)) (zipmap a (map str a)))
+          l (into (i/int-long-map) (zipmap a a))
+          s (into (i/int-set) (concat a c))
+          d (into (i/dense-int-set) (concat a c))]
+      (and
+        (= (map vec (seq m)) (cursor-entries m false false))
+        (= (map vec (rseq m)) (cursor-entries m true false))
+        (= (map vec (seq l)) (cursor-entries l false true))
+        (= (map vec (rseq l)) (cursor-entries l true true))
+        (= (vec s) (primitive-elements s))
+        (= (vec d) (primitive-elements d))))))
+
+(defspec equivalent-from-sorted 1e3
+  (prop/for-all [a (gen/vector map-int) b clustered-ints]
+    (let [ks (long-array (sort (distinct a)))
+          xs (long-array (sort (concat a b)))]
+      (and
+        (= (zipmap ks (map str ks)) (i/int-map-from-sorted ks (object-array (map str ks))))
+        (= (zipmap ks ks) (i/int-long-map-from-sorted ks ks))
+        (= (into (i/int-map) (map vector ks ks)) (i/int-map-from-sorted ks (object-array ks)))
+        (= (set xs) (i/int-set-from-sorted xs) (i/dense-int-set-from-sorted xs))
+        (= (count (set xs)) (count (i/int-set-from-sorted xs)))
+        (= (conj (set xs) 1) (conj (i/int-set-from-sorted xs) 1))))))
+
+(deftest test-from-sorted-requires-sorted-keys
+  (is (thrown? IllegalArgumentException (i/int-map-from-sorted (long-array [2 1]) (object-array [:a :b]))))
+  (is (thrown? IllegalArgumentException (i/int-map-from-sorted (long-array [1 1]) (object-array [:a :b]))))
+  (is (thrown? IllegalArgumentException (i/int-set-from-sorted (long-array [2 1])))))
+
+(defn- round-trip [write read x]
+  (let [bytes (java.io.ByteArrayOutputStream.)
+        _ (write x (java.io.DataOutputStream. bytes))
+        ary (.toByteArray bytes)
+        buf (java.nio.ByteBuffer/allocate (i/serialized-size x))]
+    (write x buf)
+    (.flip buf)
+    [(count ary)
+     (read (java.io.DataInputStream. (java.io.ByteArrayInputStream. ary)))
+     (read buf)]))
+
+(defspec equivalent-serialization 1e3
+  (prop/for-all [a (gen/vector map-int) b clustered-ints c (gen/vector gen/large-integer)]
+    (let [xs (concat a b c)
+          s (i/int-set xs)
+          d (i/dense-int-set xs)
+          m (into (i/int-long-map) (map vector xs (reverse xs)))]
+      (every?
+        (fn [[x [size y z]]]
+          (and (= x y z) (= size (i/serialized-size x))))
+        [[s (round-trip i/write-int-set i/read-int-set s)]
+         [s (round-trip i/write-int-set i/read-dense-int-set s)]
+         [d (round-trip i/write-int-set i/read-int-set d)]
+         [m (round-trip i/write-int-long-map i/read-int-long-map m)]]))))
+
+(deftest test-roaring-layout
+  ;; a single array container holding 1 and 5, and a run container holding 0-99 within the upper 32-bit bucket
+  (let [buf (doto (java.nio.ByteBuffer/allocate 1024) (.order java.nio.ByteOrder/LITTLE_ENDIAN))
+        s (i/int-set (concat [1 5] (clojure.core/range -100 0)))]
+    (i/write-int-set s buf)
+    (.flip buf)
+    (is (= 2 (.getLong buf)))
+    (is (= 0 (.getInt buf)))
+    (is (= 12346 (.getInt buf)))
+    (is (= 1 (.getInt buf)))
+    (is (= [0 1] [(.getShort buf) (.getShort buf)]))
+    (is (= 16 (.getInt buf)))
+    (is (= [1 5] [(.getShort buf) (.getShort buf)]))
+    (is (= -1 (.getInt buf)))
+    (is (= 12347 (.getInt buf)))
+    (is (= 1 (.get buf)))
+    (is (= [-1 99] [(.getShort buf) (.getShort buf)]))
+    (is (= [1 -100 99] [(.getShort buf) (.getShort buf) (.getShort buf)]))
+    (is (zero? (.remaining buf)))))
+
+(defn- ->buffer [s]
+  (let [buf (java.nio.ByteBuffer/allocateDirect (i/serialized-size s))]
+    (i/write-int-set s buf)
+    (.flip buf)))
+
+(defspec equivalent-mapped-set 1e3
+  (prop/for-all [a (gen/vector map-int) b clustered-ints c (gen/vector gen/large-integer) d (gen/vector map-int)
+                 [lo hi] (gen/tuple map-int map-int)]
+    (let [xs (concat a b c)
+          s (set xs)
+          m (i/mapped-int-set (->buffer (i/int-set xs)))
+          d' (i/dense-int-set (concat d b))]
+      (and
+        (= s m)
+        (= (count s) (count m))
+        (= (seq (sort s)) (seq m))
+        (= (seq (reverse (sort s))) (rseq m))
+        (every? #(contains? m %) xs)
+        (every? #(= (contains? s %) (contains? m %)) d)
+        (= (set (filter #(<= lo % hi) s)) (i/range m lo hi))
+        (= (set/union s (set d)) (i/union m (i/int-set d)) (i/union (i/int-set d) m))
+        (= (set/intersection s (set d)) (i/intersection m (i/int-set d)) (i/intersection (i/int-set d) m))
+        (= (set/intersection s (set d')) (i/intersection m d'))
+        (= (set/difference s (set d)) (i/difference m (i/int-set d)))
+        (= (set/difference (set d) s) (i/difference (i/int-set d) m))
+        (= (set/difference (set d') s) (i/difference d' m))))))
+
+(deftest test-mapped-set-from-file
+  (let [f (java.io.File/createTempFile "int-set" ".bin")
+        s (i/int-set (concat (clojure.core/range 1e5) [-1 Long/MIN_VALUE Long/MAX_VALUE]))]
+    (try
+      (with-open [out (java.io.DataOutputStream. (java.io.FileOutputStream. f))]
+        (i/write-int-set s out))
+      (let [m (i/mapped-int-set f)]
+        (is (= s m))
+        (is (thrown? UnsupportedOperationException (conj m 1))))
+      (finally
+        (.delete f)))))
+
+;; splits a spliterator as far as it will go, returning the pieces in order
+(defn- split-fully [sp]
+  (if-let [prefix (.trySplit sp)]
+    (concat (split-fully prefix) (split-fully sp))
+    [sp]))
+
+;; the sizes reported by each piece, and what each piece yields
+(defn- split-contents [sp]
+  (for [piece (split-fully sp)]
+    (let [size (.estimateSize piece)
+          acc (java.util.ArrayList.)]
+      (.forEachRemaining piece (reify java.util.function.Consumer (accept [_ x] (.add acc x))))
+      [size (vec acc)])))
+
+(defspec equivalent-streams 1e3
+  (prop/for-all [fan-out (gen/elements [16 32 64])
+                 a (gen/vector map-int)
+                 c clustered-ints]
+    (let [m (into (i/with-fan-out fan-out (i/int-map)) (zipmap a (map str a)))
+          s (into (i/int-set) (concat a c))
+          d (into (i/dense-int-set) (concat a c))
+          sizes-exact? (fn [pieces] (every? (fn [[size xs]] (= size (count xs))) pieces))]
+      (and
+        (every?
+          (fn [x]
+            (let [pieces (split-contents (.spliterator x))]
+              (and
+                (sizes-exact? pieces)
+                (= (vec x) (mapcat second pieces))
+                (= (vec x) (vec (.toArray (i/long-stream x true))))
+                (= (reduce unchecked-add 0 x) (.sum (i/long-stream x true))))))
+          [s d (i/mapped-int-set (->buffer s))])
+        (let [pieces (split-contents (clojure.data.int_map.Nodes$EntrySpliterator. (.root m)))]
+          (and
+            (sizes-exact? pieces)
+            (= (map vec m) (map vec (mapcat second pieces)))))
+        (= (map vec m) (map vec (iterator-seq (.iterator (i/entry-stream m true)))))))))